@@ -0,0 +1,88 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost SpnegoAuthenticator adds to every SolrJ request once a token is cached,
+ * compared with just creating the request. Run at increasing thread counts to
+ * see how it scales, e.g. with -t 1, -t 4, -t 16, or all at once with
+ * AuthenticatorScaling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AuthenticatorBenchmark
+{
+    @Param({ "1", "16" })
+    public int hosts;
+
+    private SpnegoTokenCache cache;
+    private SpnegoAuthenticator authenticator;
+    private URI[] uris;
+
+    @Setup
+    public void setup()
+    {
+        cache = new SpnegoTokenCache(new StubAuthenticatedURLProvider(0, TimeUnit.HOURS.toMillis(10)));
+        authenticator = new SpnegoAuthenticator(cache);
+        uris = new URI[hosts];
+        for (int i = 0; i < hosts; i++)
+        {
+            uris[i] = URI.create("http://node" + i + ".example.com:8983/solr/wiki.solr/select?q=*:*");
+            cache.getCachedToken(uris[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        cache.close();
+    }
+
+    @Benchmark
+    public HttpRequestBase baseline(ThreadIndex index)
+    {
+        return new HttpGet(uris[index.next(hosts)]);
+    }
+
+    @Benchmark
+    public HttpRequestBase setAuthenticationOptions(ThreadIndex index)
+    {
+        return authenticator.setAuthenticationOptions(new HttpGet(uris[index.next(hosts)]));
+    }
+
+    /**
+     * Cycles each thread through the hosts, without any shared state.
+     */
+    @State(Scope.Thread)
+    public static class ThreadIndex
+    {
+        private int next;
+
+        int next(int hosts)
+        {
+            int index = next;
+            next = (index + 1) % hosts;
+            return index;
+        }
+    }
+}
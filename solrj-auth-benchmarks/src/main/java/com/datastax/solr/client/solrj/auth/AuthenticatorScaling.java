@@ -0,0 +1,28 @@
+package com.datastax.solr.client.solrj.auth;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs AuthenticatorBenchmark with 1, 2, 4 ... up to N threads, where N is the
+ * first argument and defaults to twice the number of processors.
+ */
+public class AuthenticatorScaling
+{
+    public static void main(String[] args) throws RunnerException
+    {
+        int maxThreads = args.length > 0
+                         ? Integer.parseInt(args[0])
+                         : Runtime.getRuntime().availableProcessors() * 2;
+        for (int threads = 1; threads <= maxThreads; threads *= 2)
+        {
+            Options options = new OptionsBuilder()
+                    .include(AuthenticatorBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A stampede of threads requesting tokens from an empty cache, e.g. on startup
+ * or after every token for a cluster has expired together. Each iteration
+ * starts with a new cache and measures how long every thread takes to get a
+ * token for every host, with each negotiation taking latencyMs.
+ *
+ * Concurrent misses for a host should share one negotiation, so the iteration
+ * fails if more than one negotiation per host is seen.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Threads(16)
+@Fork(1)
+public class ColdMissBenchmark
+{
+    @Param({ "0", "10", "50" })
+    public long latencyMs;
+
+    @Param({ "1", "16" })
+    public int hosts;
+
+    private StubAuthenticatedURLProvider provider;
+    private SpnegoTokenCache cache;
+    private URL[] urls;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception
+    {
+        provider = new StubAuthenticatedURLProvider(latencyMs, TimeUnit.HOURS.toMillis(10));
+        urls = new URL[hosts];
+        for (int i = 0; i < hosts; i++)
+        {
+            urls[i] = new URL("http://node" + i + ".example.com:8983/solr/wiki.solr/select");
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration()
+    {
+        provider.resetNegotiations();
+        cache = new SpnegoTokenCache(provider);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration()
+    {
+        cache.close();
+        if (provider.getNegotiations() > hosts)
+        {
+            throw new IllegalStateException(String.format("%s negotiations for %s hosts, concurrent misses were not coalesced",
+                                                          provider.getNegotiations(), hosts));
+        }
+    }
+
+    @Benchmark
+    public void stampede()
+    {
+        for (URL url : urls)
+        {
+            cache.getToken(url);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.Principal;
+import java.util.EnumSet;
+import java.util.Properties;
+
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.servlet.DispatcherType;
+
+import org.apache.hadoop.minikdc.MiniKdc;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.alfredo.server.AuthenticationFilter;
+
+/**
+ * An in-process KDC and an embedded Jetty server which authenticates requests
+ * with Alfredo's AuthenticationFilter, as DSE does, in front of a stand-in for
+ * Solr's /select and /update handlers. Everything runs on localhost, so SPNEGO
+ * authentication can be exercised without a Kerberized cluster or any network.
+ */
+public class KerberizedSolrStandIn
+{
+    private static final Logger logger = LoggerFactory.getLogger(KerberizedSolrStandIn.class);
+
+    private static final String CLIENT_PRINCIPAL = "client";
+    private static final String SERVER_PRINCIPAL = "HTTP/localhost";
+    private static final String CORE = "loadtest";
+
+    private final long tokenValiditySeconds;
+    private final NegotiationCountingFilter counter = new NegotiationCountingFilter();
+    private File workDir;
+    private File clientKeytab;
+    private MiniKdc kdc;
+    private Server jetty;
+    private int port;
+
+    /**
+     * @param tokenValiditySeconds lifetime of the tokens issued by the server
+     */
+    public KerberizedSolrStandIn(long tokenValiditySeconds)
+    {
+        this.tokenValiditySeconds = tokenValiditySeconds;
+    }
+
+    public void start() throws Exception
+    {
+        workDir = File.createTempFile("solrj-auth-kdc", "");
+        if (!workDir.delete() || !workDir.mkdir())
+        {
+            throw new IOException("Unable to create KDC working directory " + workDir);
+        }
+
+        Properties conf = MiniKdc.createConf();
+        kdc = new MiniKdc(conf, workDir);
+        kdc.start();
+        clientKeytab = new File(workDir, "client.keytab");
+        kdc.createPrincipal(clientKeytab, CLIENT_PRINCIPAL);
+        File serverKeytab = new File(workDir, "http.keytab");
+        kdc.createPrincipal(serverKeytab, SERVER_PRINCIPAL);
+        logger.info(String.format("Started KDC for realm %s in %s", kdc.getRealm(), workDir));
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/solr");
+        context.addFilter(new FilterHolder(counter), "/*", EnumSet.of(DispatcherType.REQUEST));
+        FilterHolder auth = new FilterHolder(AuthenticationFilter.class);
+        auth.setInitParameter("type", "kerberos");
+        auth.setInitParameter("kerberos.principal", SERVER_PRINCIPAL + "@" + kdc.getRealm());
+        auth.setInitParameter("kerberos.keytab", serverKeytab.getAbsolutePath());
+        auth.setInitParameter("token.validity", String.valueOf(tokenValiditySeconds));
+        auth.setInitParameter("signature.secret", "solrj-auth-load-harness");
+        context.addFilter(auth, "/*", EnumSet.of(DispatcherType.REQUEST));
+        context.addServlet(new ServletHolder(new StandInSolrServlet()), "/*");
+
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setHost("localhost");
+        connector.setPort(0);
+        jetty = new Server();
+        jetty.addConnector(connector);
+        jetty.setHandler(context);
+        jetty.start();
+        port = connector.getLocalPort();
+        logger.info("Started stand-in Solr server at " + getBaseUrl());
+    }
+
+    public void stop() throws Exception
+    {
+        try
+        {
+            if (jetty != null)
+            {
+                jetty.stop();
+            }
+        }
+        finally
+        {
+            if (kdc != null)
+            {
+                kdc.stop();
+            }
+            delete(workDir);
+        }
+    }
+
+    public String getBaseUrl()
+    {
+        return "http://localhost:" + port + "/solr/" + CORE;
+    }
+
+    public Principal getClientPrincipal()
+    {
+        return new KerberosPrincipal(CLIENT_PRINCIPAL + "@" + kdc.getRealm());
+    }
+
+    public File getClientKeytab()
+    {
+        return clientKeytab;
+    }
+
+    /**
+     * Number of requests received by the server, including those rejected
+     * by the AuthenticationFilter.
+     */
+    public long getRequests()
+    {
+        return counter.getRequests();
+    }
+
+    /**
+     * Number of requests received by the server carrying a SPNEGO token.
+     */
+    public long getNegotiations()
+    {
+        return counter.getNegotiations();
+    }
+
+    private static void delete(File file)
+    {
+        if (file == null)
+        {
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,95 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records request latencies with a fixed relative precision, in log-linear
+ * buckets of microseconds: each power of two is split into SUB_BUCKETS equal
+ * buckets, so reported percentiles are within about 6% of the true value.
+ * Not thread safe, each load generating thread has its own and they are
+ * merged once the run is over.
+ */
+class LatencyRecorder
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // enough to cover over an hour in microseconds
+    private static final int MAGNITUDES = 33;
+
+    private final long[] counts = new long[MAGNITUDES * SUB_BUCKETS];
+    private long count;
+    private long max;
+
+    void record(long nanos)
+    {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts[indexOf(micros)]++;
+        count++;
+        max = Math.max(max, micros);
+    }
+
+    void merge(LatencyRecorder other)
+    {
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+
+    long getCount()
+    {
+        return count;
+    }
+
+    long getMaxMicros()
+    {
+        return max;
+    }
+
+    /**
+     * @param percentile in the range (0, 100]
+     * @return upper bound of the bucket the percentile falls in, in microseconds
+     */
+    long getPercentileMicros(double percentile)
+    {
+        if (count == 0)
+        {
+            return 0;
+        }
+        long target = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= target)
+            {
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int indexOf(long micros)
+    {
+        if (micros < SUB_BUCKETS)
+        {
+            return (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (micros >>> (magnitude - 1)) - SUB_BUCKETS;
+        return Math.min(magnitude * SUB_BUCKETS + subBucket, MAGNITUDES * SUB_BUCKETS - 1);
+    }
+
+    private static long upperBoundOf(int index)
+    {
+        int magnitude = index / SUB_BUCKETS;
+        int subBucket = index % SUB_BUCKETS;
+        if (magnitude == 0)
+        {
+            return subBucket;
+        }
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (magnitude - 1)) - 1;
+    }
+}
@@ -0,0 +1,199 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.solr.client.solrj.auth.SolrHttpClientInitializer.AuthenticationOptions;
+
+/**
+ * Drives an HttpSolrServer, authenticated via SolrHttpClientInitializer, against
+ * a KerberizedSolrStandIn and reports throughput, latency percentiles and the
+ * number of SPNEGO negotiations seen by both client and server. Runs entirely
+ * offline, so it can be used in CI to catch authentication regressions.
+ *
+ * Configured with system properties:
+ * <ul>
+ * <li>threads - concurrent clients, default 16</li>
+ * <li>duration - length of the measured run in seconds, default 30</li>
+ * <li>warmup - length of the unmeasured warm up in seconds, default 5</li>
+ * <li>updateRatio - fraction of requests which are updates, default 0.1</li>
+ * <li>tokenValidity - lifetime of server issued tokens in seconds, default 3600</li>
+ * <li>httpClientNegotiation - negotiate over HTTP Client, default false</li>
+ * <li>maxP99 - fail if the 99th percentile latency exceeds this many ms</li>
+ * </ul>
+ * Exits with a non-zero status if any request fails or maxP99 is exceeded.
+ */
+public class LoadHarness
+{
+    private static final Logger logger = LoggerFactory.getLogger(LoadHarness.class);
+
+    public static void main(String[] args) throws Exception
+    {
+        int threads = Integer.getInteger("threads", 16);
+        long durationSeconds = Long.getLong("duration", 30);
+        long warmupSeconds = Long.getLong("warmup", 5);
+        double updateRatio = Double.parseDouble(System.getProperty("updateRatio", "0.1"));
+        long tokenValiditySeconds = Long.getLong("tokenValidity", 3600);
+        boolean httpClientNegotiation = Boolean.getBoolean("httpClientNegotiation");
+        long maxP99Millis = Long.getLong("maxP99", -1);
+
+        KerberizedSolrStandIn solr = new KerberizedSolrStandIn(tokenValiditySeconds);
+        boolean passed;
+        solr.start();
+        try
+        {
+            TokenCacheStats stats = new TokenCacheStats();
+            AuthenticationOptions options = new AuthenticationOptions()
+                                                .withPrincipal(solr.getClientPrincipal())
+                                                .withKeytab(solr.getClientKeytab())
+                                                .withMetrics(stats);
+            if (httpClientNegotiation)
+            {
+                options.withHttpClientNegotiation();
+            }
+            SolrHttpClientInitializer.initAuthentication(options);
+            HttpSolrServer server = new HttpSolrServer(solr.getBaseUrl());
+
+            logger.info(String.format("Warming up for %s s with %s threads", warmupSeconds, threads));
+            run(server, threads, warmupSeconds, updateRatio);
+
+            long clientNegotiations = stats.getNegotiations();
+            long serverNegotiations = solr.getNegotiations();
+            long serverRequests = solr.getRequests();
+            logger.info(String.format("Running for %s s with %s threads", durationSeconds, threads));
+            Result result = run(server, threads, durationSeconds, updateRatio);
+            clientNegotiations = stats.getNegotiations() - clientNegotiations;
+            serverNegotiations = solr.getNegotiations() - serverNegotiations;
+            serverRequests = solr.getRequests() - serverRequests;
+            server.shutdown();
+
+            LatencyRecorder latencies = result.latencies;
+            long p99Millis = TimeUnit.MICROSECONDS.toMillis(latencies.getPercentileMicros(99));
+            System.out.println(String.format("threads:              %s", threads));
+            System.out.println(String.format("requests:             %s", latencies.getCount()));
+            System.out.println(String.format("errors:               %s", result.errors));
+            System.out.println(String.format("throughput:           %.1f req/s", (double) latencies.getCount() / durationSeconds));
+            System.out.println(String.format("latency p50:          %s us", latencies.getPercentileMicros(50)));
+            System.out.println(String.format("latency p90:          %s us", latencies.getPercentileMicros(90)));
+            System.out.println(String.format("latency p99:          %s us", latencies.getPercentileMicros(99)));
+            System.out.println(String.format("latency p99.9:        %s us", latencies.getPercentileMicros(99.9)));
+            System.out.println(String.format("latency max:          %s us", latencies.getMaxMicros()));
+            System.out.println(String.format("client negotiations:  %s", clientNegotiations));
+            System.out.println(String.format("server negotiations:  %s", serverNegotiations));
+            System.out.println(String.format("server requests:      %s", serverRequests));
+
+            passed = result.errors == 0;
+            if (maxP99Millis >= 0 && p99Millis > maxP99Millis)
+            {
+                System.out.println(String.format("FAILED: p99 latency of %s ms exceeds %s ms", p99Millis, maxP99Millis));
+                passed = false;
+            }
+        }
+        finally
+        {
+            solr.stop();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static Result run(SolrServer server, int threads, long seconds, double updateRatio) throws Exception
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        AtomicLong errors = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<LatencyRecorder>> futures = new ArrayList<Future<LatencyRecorder>>(threads);
+            for (int i = 0; i < threads; i++)
+            {
+                futures.add(executor.submit(new Client(server, deadline, updateRatio, errors, i)));
+            }
+            Result result = new Result();
+            for (Future<LatencyRecorder> future : futures)
+            {
+                result.latencies.merge(future.get());
+            }
+            result.errors = errors.get();
+            return result;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class Result
+    {
+        private final LatencyRecorder latencies = new LatencyRecorder();
+        private long errors;
+    }
+
+    /**
+     * Sends queries and updates back to back until the deadline passes.
+     */
+    private static class Client implements Callable<LatencyRecorder>
+    {
+        private final SolrServer server;
+        private final long deadline;
+        private final double updateRatio;
+        private final AtomicLong errors;
+        private final Random random;
+
+        private Client(SolrServer server, long deadline, double updateRatio, AtomicLong errors, int seed)
+        {
+            this.server = server;
+            this.deadline = deadline;
+            this.updateRatio = updateRatio;
+            this.errors = errors;
+            this.random = new Random(seed);
+        }
+
+        @Override
+        public LatencyRecorder call()
+        {
+            LatencyRecorder latencies = new LatencyRecorder();
+            SolrQuery query = new SolrQuery("*:*");
+            long id = 0;
+            long start;
+            while ((start = System.nanoTime()) < deadline)
+            {
+                try
+                {
+                    if (random.nextDouble() < updateRatio)
+                    {
+                        SolrInputDocument doc = new SolrInputDocument();
+                        doc.addField("id", Thread.currentThread().getName() + "-" + id++);
+                        server.add(doc);
+                    }
+                    else
+                    {
+                        server.query(query);
+                    }
+                    latencies.record(System.nanoTime() - start);
+                }
+                catch (Exception e)
+                {
+                    if (errors.incrementAndGet() == 1)
+                    {
+                        logger.error("Request failed", e);
+                    }
+                }
+            }
+            return latencies;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import com.cloudera.alfredo.client.KerberosAuthenticator;
+
+/**
+ * Sits in front of Alfredo's AuthenticationFilter and counts the requests it
+ * receives, and how many of them carry a SPNEGO token, i.e. the server side of
+ * a negotiation.
+ */
+class NegotiationCountingFilter implements Filter
+{
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong negotiations = new AtomicLong();
+
+    @Override
+    public void init(FilterConfig config)
+    {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
+    {
+        requests.incrementAndGet();
+        String authorization = ((HttpServletRequest) request).getHeader(KerberosAuthenticator.AUTHORIZATION);
+        if (authorization != null && authorization.startsWith(KerberosAuthenticator.NEGOTIATE))
+        {
+            negotiations.incrementAndGet();
+        }
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+    long getRequests()
+    {
+        return requests.get();
+    }
+
+    long getNegotiations()
+    {
+        return negotiations.get();
+    }
+}
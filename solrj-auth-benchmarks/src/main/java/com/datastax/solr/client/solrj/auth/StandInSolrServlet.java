@@ -0,0 +1,77 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Answers SolrJ's /select and /update requests with minimal, fixed javabin
+ * responses, so a load test measures the client and its authentication rather
+ * than any indexing or searching.
+ */
+class StandInSolrServlet extends HttpServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final String JAVABIN_CONTENT_TYPE = "application/octet-stream";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        handle(request, response);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        handle(request, response);
+    }
+
+    private void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        // read the whole request so the connection can be kept alive
+        InputStream in = request.getInputStream();
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) != -1)
+        {
+            // discard
+        }
+
+        String path = request.getPathInfo();
+        NamedList<Object> body = new NamedList<Object>();
+        body.add("responseHeader", newResponseHeader());
+        if (path != null && path.endsWith("/select"))
+        {
+            SolrDocument doc = new SolrDocument();
+            doc.addField("id", "1");
+            SolrDocumentList docs = new SolrDocumentList();
+            docs.add(doc);
+            docs.setNumFound(1);
+            body.add("response", docs);
+        }
+        else if (path == null || !path.endsWith("/update"))
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Only /select and /update are supported");
+            return;
+        }
+
+        response.setContentType(JAVABIN_CONTENT_TYPE);
+        new JavaBinCodec().marshal(body, response.getOutputStream());
+    }
+
+    private static NamedList<Object> newResponseHeader()
+    {
+        NamedList<Object> header = new NamedList<Object>();
+        header.add("status", 0);
+        header.add("QTime", 0);
+        return header;
+    }
+}
@@ -0,0 +1,78 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cloudera.alfredo.client.AuthenticatedURL;
+import com.cloudera.alfredo.client.AuthenticationException;
+
+/**
+ * Stands in for a KDC and a Kerberized Solr node. Each negotiation takes a fixed
+ * time and produces a token in the format issued by Alfredo's AuthenticationFilter,
+ * so benchmarks exercise the real cache and parsing code without any network.
+ */
+public class StubAuthenticatedURLProvider extends AuthenticatedURLProvider
+{
+    private final long latencyMs;
+    private final long tokenLifetimeMs;
+    private final AtomicInteger negotiations = new AtomicInteger();
+
+    /**
+     * @param latencyMs time each negotiation takes
+     * @param tokenLifetimeMs lifetime of the tokens handed out
+     */
+    public StubAuthenticatedURLProvider(long latencyMs, long tokenLifetimeMs)
+    {
+        super(new AuthenticatedURLProvider.Builder().reuseLogin(false));
+        this.latencyMs = latencyMs;
+        this.tokenLifetimeMs = tokenLifetimeMs;
+    }
+
+    @Override
+    public AuthenticatedURL get()
+    {
+        return new StubAuthenticatedURL();
+    }
+
+    public int getNegotiations()
+    {
+        return negotiations.get();
+    }
+
+    public void resetNegotiations()
+    {
+        negotiations.set(0);
+    }
+
+    /**
+     * Returns a token string as issued by Alfredo's AuthenticationFilter.
+     */
+    public static String newTokenString(long expires)
+    {
+        return "u=bench&p=bench/client@EXAMPLE.COM&t=kerberos&e=" + expires + "&s=Y2hlY2tzdW0gb2YgdGhlIHRva2Vu";
+    }
+
+    private class StubAuthenticatedURL extends AuthenticatedURL
+    {
+        @Override
+        public Token authenticateWithToken(URL url, Token token) throws IOException, AuthenticationException
+        {
+            negotiations.incrementAndGet();
+            if (latencyMs > 0)
+            {
+                try
+                {
+                    Thread.sleep(latencyMs);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted during stub negotiation");
+                }
+            }
+            return new Token(newTokenString(System.currentTimeMillis() + tokenLifetimeMs));
+        }
+    }
+}
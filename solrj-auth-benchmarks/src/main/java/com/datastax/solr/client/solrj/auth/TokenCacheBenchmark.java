@@ -0,0 +1,71 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloudera.alfredo.client.AuthenticatedURL.Token;
+
+/**
+ * Cost of a SpnegoTokenCache hit, via the URL and URI entry points, and of
+ * parsing the expiry out of a token string, which happens once per negotiation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TokenCacheBenchmark
+{
+    private SpnegoTokenCache cache;
+    private URL url;
+    private URI uri;
+    private String tokenString;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        cache = new SpnegoTokenCache(new StubAuthenticatedURLProvider(0, TimeUnit.HOURS.toMillis(10)));
+        url = new URL("http://node.example.com:8983/solr/wiki.solr/select");
+        uri = url.toURI();
+        cache.getToken(url);
+        tokenString = StubAuthenticatedURLProvider.newTokenString(System.currentTimeMillis());
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        cache.close();
+    }
+
+    @Benchmark
+    public Token getTokenHit()
+    {
+        return cache.getToken(url);
+    }
+
+    @Benchmark
+    public CachedToken getCachedTokenHit()
+    {
+        return cache.getCachedToken(uri);
+    }
+
+    @Benchmark
+    public long parseExpiry()
+    {
+        return CachedToken.parseExpiry(tokenString);
+    }
+}
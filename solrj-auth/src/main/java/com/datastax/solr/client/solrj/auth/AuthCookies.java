@@ -0,0 +1,47 @@
+package com.datastax.solr.client.solrj.auth;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+import com.cloudera.alfredo.client.AuthenticatedURL;
+
+/**
+ * Reads the authentication token cookie set by Alfredo's AuthenticationFilter
+ * from HTTP Client responses, the equivalent of AuthenticatedURL.extractToken
+ * for java.net.HttpURLConnection.
+ */
+final class AuthCookies
+{
+    static final String SET_COOKIE = "Set-Cookie";
+    private static final String AUTH_COOKIE_EQ = AuthenticatedURL.AUTH_COOKIE + "=";
+
+    private AuthCookies()
+    {
+    }
+
+    /**
+     * @return the value of the auth cookie set by the response, or null if the
+     * response doesn't set one
+     */
+    static String getToken(HttpResponse response)
+    {
+        for (Header header : response.getHeaders(SET_COOKIE))
+        {
+            String cookie = header.getValue();
+            if (cookie.startsWith(AUTH_COOKIE_EQ))
+            {
+                String value = cookie.substring(AUTH_COOKIE_EQ.length());
+                int separator = value.indexOf(';');
+                if (separator > -1)
+                {
+                    value = value.substring(0, separator);
+                }
+                if (value.length() > 0)
+                {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -2,14 +2,26 @@ package com.datastax.solr.client.solrj.auth;
 
 import java.io.File;
 import java.security.Principal;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
+import javax.security.auth.Subject;
+import javax.security.auth.login.LoginException;
 
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.ietf.jgss.GSSException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.cloudera.alfredo.client.AuthenticatedURL;
+import com.cloudera.alfredo.client.AuthenticationException;
 
 /**
  * Supplies AuthenticatedURLs, a class from the Alfredo library, which performs the 
@@ -23,6 +35,25 @@ import com.cloudera.alfredo.client.AuthenticatedURL;
  * is an error.
  * 
  * To use HTTPS for secure connections during SPNEGO auth, supply an SSLContext.  
+ * 
+ * By default, each AuthenticatedURL logs in to Kerberos for itself. With
+ * Builder.reuseLogin, the login is instead performed once and its Subject,
+ * along with any service tickets obtained, is reused by every AuthenticatedURL
+ * this class supplies. See KerberosLogin.
+ * 
+ * Optionally, the SPNEGO exchange can be carried out over an HTTP Client instead
+ * of Alfredo's HttpURLConnections, so negotiations use pooled keep-alive 
+ * connections. Either supply the HttpClient to use, e.g. the one shared by the
+ * application's HttpSolrServers, or let the provider create one of its own,
+ * which uses the SSLContext given to the provider, or else any SSL
+ * configuration set by SolrHttpClientInitializer.initEncryption.
+ * Negotiation requests never have the client handle authentication itself,
+ * so a client carrying SolrJ's authentication can be supplied safely.
+ * 
+ * Neither Alfredo nor HttpClientUtil set any timeouts by default, so a node
+ * which hangs mid handshake blocks its negotiation indefinitely. Set connect
+ * and read timeouts for negotiations with Builder.timeouts, they apply however
+ * the negotiation is carried out.
  */
 public class AuthenticatedURLProvider
 {
@@ -31,17 +62,74 @@ public class AuthenticatedURLProvider
     private final File keytab; 
     private final Principal principal;
     private final SSLContext sslContext;
+    private final javax.net.ssl.SSLSocketFactory sslSocketFactory;
     private final HostnameVerifier hostVerifier;
+    private final KerberosLogin login;
+    private final boolean httpClientNegotiation;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private HttpClient httpClient;
+    // whether httpClient was created by the provider, and is closed with it
+    private boolean ownsHttpClient;
+    // only set for a client the provider created itself
+    private SSLSocketFactory negotiationSocketFactory;
 
-    private AuthenticatedURLProvider(Builder builder)
+    /**
+     * Use Builder.build, subclasses may use this to supply their own
+     * AuthenticatedURLs, e.g. to stand in for a KDC in tests and benchmarks.
+     */
+    protected AuthenticatedURLProvider(Builder builder)
     {
         this.keytab = builder.keytab;
         this.principal = builder.principal;
         this.sslContext = builder.sslContext;
+        if (sslContext == null)
+        {
+            this.sslSocketFactory = null;
+        }
+        else
+        {
+            this.sslSocketFactory = (builder.tlsSessionStats == null) ?
+                    sslContext.getSocketFactory() :
+                    builder.tlsSessionStats.wrap(sslContext.getSocketFactory());
+        }
         this.hostVerifier = builder.verifier;
+        // negotiating over HTTP Client has no login of its own to fall back on
+        this.login = (builder.reuseLogin || builder.httpClientNegotiation) ? new KerberosLogin(keytab, principal) : null;
+        this.httpClientNegotiation = builder.httpClientNegotiation;
+        this.httpClient = builder.httpClient;
+        this.connectTimeoutMs = builder.connectTimeoutMs;
+        this.readTimeoutMs = builder.readTimeoutMs;
     }
 
     public AuthenticatedURL get()
+    {
+        if (null == login)
+        {
+            return newAuthenticatedURL();
+        }
+        if (httpClientNegotiation)
+        {
+            logger.debug("Creating AuthenticatedURL to negotiate over HTTP Client");
+            HttpClient client = getHttpClient();
+            return new HttpClientAuthenticatedURL(login, client, getNegotiationSocketFactory(), connectTimeoutMs, readTimeoutMs);
+        }
+        // negotiate using the shared login, Alfredo's default authenticator
+        // will use the tickets from the Subject it finds itself running as
+        // rather than logging in again
+        logger.debug("Creating AuthenticatedURL to use credentials from shared Kerberos login");
+        if (null != sslContext)
+        {
+            logger.debug("SSL is enabled, setting socketfactory & host name verifier");
+            return new SubjectAuthenticatedURL(login, sslSocketFactory, hostVerifier, connectTimeoutMs, readTimeoutMs);
+        }
+        else
+        {
+            return new SubjectAuthenticatedURL(login, connectTimeoutMs, readTimeoutMs);
+        }
+    }
+
+    private AuthenticatedURL newAuthenticatedURL()
     {
         if (null == keytab)
         {
@@ -49,12 +137,11 @@ public class AuthenticatedURLProvider
             if (null != sslContext)
             {   
                 logger.debug("SSL is enabled, setting socketfactory & host name verifier");
-                // null arg forces default (i.e. Kerberos) authenticator, but no keytab or principal
-                return new AuthenticatedURL(null, sslContext.getSocketFactory(), hostVerifier);
+                return new TimeoutAuthenticatedURL(sslSocketFactory, hostVerifier, connectTimeoutMs, readTimeoutMs);
             }
             else
             {
-                return new AuthenticatedURL();
+                return new TimeoutAuthenticatedURL(connectTimeoutMs, readTimeoutMs);
             }
         }
         else
@@ -63,22 +150,163 @@ public class AuthenticatedURLProvider
             if (null != sslContext)
             {   
                 logger.debug("SSL is enabled, setting socketfactory & host name verifier");
-                return new AuthenticatedURL(keytab.getAbsolutePath(), principal.getName(), sslContext.getSocketFactory(), hostVerifier);
+                return new TimeoutAuthenticatedURL(keytab.getAbsolutePath(), principal.getName(), sslSocketFactory, hostVerifier,
+                                                   connectTimeoutMs, readTimeoutMs);
             }
             else
             {
-                return new AuthenticatedURL(keytab.getAbsolutePath(), principal.getName());
+                return new TimeoutAuthenticatedURL(keytab.getAbsolutePath(), principal.getName(), connectTimeoutMs, readTimeoutMs);
             }
         }        
         
     }
     
+    /**
+     * Creates the initial SPNEGO token for the given host, as the value of an
+     * Authorization header. Requires a shared Kerberos login.
+     */
+    public String getNegotiateHeader(String host) throws AuthenticationException
+    {
+        NegotiateContext context = createNegotiateContext(host);
+        try
+        {
+            return step(context, null);
+        }
+        finally
+        {
+            context.dispose();
+        }
+    }
+    
+    /**
+     * Starts a SPNEGO exchange with the given host as the shared login's
+     * Subject, for a request which carries its own Negotiate header. The
+     * caller steps it with the server's reply and disposes of it.
+     */
+    NegotiateContext createNegotiateContext(final String host) throws AuthenticationException
+    {
+        return doAsLogin(new PrivilegedExceptionAction<NegotiateContext>() {
+            @Override
+            public NegotiateContext run() throws GSSException
+            {
+                return NegotiateContext.create(host);
+            }
+        });
+    }
+    
+    /**
+     * Steps a context from createNegotiateContext as the shared login's Subject.
+     */
+    String step(final NegotiateContext context, final String challenge) throws AuthenticationException
+    {
+        return doAsLogin(new PrivilegedExceptionAction<String>() {
+            @Override
+            public String run() throws GSSException
+            {
+                return context.step(challenge);
+            }
+        });
+    }
+    
+    private <T> T doAsLogin(PrivilegedExceptionAction<T> action) throws AuthenticationException
+    {
+        if (null == login)
+        {
+            throw new IllegalStateException("Negotiating on requests requires a shared Kerberos login");
+        }
+        try
+        {
+            return Subject.doAs(login.getSubject(), action);
+        }
+        catch (LoginException e)
+        {
+            throw new AuthenticationException("Error logging in to Kerberos", e);
+        }
+        catch (PrivilegedActionException e)
+        {
+            throw new AuthenticationException(e.getException().getMessage(), e.getException());
+        }
+    }
+    
+    synchronized HttpClient getHttpClient()
+    {
+        if (null == httpClient)
+        {
+            // created on first use, by which time any SSL configuration for 
+            // SolrJ should also have been set up by SolrHttpClientInitializer
+            httpClient = newNegotiationClient();
+            ownsHttpClient = true;
+            if (null != sslContext)
+            {
+                logger.debug("SSL is enabled, negotiations will register socketfactory & host name verifier");
+                negotiationSocketFactory = (hostVerifier instanceof X509HostnameVerifier) ?
+                        new SSLSocketFactory(sslSocketFactory, (X509HostnameVerifier) hostVerifier) :
+                        new SSLSocketFactory(sslSocketFactory, SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+            }
+            else
+            {
+                negotiationSocketFactory = SolrHttpClientInitializer.getSocketFactory();
+            }
+        }
+        return httpClient;
+    }
+    
+    /**
+     * Creates an HTTP client to negotiate over. It's deliberately not created
+     * through HttpClientUtil, as the HttpClientConfigurer registered there by
+     * SolrHttpClientInitializer adds SolrJ's authentication to it: a Negotiate
+     * challenge in reply to a negotiation would have StaleTokenAuthScheme wait
+     * for a token from the very negotiation it's part of, and harvested tokens
+     * could land in the cache of whichever identity the thread happens to have.
+     * The pool has SolrJ's default limits.
+     */
+    static DefaultHttpClient newNegotiationClient()
+    {
+        DefaultHttpClient client = new DefaultHttpClient(new PoolingClientConnectionManager());
+        HttpClientUtil.setMaxConnections(client, ConnectionPoolSettings.SOLRJ_MAX_CONNECTIONS_DEFAULT);
+        HttpClientUtil.setMaxConnectionsPerHost(client, ConnectionPoolSettings.SOLRJ_MAX_CONNECTIONS_PER_HOST_DEFAULT);
+        return client;
+    }
+    
+    private synchronized SSLSocketFactory getNegotiationSocketFactory()
+    {
+        return negotiationSocketFactory;
+    }
+    
+    /**
+     * Stops background renewal of the shared Kerberos login, if there is one,
+     * and shuts down the HTTP client the provider created to negotiate over.
+     * A client supplied with Builder.httpClient is left for its owner to close.
+     */
+    public void close()
+    {
+        if (null != login)
+        {
+            login.close();
+        }
+        HttpClient created;
+        synchronized (this)
+        {
+            created = ownsHttpClient ? httpClient : null;
+        }
+        if (null != created)
+        {
+            created.getConnectionManager().shutdown();
+        }
+    }
+    
     public static class Builder
     {
         private File keytab;
         private Principal principal;
         private SSLContext sslContext;
         private HostnameVerifier verifier;
+        private boolean reuseLogin;
+        private boolean httpClientNegotiation;
+        private HttpClient httpClient;
+        private TlsSessionStats tlsSessionStats;
+        private int connectTimeoutMs;
+        private int readTimeoutMs;
         
         public Builder keytab(File keytab)
         {
@@ -104,6 +332,60 @@ public class AuthenticatedURLProvider
             return this;
         }
         
+        /**
+         * Whether to log in to Kerberos once and share the resulting Subject
+         * across all negotiations, or let Alfredo log in afresh for each one
+         * (the default).
+         */
+        public Builder reuseLogin(boolean reuseLogin)
+        {
+            this.reuseLogin = reuseLogin;
+            return this;
+        }
+        
+        /**
+         * Carry out SPNEGO negotiation over an HTTP Client, rather than Alfredo's
+         * HttpURLConnections. Unless a client is supplied with httpClient, one
+         * is created using SolrJ's HttpClientUtil. Implies reuseLogin.
+         */
+        public Builder httpClientNegotiation(boolean httpClientNegotiation)
+        {
+            this.httpClientNegotiation = httpClientNegotiation;
+            return this;
+        }
+        
+        /**
+         * The HttpClient to negotiate over, implies httpClientNegotiation.
+         */
+        public Builder httpClient(HttpClient httpClient)
+        {
+            this.httpClient = httpClient;
+            this.httpClientNegotiation = httpClient != null || httpClientNegotiation;
+            return this;
+        }
+        
+        /**
+         * Record TLS handshakes on negotiation connections here.
+         */
+        public Builder tlsSessionStats(TlsSessionStats tlsSessionStats)
+        {
+            this.tlsSessionStats = tlsSessionStats;
+            return this;
+        }
+        
+        /**
+         * Connect and read timeouts for each request made while negotiating,
+         * 0 meaning no timeout (the default). They apply to every negotiation,
+         * whether Alfredo logs in for it or it uses the shared Kerberos login,
+         * and whether it's carried out over Alfredo or HTTP Client.
+         */
+        public Builder timeouts(int connectTimeoutMs, int readTimeoutMs)
+        {
+            this.connectTimeoutMs = connectTimeoutMs;
+            this.readTimeoutMs = readTimeoutMs;
+            return this;
+        }
+        
         public AuthenticatedURLProvider build()
         {
             if ((keytab == null) != (principal == null))
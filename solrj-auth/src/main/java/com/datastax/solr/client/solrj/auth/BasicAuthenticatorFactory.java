@@ -0,0 +1,108 @@
+package com.datastax.solr.client.solrj.auth;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.message.BasicHeader;
+import org.apache.solr.client.solrj.impl.auth.HttpRequestAuthenticator;
+import org.apache.solr.client.solrj.impl.auth.HttpRequestAuthenticatorFactory;
+import org.apache.solr.common.SolrException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+/**
+ * Authenticates SolrJ requests with HTTP Basic authentication, for clusters using
+ * DSE's internal password authentication rather than Kerberos. There's no
+ * negotiation, and no KDC involved, the credentials go with every request.
+ *
+ * The Authorization header is built once and the same immutable header added
+ * to every request. Credentials are read from a Supplier on each request, so
+ * they can be rotated without restarting, e.g. with Suppliers.memoizeWithExpiration
+ * over a credentials file. The header is only rebuilt when the supplier hands
+ * back a different credentials instance, so the supplier should return the same
+ * one until the credentials actually change.
+ */
+public class BasicAuthenticatorFactory implements HttpRequestAuthenticatorFactory
+{
+    private static final Logger logger = LoggerFactory.getLogger(BasicAuthenticatorFactory.class);
+
+    static final String AUTHORIZATION = "Authorization";
+    private static final String BASIC_PREFIX = "Basic ";
+
+    private final Supplier<UsernamePasswordCredentials> credentials;
+    private final HttpRequestAuthenticator authenticator = new Authenticator();
+    private volatile EncodedCredentials current;
+
+    public BasicAuthenticatorFactory(String username, String password)
+    {
+        this(Suppliers.ofInstance(new UsernamePasswordCredentials(username, password)));
+    }
+
+    /**
+     * @param credentials consulted on every request, so must be cheap
+     */
+    public BasicAuthenticatorFactory(Supplier<UsernamePasswordCredentials> credentials)
+    {
+        this.credentials = credentials;
+    }
+
+    @Override
+    public HttpRequestAuthenticator getAuthenticator()
+    {
+        return authenticator;
+    }
+
+    /**
+     * Returns the Authorization header for the supplier's current credentials.
+     */
+    Header getHeader()
+    {
+        UsernamePasswordCredentials latest = credentials.get();
+        if (latest == null)
+        {
+            throw new SolrException(SolrException.ErrorCode.UNAUTHORIZED, "No credentials available for Basic authentication");
+        }
+        EncodedCredentials encoded = current;
+        if (encoded == null || encoded.credentials != latest)
+        {
+            // racing threads may each encode the new credentials, which is
+            // harmless, they produce equal headers
+            encoded = new EncodedCredentials(latest);
+            if (current != null)
+            {
+                logger.info("Credentials for Basic authentication changed, now authenticating as " + latest.getUserName());
+            }
+            current = encoded;
+        }
+        return encoded.header;
+    }
+
+    private static final class EncodedCredentials
+    {
+        private final UsernamePasswordCredentials credentials;
+        private final Header header;
+
+        private EncodedCredentials(UsernamePasswordCredentials credentials)
+        {
+            this.credentials = credentials;
+            String userPass = credentials.getUserName() + ":" + credentials.getPassword();
+            this.header = new BasicHeader(AUTHORIZATION,
+                                          BASIC_PREFIX + new String(Base64.encodeBase64(userPass.getBytes(Charsets.UTF_8)), Charsets.US_ASCII));
+        }
+    }
+
+    private class Authenticator implements HttpRequestAuthenticator
+    {
+        @Override
+        public HttpRequestBase setAuthenticationOptions(HttpRequestBase method) throws SolrException
+        {
+            method.addHeader(getHeader());
+            return method;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.datastax.solr.client.solrj.auth;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import com.cloudera.alfredo.client.AuthenticatedURL;
+import com.cloudera.alfredo.client.AuthenticatedURL.Token;
+
+/**
+ * An entry in SpnegoTokenCache. Holds the Alfredo token along with its expiry,
+ * parsed once when the token is obtained, and the immutable Cookie header which
+ * is added to every request authenticated with it. Checking and using a cached
+ * token is then just a long comparison, with nothing to allocate.
+ */
+public final class CachedToken
+{
+    static final long NEVER_EXPIRES = Long.MAX_VALUE;
+    static final long INVALID_EXPIRY = Long.MIN_VALUE;
+
+    private static final char ATTR_SEPARATOR = '&';
+    private static final String EXPIRES_ATTR = "e";
+
+    private final Token token;
+    private final long expires;
+    private final Header header;
+
+    // set by SpnegoTokenCache when the token is handed out, used to decide
+    // whether it's worth refreshing ahead of its expiry
+    volatile boolean accessed;
+
+    // last time the token was handed out, to within SpnegoTokenCache's access
+    // resolution, only tracked when its size or idle time is bounded
+    volatile long lastAccessed;
+
+    /**
+     * @param token the token obtained from the server
+     * @param notAfter time after which the token should no longer be used, even
+     * if its own expiry is later
+     * @param now the cache's current time, when the token counts as last used
+     */
+    CachedToken(Token token, long notAfter, long now)
+    {
+        this.token = token;
+        this.expires = Math.min(parseExpiry(token.toString()), notAfter);
+        // this is the HTTP Client equivalent of what Alfredo does for java.net.HttpUrlConnection
+        this.header = new BasicHeader("Cookie", AuthenticatedURL.AUTH_COOKIE + "=" + token);
+        this.lastAccessed = now;
+    }
+
+    public Token getToken()
+    {
+        return token;
+    }
+
+    public Header getHeader()
+    {
+        return header;
+    }
+
+    public long getExpires()
+    {
+        return expires;
+    }
+
+    public boolean isExpired(long now)
+    {
+        return now > expires;
+    }
+
+    /**
+     * Extracts the expiry time from the "e=" attribute of a token string.
+     *
+     * @return the expiry in ms since the epoch, NEVER_EXPIRES if the token has no
+     * expiry (e=-1) or INVALID_EXPIRY if the token is malformed or contains no
+     * expiry information at all
+     */
+    static long parseExpiry(String tokenString)
+    {
+        int length = tokenString.length();
+        int start = 0;
+        while (start < length)
+        {
+            int end = tokenString.indexOf(ATTR_SEPARATOR, start);
+            if (end == -1)
+            {
+                end = length;
+            }
+            if (end > start)
+            {
+                int separator = tokenString.indexOf('=', start);
+                if (separator == -1 || separator > end)
+                {
+                    // if the token string is invalid, treat it as expired so we
+                    // try to get a new token
+                    return INVALID_EXPIRY;
+                }
+                if (tokenString.regionMatches(start, EXPIRES_ATTR, 0, separator - start)
+                        && separator - start == EXPIRES_ATTR.length())
+                {
+                    try
+                    {
+                        long expires = Long.parseLong(tokenString.substring(separator + 1, end));
+                        return expires == -1 ? NEVER_EXPIRES : expires;
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        return INVALID_EXPIRY;
+                    }
+                }
+            }
+            start = end + 1;
+        }
+        // strange, the token appeared to contain no expiry information
+        // this should not happen, so something is up. lets treat it as
+        // expired, and try to grab a new one
+        return INVALID_EXPIRY;
+    }
+}
@@ -0,0 +1,85 @@
+package com.datastax.solr.client.solrj.auth;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.solr.client.solrj.impl.auth.HttpRequestAuthenticator;
+import org.apache.solr.client.solrj.impl.auth.HttpRequestAuthenticatorFactory;
+import org.apache.solr.common.SolrException;
+
+/**
+ * For servers which authenticate clients by the certificate they present during
+ * the TLS handshake, configured in the SSLContext given to initEncryption. There
+ * is then nothing to add to each request, so no Kerberos login, negotiation or
+ * token is needed.
+ *
+ * Optionally, SPNEGO can be kept as a fallback for servers which still ask for
+ * it. Requests are sent without a token until a server answers one with a
+ * Negotiate challenge, which the StaleTokenAuthScheme registered by
+ * SpnegoHttpClientConfigurer responds to by negotiating a token and retrying.
+ * From then on requests to that host carry its cached token, until it expires.
+ */
+public class ClientCertificateAuthenticatorFactory implements HttpRequestAuthenticatorFactory, TokenCacheLocator
+{
+    private static final HttpRequestAuthenticator CLIENT_CERTIFICATE_ONLY = new HttpRequestAuthenticator()
+    {
+        @Override
+        public HttpRequestBase setAuthenticationOptions(HttpRequestBase method) throws SolrException
+        {
+            // the certificate was, or will be, presented by the SSL socket factory
+            return method;
+        }
+    };
+
+    private final SpnegoAuthenticatorFactory negotiateFallback;
+    private final HttpRequestAuthenticator authenticator;
+
+    public ClientCertificateAuthenticatorFactory()
+    {
+        this(null);
+    }
+
+    /**
+     * @param negotiateFallback SPNEGO settings to use for servers which answer
+     * with a Negotiate challenge, or null to rely on the client certificate alone
+     */
+    public ClientCertificateAuthenticatorFactory(SpnegoAuthenticatorFactory negotiateFallback)
+    {
+        this.negotiateFallback = negotiateFallback;
+        this.authenticator = (negotiateFallback == null) ? CLIENT_CERTIFICATE_ONLY : new FallbackAuthenticator();
+    }
+
+    @Override
+    public HttpRequestAuthenticator getAuthenticator()
+    {
+        return authenticator;
+    }
+
+    /**
+     * @return the cache holding tokens for hosts which asked for SPNEGO, or
+     * null if there is no fallback
+     */
+    @Override
+    public SpnegoTokenCache getTokenCache()
+    {
+        return (negotiateFallback == null) ? null : negotiateFallback.getTokenCache();
+    }
+
+    public boolean hasNegotiateFallback()
+    {
+        return negotiateFallback != null;
+    }
+
+    private class FallbackAuthenticator implements HttpRequestAuthenticator
+    {
+        @Override
+        public HttpRequestBase setAuthenticationOptions(HttpRequestBase method) throws SolrException
+        {
+            // never negotiates up front, only once the server has asked for it
+            CachedToken token = negotiateFallback.getTokenCache().peekValidToken(method.getURI());
+            if (token != null)
+            {
+                method.addHeader(token.getHeader());
+            }
+            return method;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.datastax.solr.client.solrj.auth;
+
+/**
+ * Source of the wall clock time token expiry is measured against. Tests supply
+ * their own, so they can move time on rather than sleep.
+ */
+interface Clock
+{
+    Clock SYSTEM = new Clock()
+    {
+        @Override
+        public long currentTimeMillis()
+        {
+            return System.currentTimeMillis();
+        }
+    };
+
+    long currentTimeMillis();
+}
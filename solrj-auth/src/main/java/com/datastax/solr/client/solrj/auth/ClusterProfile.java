@@ -0,0 +1,325 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Everything needed to talk to one Solr cluster, kept apart from the settings
+ * for any other cluster the process talks to: its own SSLSocketFactory, HTTP
+ * client and connection pool, and, if it uses Kerberos, its own SPNEGO
+ * authenticator, login, token cache and stats. A negotiation storm or slow TLS
+ * handshakes against one cluster then can't use up the connections, negotiation
+ * threads or limits of another.
+ *
+ * SolrJ's HttpClientConfigurer and authenticator factory are process wide, so
+ * a profile's HttpSolrServers are created with the profile's own HTTP client,
+ * see newSolrServer, and requests are matched to the profile's authenticator
+ * by host, or by domain for clusters whose nodes come and go, see
+ * ClusterProfiles. Register profiles with SolrHttpClientInitializer.registerProfile.
+ */
+public class ClusterProfile
+{
+    private static final Logger logger = LoggerFactory.getLogger(ClusterProfile.class);
+
+    private final String name;
+    private final Set<String> hosts;
+    private final Set<String> domains;
+    private final TlsSessionStats tlsSessionStats = new TlsSessionStats();
+    private final DefaultHttpClient httpClient;
+    private final SpnegoAuthenticatorFactory authenticatorFactory;
+
+    private ClusterProfile(Builder builder)
+    {
+        this.name = builder.name;
+        this.hosts = Collections.unmodifiableSet(new LinkedHashSet<String>(builder.hosts));
+        this.domains = Collections.unmodifiableSet(new LinkedHashSet<String>(builder.domains));
+
+        SSLSocketFactory socketFactory = null;
+        if (builder.sslContext != null)
+        {
+            socketFactory = new SSLSocketFactory(tlsSessionStats.wrap(builder.sslContext.getSocketFactory()),
+                                                 (builder.verifier == null) ?
+                                                     SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER :
+                                                     builder.verifier);
+        }
+
+        // not created through HttpClientUtil, which would apply the process
+        // wide configurer rather than this profile's, but with its limits
+        this.httpClient = new DefaultHttpClient(new PoolingClientConnectionManager());
+        HttpClientUtil.setMaxConnections(httpClient, ConnectionPoolSettings.SOLRJ_MAX_CONNECTIONS_DEFAULT);
+        HttpClientUtil.setMaxConnectionsPerHost(httpClient, ConnectionPoolSettings.SOLRJ_MAX_CONNECTIONS_PER_HOST_DEFAULT);
+
+        SSLHttpClientConfigurer configurer;
+        if (builder.authentication != null)
+        {
+            SpnegoAuthenticatorFactory.Builder authentication = builder.authentication.copy()
+                                                                    .tlsSessionStats(tlsSessionStats);
+            if (builder.sslContext != null)
+            {
+                authentication.sslContext(builder.sslContext).hostnameVerifier(builder.verifier);
+            }
+            if (builder.httpClientNegotiation)
+            {
+                // a client of its own, negotiations over the profile's client
+                // would be authenticated by the profile's own configurer
+                authentication.httpClientNegotiation(true);
+            }
+            this.authenticatorFactory = authentication.build();
+            configurer = new SpnegoHttpClientConfigurer(socketFactory, builder.poolSettings, authenticatorFactory);
+        }
+        else
+        {
+            this.authenticatorFactory = null;
+            configurer = new SSLHttpClientConfigurer(socketFactory, builder.poolSettings);
+        }
+        configurer.configure(httpClient, builder.clientParams);
+        logger.info(String.format("Created profile %s for hosts %s and domains %s, %s, %s", name, hosts, domains,
+                                  builder.sslContext == null ? "without SSL" : "with SSL",
+                                  authenticatorFactory == null ? "without authentication" : "with Kerberos authentication"));
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the hosts whose requests are authenticated by this profile
+     */
+    public Set<String> getHosts()
+    {
+        return hosts;
+    }
+
+    /**
+     * @return the domains, without a leading dot, whose hosts all belong to
+     * this profile
+     */
+    public Set<String> getDomains()
+    {
+        return domains;
+    }
+
+    /**
+     * Whether requests to the host belong to this profile, as one of its hosts
+     * or a host within one of its domains.
+     */
+    public boolean matches(String host)
+    {
+        if (hosts.contains(host))
+        {
+            return true;
+        }
+        String lowerCase = host.toLowerCase(Locale.ENGLISH);
+        for (String domain : domains)
+        {
+            if (lowerCase.endsWith(domain)
+                && lowerCase.length() > domain.length()
+                && lowerCase.charAt(lowerCase.length() - domain.length() - 1) == '.')
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the HTTP client, with its own connection pool, used for requests
+     * to this cluster
+     */
+    public HttpClient getHttpClient()
+    {
+        return httpClient;
+    }
+
+    /**
+     * Creates an HttpSolrServer for one of this cluster's hosts, using the
+     * profile's HTTP client. The client is shared, shutting the server down
+     * leaves it open, see close.
+     */
+    public HttpSolrServer newSolrServer(String baseUrl)
+    {
+        String host = getHost(baseUrl);
+        if (!matches(host))
+        {
+            throw new IllegalArgumentException(String.format("Host %s is not part of profile %s", host, name));
+        }
+        return new HttpSolrServer(baseUrl, httpClient);
+    }
+
+    /**
+     * @return the SPNEGO authenticator factory for this cluster, or null if it
+     * doesn't use Kerberos
+     */
+    public SpnegoAuthenticatorFactory getAuthenticatorFactory()
+    {
+        return authenticatorFactory;
+    }
+
+    /**
+     * Counts of full and resumed TLS handshakes with this cluster's hosts.
+     */
+    public TlsSessionStats getTlsSessionStats()
+    {
+        return tlsSessionStats;
+    }
+
+    /**
+     * Closes the profile's connections and stops its token cache's background
+     * work. HttpSolrServers created by the profile can no longer be used.
+     */
+    public void close()
+    {
+        httpClient.getConnectionManager().shutdown();
+        if (authenticatorFactory != null)
+        {
+            authenticatorFactory.getTokenCache().close();
+        }
+    }
+
+    private static String getHost(String baseUrl)
+    {
+        try
+        {
+            return new URL(baseUrl).getHost();
+        }
+        catch (MalformedURLException e)
+        {
+            throw new IllegalArgumentException("Invalid Solr URL " + baseUrl, e);
+        }
+    }
+
+    public static class Builder
+    {
+        private final String name;
+        private final Set<String> hosts = new LinkedHashSet<String>();
+        private final Set<String> domains = new LinkedHashSet<String>();
+        private SSLContext sslContext;
+        private X509HostnameVerifier verifier;
+        private ConnectionPoolSettings poolSettings = ConnectionPoolSettings.DEFAULTS;
+        private SolrParams clientParams = new ModifiableSolrParams();
+        private SpnegoAuthenticatorFactory.Builder authentication;
+        private boolean httpClientNegotiation;
+
+        public Builder(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Solr base URLs of the cluster's nodes, whose hosts make up the profile.
+         */
+        public Builder baseUrls(String... baseUrls)
+        {
+            for (String baseUrl : baseUrls)
+            {
+                hosts.add(getHost(baseUrl));
+            }
+            return this;
+        }
+
+        /**
+         * Host names of the cluster's nodes, as they appear in request URLs.
+         */
+        public Builder hosts(String... hosts)
+        {
+            Collections.addAll(this.hosts, hosts);
+            return this;
+        }
+
+        /**
+         * Domains whose hosts all belong to the cluster, e.g. dc1.example.com
+         * for node1.dc1.example.com, so nodes added later needn't be listed.
+         * Hosts listed with hosts or baseUrls take precedence, in this profile
+         * and any other.
+         */
+        public Builder domains(String... domains)
+        {
+            for (String domain : domains)
+            {
+                String name = domain.startsWith(".") ? domain.substring(1) : domain;
+                if (name.isEmpty())
+                {
+                    throw new IllegalArgumentException("Invalid domain '" + domain + "' for profile " + this.name);
+                }
+                this.domains.add(name.toLowerCase(Locale.ENGLISH));
+            }
+            return this;
+        }
+
+        /**
+         * Use SSL for this cluster, with its own truststore and key material.
+         * Also used for SPNEGO negotiations with the cluster.
+         */
+        public Builder encryption(SSLContext sslContext, X509HostnameVerifier verifier)
+        {
+            this.sslContext = sslContext;
+            this.verifier = verifier;
+            return this;
+        }
+
+        public Builder poolSettings(ConnectionPoolSettings poolSettings)
+        {
+            this.poolSettings = poolSettings;
+            return this;
+        }
+
+        /**
+         * SolrJ HTTP client settings, e.g. HttpClientUtil.PROP_SO_TIMEOUT.
+         */
+        public Builder clientParams(SolrParams clientParams)
+        {
+            this.clientParams = clientParams;
+            return this;
+        }
+
+        /**
+         * Authenticate with Kerberos, using a SPNEGO authenticator built from
+         * these settings, which can include the principal and keytab for the
+         * cluster's realm. Any SSLContext set with encryption replaces the one
+         * in the settings, and later changes to them have no effect.
+         */
+        public Builder authentication(SpnegoAuthenticatorFactory.Builder authentication)
+        {
+            this.authentication = authentication.copy();
+            return this;
+        }
+
+        /**
+         * Negotiate over the profile's own HTTP client, rather than Alfredo's
+         * HttpURLConnections.
+         */
+        public Builder httpClientNegotiation()
+        {
+            this.httpClientNegotiation = true;
+            return this;
+        }
+
+        public ClusterProfile build()
+        {
+            if (hosts.isEmpty() && domains.isEmpty())
+            {
+                throw new IllegalStateException("Profile " + name + " has no hosts or domains");
+            }
+            return new ClusterProfile(this);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.solr.client.solrj.impl.auth.HttpRequestAuthenticator;
+import org.apache.solr.client.solrj.impl.auth.HttpRequestAuthenticatorFactory;
+import org.apache.solr.common.SolrException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The authenticator factory registered with SolrJ once ClusterProfiles are in
+ * use. Each request is authenticated by the profile its host belongs to, or by
+ * the default factory, e.g. the one set up by initAuthentication, if it belongs
+ * to none. Hosts are matched against the hosts listed by profiles first, then
+ * against their domains, the most specific domain winning. Requests to hosts of
+ * a profile without Kerberos, or with no default factory, are sent as they are.
+ */
+public class ClusterProfiles implements HttpRequestAuthenticatorFactory
+{
+    private static final Logger logger = LoggerFactory.getLogger(ClusterProfiles.class);
+
+    private final ConcurrentMap<String, ClusterProfile> profiles = new ConcurrentHashMap<String, ClusterProfile>();
+    private final ConcurrentMap<String, ClusterProfile> profilesByHost = new ConcurrentHashMap<String, ClusterProfile>();
+    private final ConcurrentMap<String, ClusterProfile> profilesByDomain = new ConcurrentHashMap<String, ClusterProfile>();
+    private volatile HttpRequestAuthenticatorFactory defaultFactory;
+    private final HttpRequestAuthenticator authenticator = new Authenticator();
+
+    /**
+     * @throws IllegalArgumentException if a profile of the same name, or one
+     * covering any of the same hosts or domains, is already registered
+     */
+    public synchronized void register(ClusterProfile profile)
+    {
+        if (profiles.containsKey(profile.getName()))
+        {
+            throw new IllegalArgumentException("Profile " + profile.getName() + " is already registered");
+        }
+        for (String host : profile.getHosts())
+        {
+            ClusterProfile existing = profilesByHost.get(host);
+            if (existing != null)
+            {
+                throw new IllegalArgumentException(String.format("Host %s of profile %s already belongs to profile %s",
+                                                                 host, profile.getName(), existing.getName()));
+            }
+        }
+        for (String domain : profile.getDomains())
+        {
+            ClusterProfile existing = profilesByDomain.get(domain);
+            if (existing != null)
+            {
+                throw new IllegalArgumentException(String.format("Domain %s of profile %s already belongs to profile %s",
+                                                                 domain, profile.getName(), existing.getName()));
+            }
+        }
+        profiles.put(profile.getName(), profile);
+        for (String host : profile.getHosts())
+        {
+            profilesByHost.put(host, profile);
+        }
+        for (String domain : profile.getDomains())
+        {
+            profilesByDomain.put(domain, profile);
+        }
+    }
+
+    public ClusterProfile getProfile(String name)
+    {
+        return profiles.get(name);
+    }
+
+    /**
+     * @return the profile requests to the host belong to, or null if none
+     */
+    public ClusterProfile getProfileForHost(String host)
+    {
+        ClusterProfile profile = profilesByHost.get(host);
+        if (profile != null || profilesByDomain.isEmpty())
+        {
+            return profile;
+        }
+        // longest domain first
+        String name = host.toLowerCase(Locale.ENGLISH);
+        for (int dot = name.indexOf('.'); dot != -1; dot = name.indexOf('.', dot + 1))
+        {
+            profile = profilesByDomain.get(name.substring(dot + 1));
+            if (profile != null)
+            {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    public Collection<ClusterProfile> getProfiles()
+    {
+        return Collections.unmodifiableCollection(new ArrayList<ClusterProfile>(profiles.values()));
+    }
+
+    /**
+     * @param defaultFactory authenticates requests to hosts which belong to no
+     * profile, or null to send them as they are
+     */
+    public void setDefaultFactory(HttpRequestAuthenticatorFactory defaultFactory)
+    {
+        this.defaultFactory = defaultFactory;
+    }
+
+    @Override
+    public HttpRequestAuthenticator getAuthenticator()
+    {
+        return authenticator;
+    }
+
+    private class Authenticator implements HttpRequestAuthenticator
+    {
+        @Override
+        public HttpRequestBase setAuthenticationOptions(HttpRequestBase method) throws SolrException
+        {
+            String host = method.getURI().getHost();
+            ClusterProfile profile = getProfileForHost(host);
+            if (profile == null && logger.isDebugEnabled())
+            {
+                logger.debug(String.format("No profile for host %s, using %s", host,
+                                           defaultFactory == null ? "no authentication" : "the default authentication"));
+            }
+            HttpRequestAuthenticatorFactory factory = (profile == null) ? defaultFactory : profile.getAuthenticatorFactory();
+            return (factory == null) ? method : factory.getAuthenticator().setAuthenticationOptions(method);
+        }
+    }
+}
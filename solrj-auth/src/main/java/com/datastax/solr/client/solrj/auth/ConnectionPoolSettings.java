@@ -0,0 +1,176 @@
+package com.datastax.solr.client.solrj.auth;
+
+/**
+ * Connection pool and keep-alive settings applied by SSLHttpClientConfigurer to
+ * every HTTP client SolrJ creates. Anything left unset keeps SolrJ's defaults.
+ */
+public class ConnectionPoolSettings
+{
+    public static final int HTTPS_PORT_DEFAULT = 443;
+    // what SolrJ's HttpClientConfigurer applies when given no limits
+    public static final int SOLRJ_MAX_CONNECTIONS_DEFAULT = 128;
+    public static final int SOLRJ_MAX_CONNECTIONS_PER_HOST_DEFAULT = 32;
+    public static final long REAPER_INTERVAL_MS_DEFAULT = 5000;
+
+    /**
+     * Leaves SolrJ's pool configuration as it is.
+     */
+    public static final ConnectionPoolSettings DEFAULTS = new Builder().build();
+
+    static final int UNSET = -1;
+
+    private final int maxConnections;
+    private final int maxConnectionsPerHost;
+    private final long keepAliveMs;
+    private final Boolean staleConnectionCheck;
+    private final long idleTimeoutMs;
+    private final long reaperIntervalMs;
+    private final int httpsPort;
+
+    private ConnectionPoolSettings(Builder builder)
+    {
+        this.maxConnections = builder.maxConnections;
+        this.maxConnectionsPerHost = builder.maxConnectionsPerHost;
+        this.keepAliveMs = builder.keepAliveMs;
+        this.staleConnectionCheck = builder.staleConnectionCheck;
+        this.idleTimeoutMs = builder.idleTimeoutMs;
+        this.reaperIntervalMs = builder.reaperIntervalMs;
+        this.httpsPort = builder.httpsPort;
+    }
+
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    public int getMaxConnectionsPerHost()
+    {
+        return maxConnectionsPerHost;
+    }
+
+    public long getKeepAliveMs()
+    {
+        return keepAliveMs;
+    }
+
+    public Boolean getStaleConnectionCheck()
+    {
+        return staleConnectionCheck;
+    }
+
+    public long getIdleTimeoutMs()
+    {
+        return idleTimeoutMs;
+    }
+
+    public long getReaperIntervalMs()
+    {
+        return reaperIntervalMs;
+    }
+
+    public int getHttpsPort()
+    {
+        return httpsPort;
+    }
+
+    public static class Builder
+    {
+        private int maxConnections = UNSET;
+        private int maxConnectionsPerHost = UNSET;
+        private long keepAliveMs = UNSET;
+        private Boolean staleConnectionCheck;
+        private long idleTimeoutMs = UNSET;
+        private long reaperIntervalMs = REAPER_INTERVAL_MS_DEFAULT;
+        private int httpsPort = HTTPS_PORT_DEFAULT;
+
+        /**
+         * Maximum number of pooled connections, across all Solr nodes.
+         */
+        public Builder maxConnections(int maxConnections)
+        {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * Maximum number of pooled connections to any one Solr node.
+         */
+        public Builder maxConnectionsPerHost(int maxConnectionsPerHost)
+        {
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+            return this;
+        }
+
+        /**
+         * How long an idle connection may be kept for reuse. A shorter keep-alive
+         * sent by the server takes precedence.
+         */
+        public Builder keepAliveMs(long keepAliveMs)
+        {
+            this.keepAliveMs = keepAliveMs;
+            return this;
+        }
+
+        /**
+         * Whether to check a pooled connection is still open before reusing it.
+         * This costs a short blocking read per request. With an idle timeout
+         * shorter than the server's, it is usually unnecessary.
+         */
+        public Builder staleConnectionCheck(boolean staleConnectionCheck)
+        {
+            this.staleConnectionCheck = staleConnectionCheck;
+            return this;
+        }
+
+        /**
+         * Close pooled connections which have been idle this long, or whose
+         * keep-alive has expired, from a background thread. Without this, such
+         * connections are only discovered when a request tries to reuse them.
+         */
+        public Builder idleTimeoutMs(long idleTimeoutMs)
+        {
+            this.idleTimeoutMs = idleTimeoutMs;
+            return this;
+        }
+
+        /**
+         * How often to look for idle and expired connections.
+         */
+        public Builder reaperIntervalMs(long reaperIntervalMs)
+        {
+            this.reaperIntervalMs = reaperIntervalMs;
+            return this;
+        }
+
+        /**
+         * Port used for https URLs which don't specify one. URLs with an
+         * explicit port always use it.
+         */
+        public Builder httpsPort(int httpsPort)
+        {
+            this.httpsPort = httpsPort;
+            return this;
+        }
+
+        public ConnectionPoolSettings build()
+        {
+            if (maxConnections != UNSET && maxConnections <= 0)
+            {
+                throw new IllegalStateException("Maximum connections must be positive");
+            }
+            if (maxConnectionsPerHost != UNSET && maxConnectionsPerHost <= 0)
+            {
+                throw new IllegalStateException("Maximum connections per host must be positive");
+            }
+            if (maxConnections != UNSET && maxConnectionsPerHost > maxConnections)
+            {
+                throw new IllegalStateException("Maximum connections per host cannot exceed the maximum connections");
+            }
+            if (reaperIntervalMs <= 0)
+            {
+                throw new IllegalStateException("Connection reaper interval must be positive");
+            }
+            return new ConnectionPoolSettings(this);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.LoginException;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpOptions;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+import org.ietf.jgss.GSSException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.alfredo.client.AuthenticatedURL;
+import com.cloudera.alfredo.client.AuthenticationException;
+import com.cloudera.alfredo.client.KerberosAuthenticator;
+
+/**
+ * An AuthenticatedURL which carries out the SPNEGO exchange over an HTTP Client
+ * instance, rather than the java.net.HttpURLConnections Alfredo opens for each
+ * negotiation. Negotiations then reuse pooled, keep-alive connections (and the
+ * SSLSocketFactory) of that client instead of paying for new TCP and TLS
+ * handshakes every time a token is needed.
+ *
+ * The GSS exchange runs as the Subject held by a KerberosLogin. The first
+ * request carries a Negotiate token straight away, without Alfredo's initial
+ * unauthenticated probe.
+ *
+ * If given an SSLSocketFactory, it is registered with the client for https
+ * before negotiating with an https URL, with the URL's port as the scheme's
+ * default port.
+ */
+class HttpClientAuthenticatedURL extends AuthenticatedURL
+{
+    private static final Logger logger = LoggerFactory.getLogger(HttpClientAuthenticatedURL.class);
+
+    // a well behaved server completes the exchange in one or two legs
+    private static final int MAX_LEGS = 4;
+
+    private final KerberosLogin login;
+    private final HttpClient httpClient;
+    private final SSLSocketFactory socketFactory;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    HttpClientAuthenticatedURL(KerberosLogin login, HttpClient httpClient, SSLSocketFactory socketFactory,
+                               int connectTimeoutMs, int readTimeoutMs)
+    {
+        this.login = login;
+        this.httpClient = httpClient;
+        this.socketFactory = socketFactory;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    @Override
+    public Token authenticateWithToken(final URL url, Token token) throws IOException, AuthenticationException
+    {
+        Subject subject;
+        try
+        {
+            subject = login.getSubject();
+        }
+        catch (LoginException e)
+        {
+            throw new AuthenticationException("Error logging in to Kerberos", e);
+        }
+
+        try
+        {
+            return Subject.doAs(subject, new PrivilegedExceptionAction<Token>() {
+                @Override
+                public Token run() throws IOException, AuthenticationException
+                {
+                    return negotiate(url);
+                }
+            });
+        }
+        catch (PrivilegedActionException e)
+        {
+            Exception cause = e.getException();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof AuthenticationException)
+            {
+                throw (AuthenticationException) cause;
+            }
+            throw new AuthenticationException(cause.getMessage(), cause);
+        }
+    }
+
+    private Token negotiate(URL url) throws IOException, AuthenticationException
+    {
+        logger.debug("Negotiating SPNEGO token for " + url + " using HTTP Client");
+        HttpHost target = getTarget(url);
+        NegotiateContext context;
+        try
+        {
+            context = createContext(url.getHost());
+        }
+        catch (GSSException e)
+        {
+            throw new AuthenticationException(e.getMessage(), e);
+        }
+
+        try
+        {
+            String challenge = null;
+            for (int leg = 0; leg < MAX_LEGS; leg++)
+            {
+                HttpOptions request = new HttpOptions(url.toURI());
+                // the token is handed back to the cache, don't let the client's
+                // cookie store pick it up as well
+                request.getParams().setParameter(ClientPNames.COOKIE_POLICY, CookiePolicy.IGNORE_COOKIES);
+                // the challenges are answered here, an auth scheme registered with
+                // the client, e.g. StaleTokenAuthScheme, mustn't answer them too
+                request.getParams().setBooleanParameter(ClientPNames.HANDLE_AUTHENTICATION, false);
+                // bound each leg, independently of the timeouts the client uses for Solr requests
+                if (connectTimeoutMs > 0)
+                {
+                    HttpConnectionParams.setConnectionTimeout(request.getParams(), connectTimeoutMs);
+                }
+                if (readTimeoutMs > 0)
+                {
+                    HttpConnectionParams.setSoTimeout(request.getParams(), readTimeoutMs);
+                }
+                String authorization = context.step(challenge);
+                if (authorization != null)
+                {
+                    request.setHeader(KerberosAuthenticator.AUTHORIZATION, authorization);
+                }
+
+                HttpResponse response = httpClient.execute(target, request);
+                try
+                {
+                    int status = response.getStatusLine().getStatusCode();
+                    challenge = NegotiateContext.getChallenge(response);
+                    if (status == HttpStatus.SC_OK)
+                    {
+                        if (challenge != null && challenge.length() > 0 && !context.isEstablished())
+                        {
+                            // final leg of mutual authentication
+                            context.step(challenge);
+                        }
+                        String tokenString = AuthCookies.getToken(response);
+                        if (tokenString == null)
+                        {
+                            throw new AuthenticationException("Authentication succeeded, but no token was returned by " + url);
+                        }
+                        return new Token(tokenString);
+                    }
+                    boolean rejected = challenge == null || (authorization != null && challenge.length() == 0);
+                    if (status != HttpStatus.SC_UNAUTHORIZED || rejected || context.isEstablished())
+                    {
+                        throw new AuthenticationException("Authentication failed, status: " + status
+                                                          + ", message: " + response.getStatusLine().getReasonPhrase());
+                    }
+                }
+                finally
+                {
+                    EntityUtils.consume(response.getEntity());
+                }
+            }
+            throw new AuthenticationException("SPNEGO negotiation with " + url + " did not complete after " + MAX_LEGS + " requests");
+        }
+        catch (GSSException e)
+        {
+            throw new AuthenticationException(e.getMessage(), e);
+        }
+        catch (URISyntaxException e)
+        {
+            throw new AuthenticationException(e.getMessage(), e);
+        }
+        finally
+        {
+            context.dispose();
+        }
+    }
+
+    /**
+     * Creates the GSS side of the exchange, overridden by tests to stand in
+     * for a KDC.
+     */
+    NegotiateContext createContext(String host) throws GSSException
+    {
+        return NegotiateContext.create(host);
+    }
+
+    private HttpHost getTarget(URL url)
+    {
+        int port = (url.getPort() == -1) ? url.getDefaultPort() : url.getPort();
+        if (socketFactory != null && "https".equalsIgnoreCase(url.getProtocol()))
+        {
+            SchemeRegistry registry = httpClient.getConnectionManager().getSchemeRegistry();
+            Scheme https = registry.get("https");
+            if (https == null || https.getSchemeSocketFactory() != socketFactory || https.getDefaultPort() != port)
+            {
+                registry.register(new Scheme("https", port, socketFactory));
+            }
+        }
+        return new HttpHost(url.getHost(), port, url.getProtocol());
+    }
+}
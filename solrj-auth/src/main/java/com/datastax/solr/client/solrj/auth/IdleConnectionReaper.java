@@ -0,0 +1,73 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Periodically closes expired and idle connections in the pools of SolrJ's HTTP
+ * clients, from a single shared daemon thread. Pools are only weakly referenced,
+ * so clients which are discarded without being shut down can still be collected,
+ * at which point they're dropped from the reaper.
+ */
+class IdleConnectionReaper
+{
+    private static final Logger logger = LoggerFactory.getLogger(IdleConnectionReaper.class);
+
+    private static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("solrj-idle-connection-reaper-%d")
+                .build());
+
+    static void register(ClientConnectionManager connectionManager, long idleTimeoutMs, long intervalMs)
+    {
+        Reap reap = new Reap(connectionManager, idleTimeoutMs);
+        reap.future = reaper.scheduleWithFixedDelay(reap, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static class Reap implements Runnable
+    {
+        private final WeakReference<ClientConnectionManager> connectionManager;
+        private final long idleTimeoutMs;
+        private volatile ScheduledFuture<?> future;
+
+        private Reap(ClientConnectionManager connectionManager, long idleTimeoutMs)
+        {
+            this.connectionManager = new WeakReference<ClientConnectionManager>(connectionManager);
+            this.idleTimeoutMs = idleTimeoutMs;
+        }
+
+        @Override
+        public void run()
+        {
+            ClientConnectionManager current = connectionManager.get();
+            if (current == null)
+            {
+                if (future != null)
+                {
+                    future.cancel(false);
+                }
+                return;
+            }
+            try
+            {
+                current.closeExpiredConnections();
+                current.closeIdleConnections(idleTimeoutMs, TimeUnit.MILLISECONDS);
+            }
+            catch (RuntimeException e)
+            {
+                // don't let one bad pool stop the reaper for the others
+                logger.debug("Error closing idle connections", e);
+            }
+        }
+    }
+}
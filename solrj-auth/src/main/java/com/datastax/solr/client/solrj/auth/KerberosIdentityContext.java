@@ -0,0 +1,129 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Selects the Kerberos principal which Solr requests made on the current thread
+ * authenticate as, when SolrJ is set up with several identities through 
+ * AuthenticationOptions.withIdentity or a MultiPrincipalAuthenticatorFactory.
+ * SolrJ gives authenticators nothing but the outgoing request, so the identity
+ * has to travel with the thread, e.g.
+ * 
+ * <pre>
+ *     KerberosIdentityContext.setPrincipal("tenant1@EXAMPLE.COM");
+ *     try
+ *     {
+ *         solrServer.query(query);
+ *     }
+ *     finally
+ *     {
+ *         KerberosIdentityContext.clear();
+ *     }
+ * </pre>
+ * 
+ * Requests made with no principal selected authenticate as the default identity,
+ * the one configured with AuthenticationOptions.withPrincipal or the ticket cache,
+ * unless AuthenticationOptions.withRequiredIdentity is set, in which case they
+ * fail.
+ *
+ * The selection isn't inherited by other threads, so work submitted to an
+ * executor should be wrapped to run as the submitting thread's principal:
+ *
+ * <pre>
+ *     executor.submit(KerberosIdentityContext.wrap(task));
+ * </pre>
+ */
+public final class KerberosIdentityContext
+{
+    private static final ThreadLocal<String> principal = new ThreadLocal<String>();
+
+    private KerberosIdentityContext()
+    {
+    }
+
+    /**
+     * @param name name of the principal to authenticate as, which must have been
+     * registered as an identity
+     */
+    public static void setPrincipal(String name)
+    {
+        principal.set(name);
+    }
+
+    /**
+     * @return the principal selected for the current thread, or null to use the
+     * default identity
+     */
+    public static String getPrincipal()
+    {
+        return principal.get();
+    }
+
+    public static void clear()
+    {
+        principal.remove();
+    }
+
+    /**
+     * Returns a Runnable which runs the task as the principal selected for the
+     * current thread, restoring the running thread's own selection afterwards.
+     */
+    public static Runnable wrap(final Runnable task)
+    {
+        final String selected = getPrincipal();
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                String previous = select(selected);
+                try
+                {
+                    task.run();
+                }
+                finally
+                {
+                    select(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * As wrap(Runnable), for a Callable.
+     */
+    public static <T> Callable<T> wrap(final Callable<T> task)
+    {
+        final String selected = getPrincipal();
+        return new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                String previous = select(selected);
+                try
+                {
+                    return task.call();
+                }
+                finally
+                {
+                    select(previous);
+                }
+            }
+        };
+    }
+
+    private static String select(String name)
+    {
+        String previous = principal.get();
+        if (name == null)
+        {
+            principal.remove();
+        }
+        else
+        {
+            principal.set(name);
+        }
+        return previous;
+    }
+}
@@ -0,0 +1,336 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.File;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Performs a single JAAS Kerberos login, either from a keytab or the local ticket
+ * cache, and holds on to the resulting Subject so that its TGT and any service
+ * tickets obtained with it can be reused for every SPNEGO negotiation. Without
+ * this, each negotiation would log in again and fetch a new TGT from the KDC.
+ *
+ * The login happens on first use. After that, a background thread logs in again
+ * shortly before the TGT expires, swapping in the new Subject once it's ready.
+ * In ticket cache mode, the credential cache file is also watched, and re-read
+ * only when it changes (e.g. after a kinit). Only one renewal is ever pending,
+ * each login replaces it with one timed for the new TGT, and a failed login
+ * with a retry.
+ */
+public class KerberosLogin
+{
+    private static final Logger logger = LoggerFactory.getLogger(KerberosLogin.class);
+
+    private static final String LOGIN_MODULE = "com.sun.security.auth.module.Krb5LoginModule";
+    private static final String LOGIN_ENTRY = "solrj-auth";
+    private static final String UNIX_SYSTEM = "com.sun.security.auth.module.UnixSystem";
+
+    // renew once this fraction of the TGT lifetime has passed
+    static final double RENEW_RATIO = 0.8;
+    static final long MIN_RENEW_DELAY_MS = 60 * 1000;
+    static final long TICKET_CACHE_CHECK_MS = 60 * 1000;
+
+    private final File keytab;
+    private final Principal principal;
+    private final File ticketCache;
+    private volatile Subject subject;
+    private volatile long ticketCacheModified;
+    private ScheduledExecutorService renewer;
+    private ScheduledFuture<?> renewal;
+    private boolean closed;
+
+    /**
+     * @param keytab keytab file to log in with, or null to use the ticket cache
+     * @param principal principal to log in as, must be supplied with a keytab
+     */
+    public KerberosLogin(File keytab, Principal principal)
+    {
+        if ((keytab == null) != (principal == null))
+        {
+            throw new IllegalStateException("Please supply both a keytab and Principal");
+        }
+        this.keytab = keytab;
+        this.principal = principal;
+        this.ticketCache = (keytab == null) ? findTicketCache() : null;
+    }
+
+    /**
+     * Returns the logged in Subject, performing the initial login if necessary.
+     */
+    public Subject getSubject() throws LoginException
+    {
+        Subject current = subject;
+        if (current == null)
+        {
+            synchronized (this)
+            {
+                current = subject;
+                if (current == null)
+                {
+                    current = login();
+                    subject = current;
+                    startRenewer();
+                    scheduleRenewal(current);
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Stops background renewal, and the ticket cache watch. The current Subject
+     * remains usable until its tickets expire, and a first login after closing
+     * isn't renewed.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        if (renewer != null)
+        {
+            renewer.shutdownNow();
+        }
+    }
+
+    /**
+     * Performs the JAAS login, overridden by tests to stand in for a KDC.
+     */
+    Subject login() throws LoginException
+    {
+        if (ticketCache != null)
+        {
+            // note the modification time before logging in, so a change made
+            // during the login is still picked up next time around
+            ticketCacheModified = ticketCache.lastModified();
+        }
+        Subject newSubject = new Subject();
+        LoginContext login = new LoginContext(LOGIN_ENTRY, newSubject, null, new KerberosConfiguration());
+        login.login();
+        if (keytab != null)
+        {
+            logger.info(String.format("Logged in to Kerberos as %s using keytab %s", principal.getName(), keytab));
+        }
+        else
+        {
+            logger.info("Logged in to Kerberos using credentials from ticket cache");
+        }
+        return newSubject;
+    }
+
+    void relogin()
+    {
+        try
+        {
+            // the previous Subject isn't logged out, negotiations already using
+            // it will complete with its still valid tickets
+            Subject newSubject = login();
+            subject = newSubject;
+            scheduleRenewal(newSubject);
+        }
+        catch (LoginException e)
+        {
+            logger.warn("Error renewing Kerberos login, will retry", e);
+            schedule(new Renewal(), MIN_RENEW_DELAY_MS);
+        }
+    }
+
+    private synchronized void startRenewer()
+    {
+        if (closed)
+        {
+            return;
+        }
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("kerberos-login-renewal-%d")
+                    .build());
+        // don't keep replaced renewals queued until they were due
+        executor.setRemoveOnCancelPolicy(true);
+        renewer = executor;
+
+        if (ticketCache != null)
+        {
+            logger.debug("Watching Kerberos ticket cache " + ticketCache + " for changes");
+            renewer.scheduleWithFixedDelay(new TicketCacheCheck(),
+                    TICKET_CACHE_CHECK_MS, TICKET_CACHE_CHECK_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void scheduleRenewal(Subject loggedIn)
+    {
+        KerberosTicket tgt = getTGT(loggedIn);
+        if (tgt == null)
+        {
+            logger.warn("No TGT found after Kerberos login, it will not be renewed");
+            return;
+        }
+        long start = tgt.getStartTime().getTime();
+        long end = tgt.getEndTime().getTime();
+        long renewAt = start + (long) ((end - start) * RENEW_RATIO);
+        long delay = Math.max(renewAt - System.currentTimeMillis(), MIN_RENEW_DELAY_MS);
+        logger.debug(String.format("TGT expires at %s, scheduling Kerberos login renewal in %s ms", tgt.getEndTime(), delay));
+        schedule(new Renewal(), delay);
+    }
+
+    /**
+     * Replaces the pending renewal, if any, so logins triggered by the ticket
+     * cache or by failures don't each start their own chain of renewals.
+     */
+    private synchronized void schedule(Runnable task, long delay)
+    {
+        if (renewal != null)
+        {
+            renewal.cancel(false);
+            renewal = null;
+        }
+        if (renewer != null && !renewer.isShutdown())
+        {
+            renewal = renewer.schedule(task, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the pending renewal, or null if none is scheduled
+     */
+    synchronized ScheduledFuture<?> getRenewal()
+    {
+        return renewal;
+    }
+
+    private static KerberosTicket getTGT(Subject subject)
+    {
+        for (KerberosTicket ticket : subject.getPrivateCredentials(KerberosTicket.class))
+        {
+            Principal server = ticket.getServer();
+            if (server.getName().startsWith("krbtgt/"))
+            {
+                return ticket;
+            }
+        }
+        return null;
+    }
+
+    private static File findTicketCache()
+    {
+        String name = System.getenv("KRB5CCNAME");
+        if (name != null)
+        {
+            // only file based caches can be watched for changes
+            if (name.startsWith("FILE:"))
+            {
+                return new File(name.substring("FILE:".length()));
+            }
+            return name.indexOf(':') == -1 ? new File(name) : null;
+        }
+        Long uid = getUid();
+        return uid == null ? null : new File("/tmp/krb5cc_" + uid);
+    }
+
+    /**
+     * Looks up the current user's uid through the JDK's UnixSystem, where there
+     * is one. It's loaded reflectively so JVMs without it, or platforms other
+     * than unix, just fall back to the login module's own default cache.
+     */
+    private static Long getUid()
+    {
+        try
+        {
+            Class<?> unixSystem = Class.forName(UNIX_SYSTEM);
+            return (Long) unixSystem.getMethod("getUid").invoke(unixSystem.newInstance());
+        }
+        catch (Exception e)
+        {
+            logger.debug("Unable to determine location of Kerberos ticket cache", e);
+            return null;
+        }
+        catch (LinkageError e)
+        {
+            // the native part of UnixSystem isn't available
+            logger.debug("Unable to determine location of Kerberos ticket cache", e);
+            return null;
+        }
+    }
+
+    private class Renewal implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            logger.debug("Renewing Kerberos login");
+            relogin();
+        }
+    }
+
+    private class TicketCacheCheck implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            long modified = ticketCache.lastModified();
+            if (modified != 0 && modified != ticketCacheModified)
+            {
+                logger.debug("Kerberos ticket cache " + ticketCache + " has changed, logging in again");
+                relogin();
+            }
+        }
+    }
+
+    /**
+     * JAAS configuration for the Kerberos login module, so clients don't need
+     * to supply a JAAS config file of their own.
+     */
+    private class KerberosConfiguration extends Configuration
+    {
+        @Override
+        public AppConfigurationEntry[] getAppConfigurationEntry(String name)
+        {
+            Map<String, String> options = new HashMap<String, String>();
+            options.put("doNotPrompt", "true");
+            options.put("refreshKrb5Config", "true");
+            options.put("isInitiator", "true");
+            if (keytab != null)
+            {
+                options.put("useKeyTab", "true");
+                options.put("keyTab", keytab.getAbsolutePath());
+                options.put("principal", principal.getName());
+                options.put("storeKey", "true");
+                options.put("useTicketCache", "false");
+            }
+            else
+            {
+                options.put("useTicketCache", "true");
+                options.put("renewTGT", "true");
+                if (ticketCache != null)
+                {
+                    options.put("ticketCache", ticketCache.getAbsolutePath());
+                }
+            }
+            if (logger.isDebugEnabled())
+            {
+                options.put("debug", "true");
+            }
+            return new AppConfigurationEntry[] {
+                    new AppConfigurationEntry(LOGIN_MODULE,
+                                              AppConfigurationEntry.LoginModuleControlFlag.REQUIRED,
+                                              options)
+            };
+        }
+    }
+}
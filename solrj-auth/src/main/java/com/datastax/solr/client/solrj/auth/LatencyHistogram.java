@@ -0,0 +1,99 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies, with fixed buckets covering the range
+ * from a local KDC (around a millisecond) to a timed out one (tens of seconds).
+ * Percentiles are reported as the upper bound of the bucket they fall in.
+ */
+public final class LatencyHistogram
+{
+    // upper bounds of each bucket in ms, the last bucket has no upper bound
+    private static final long[] BUCKETS_MS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS_MS.length + 1);
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos)
+    {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < BUCKETS_MS.length && millis > BUCKETS_MS[bucket])
+        {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+        {
+            max = maxNanos.get();
+        }
+    }
+
+    public long getCount()
+    {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public double getMeanMillis()
+    {
+        long count = getCount();
+        return count == 0 ? 0 : (double) totalNanos.get() / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public long getMaxMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+    }
+
+    /**
+     * @param percentile in the range (0, 100]
+     * @return the upper bound of the bucket containing the percentile, or the
+     * maximum recorded latency if it falls in the last, unbounded bucket
+     */
+    public long getPercentileMillis(double percentile)
+    {
+        long count = getCount();
+        if (count == 0)
+        {
+            return 0;
+        }
+        long target = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS_MS.length; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= target)
+            {
+                return Math.min(BUCKETS_MS[i], getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * Returns the count in each bucket, keyed by its upper bound, e.g. "<=50ms".
+     */
+    public Map<String, Long> getBuckets()
+    {
+        Map<String, Long> buckets = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < BUCKETS_MS.length; i++)
+        {
+            buckets.put("<=" + BUCKETS_MS[i] + "ms", counts.get(i));
+        }
+        buckets.put(">" + BUCKETS_MS[BUCKETS_MS.length - 1] + "ms", counts.get(BUCKETS_MS.length));
+        return buckets;
+    }
+}
@@ -0,0 +1,174 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.File;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.solr.client.solrj.impl.auth.HttpRequestAuthenticator;
+import org.apache.solr.client.solrj.impl.auth.HttpRequestAuthenticatorFactory;
+import org.apache.solr.common.SolrException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Authenticates each request as the Kerberos principal selected for the current
+ * thread with KerberosIdentityContext, so one process, and one set of pooled
+ * SolrJ HTTP clients, can serve many identities, e.g. the tenants of a gateway.
+ *
+ * Each identity gets its own SpnegoAuthenticatorFactory, built from a common
+ * template with the identity's principal and keytab. Tokens are therefore
+ * cached per principal and host, and each principal logs in to Kerberos once,
+ * with its Subject shared by all of its negotiations. All identities negotiate
+ * on the default identity's threads and within its limits, so adding
+ * identities doesn't add load on the KDC. Requests with no principal selected
+ * use the template's own identity, or fail if an identity is required.
+ *
+ * The principal is selected per thread, so work handed to another thread,
+ * e.g. an executor, must carry it along with KerberosIdentityContext.wrap.
+ *
+ * Identities can be added while the application is running, with addIdentity.
+ */
+public class MultiPrincipalAuthenticatorFactory implements HttpRequestAuthenticatorFactory, TokenCacheLocator
+{
+    private static final Logger logger = LoggerFactory.getLogger(MultiPrincipalAuthenticatorFactory.class);
+
+    private final SpnegoAuthenticatorFactory.Builder template;
+    private final String mbeanName;
+    private final SpnegoAuthenticatorFactory defaultFactory;
+    private final boolean requireIdentity;
+    private final ConcurrentMap<String, SpnegoAuthenticatorFactory> factories = new ConcurrentHashMap<String, SpnegoAuthenticatorFactory>();
+    private final Map<String, File> keytabs = new HashMap<String, File>();
+    private final HttpRequestAuthenticator authenticator = new Authenticator();
+
+    /**
+     * @param template settings shared by all identities, along with the default
+     * identity's principal and keytab, if any. Later changes to it have no effect.
+     * @param mbeanName if not null, each identity's token cache is published over
+     * JMX with this name, followed by the principal for all but the default
+     */
+    public MultiPrincipalAuthenticatorFactory(SpnegoAuthenticatorFactory.Builder template, String mbeanName)
+    {
+        this(template, mbeanName, false);
+    }
+
+    /**
+     * @param requireIdentity if true, requests made with no principal selected
+     * fail rather than using the default identity, so work which has lost its
+     * KerberosIdentityContext, e.g. by moving to another thread, isn't
+     * silently made as someone else
+     */
+    public MultiPrincipalAuthenticatorFactory(SpnegoAuthenticatorFactory.Builder template, String mbeanName, boolean requireIdentity)
+    {
+        this.template = template.copy();
+        this.mbeanName = mbeanName;
+        this.requireIdentity = requireIdentity;
+        this.defaultFactory = this.template.copy().mbeanName(mbeanName).build();
+        this.template.negotiationPool(defaultFactory.getTokenCache().getNegotiationPool());
+    }
+
+    /**
+     * Registers an identity requests can be made as. Adding a principal which
+     * is already registered with the same keytab has no effect.
+     *
+     * @throws IllegalArgumentException if the principal is already registered
+     * with a different keytab
+     */
+    public synchronized void addIdentity(Principal principal, File keytab)
+    {
+        String name = principal.getName();
+        if (factories.containsKey(name))
+        {
+            File registered = keytabs.get(name);
+            if (!registered.getAbsoluteFile().equals(keytab.getAbsoluteFile()))
+            {
+                throw new IllegalArgumentException(String.format("Kerberos identity %s is already registered with keytab %s, not %s",
+                                                                 name, registered, keytab));
+            }
+            return;
+        }
+        SpnegoAuthenticatorFactory factory = template.copy()
+                                                     .principal(principal)
+                                                     .keytab(keytab)
+                                                     .mbeanName(mbeanName == null ? null : mbeanName + "-" + name)
+                                                     .build();
+        keytabs.put(name, keytab);
+        factories.put(name, factory);
+        logger.info(String.format("Registered Kerberos identity %s using keytab %s", name, keytab));
+    }
+
+    /**
+     * @return names of the principals registered with addIdentity
+     */
+    public Set<String> getPrincipals()
+    {
+        return Collections.unmodifiableSet(factories.keySet());
+    }
+
+    /**
+     * Returns the factory for the principal selected for the current thread, or
+     * the default one if none is selected.
+     *
+     * @throws SolrException if the selected principal hasn't been registered,
+     * or none is selected and an identity is required
+     */
+    public SpnegoAuthenticatorFactory getFactory()
+    {
+        String principal = KerberosIdentityContext.getPrincipal();
+        if (principal == null)
+        {
+            if (requireIdentity)
+            {
+                throw new SolrException(SolrException.ErrorCode.UNAUTHORIZED,
+                                        "No Kerberos identity selected for the current thread, see KerberosIdentityContext");
+            }
+            return defaultFactory;
+        }
+        SpnegoAuthenticatorFactory factory = factories.get(principal);
+        if (factory == null)
+        {
+            throw new SolrException(SolrException.ErrorCode.UNAUTHORIZED,
+                                    "No Kerberos identity has been registered for principal " + principal);
+        }
+        return factory;
+    }
+
+    /**
+     * Closes the token caches of every identity, then the default identity's,
+     * whose negotiation threads they share.
+     */
+    public synchronized void close()
+    {
+        for (SpnegoAuthenticatorFactory factory : factories.values())
+        {
+            factory.getTokenCache().close();
+        }
+        defaultFactory.getTokenCache().close();
+    }
+
+    @Override
+    public HttpRequestAuthenticator getAuthenticator()
+    {
+        return authenticator;
+    }
+
+    @Override
+    public SpnegoTokenCache getTokenCache()
+    {
+        return getFactory().getTokenCache();
+    }
+
+    private class Authenticator implements HttpRequestAuthenticator
+    {
+        @Override
+        public HttpRequestBase setAuthenticationOptions(HttpRequestBase method) throws SolrException
+        {
+            return getFactory().getAuthenticator().setAuthenticationOptions(method);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.UnsupportedEncodingException;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.Oid;
+
+import com.cloudera.alfredo.client.KerberosAuthenticator;
+
+/**
+ * Client side of a single SPNEGO exchange with a host, producing the values for
+ * "Authorization: Negotiate" request headers from the server's challenges. Must
+ * be created and stepped inside Subject.doAs, so the GSS layer can find the
+ * Kerberos credentials to use.
+ */
+final class NegotiateContext
+{
+    static final String NEGOTIATE_PREFIX = KerberosAuthenticator.NEGOTIATE + " ";
+
+    private static final Oid KRB5_MECH;
+    static
+    {
+        try
+        {
+            KRB5_MECH = new Oid("1.2.840.113554.1.2.2");
+        }
+        catch (GSSException e)
+        {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final GSSContext context;
+
+    NegotiateContext(GSSContext context)
+    {
+        this.context = context;
+    }
+
+    /**
+     * @param host the server to authenticate to, whose service principal is HTTP/host
+     */
+    static NegotiateContext create(String host) throws GSSException
+    {
+        GSSManager manager = GSSManager.getInstance();
+        GSSName service = manager.createName("HTTP@" + host, GSSName.NT_HOSTBASED_SERVICE);
+        GSSContext context = manager.createContext(service, KRB5_MECH, null, GSSContext.DEFAULT_LIFETIME);
+        context.requestMutualAuth(true);
+        context.requestCredDeleg(false);
+        return new NegotiateContext(context);
+    }
+
+    /**
+     * Processes the server's challenge, if any, and returns the Authorization
+     * header value to send in response, or null if there is nothing to send.
+     *
+     * @param challenge base64 encoded token from the server's WWW-Authenticate
+     * header, or null to start the exchange
+     */
+    String step(String challenge) throws GSSException
+    {
+        byte[] in = (challenge == null) ? new byte[0] : Base64.decodeBase64(challenge);
+        byte[] out = context.initSecContext(in, 0, in.length);
+        if (out == null)
+        {
+            return null;
+        }
+        try
+        {
+            return NEGOTIATE_PREFIX + new String(Base64.encodeBase64(out), "US-ASCII");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    boolean isEstablished()
+    {
+        return context.isEstablished();
+    }
+
+    void dispose()
+    {
+        try
+        {
+            context.dispose();
+        }
+        catch (GSSException e)
+        {
+            // nothing to be done, the context is being discarded anyway
+        }
+    }
+
+    /**
+     * Returns the token from a "WWW-Authenticate: Negotiate" response header, an
+     * empty string if the server asked for Negotiate without supplying one, or
+     * null if it didn't ask for Negotiate at all.
+     */
+    static String getChallenge(HttpResponse response)
+    {
+        for (Header header : response.getHeaders(KerberosAuthenticator.WWW_AUTHENTICATE))
+        {
+            String value = header.getValue().trim();
+            if (value.regionMatches(true, 0, KerberosAuthenticator.NEGOTIATE, 0, KerberosAuthenticator.NEGOTIATE.length()))
+            {
+                return value.substring(KerberosAuthenticator.NEGOTIATE.length()).trim();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,173 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.solr.common.SolrException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers failed negotiations per host, so a host whose negotiations keep
+ * failing isn't sent a new handshake for every request. Once a host has failed
+ * failureThreshold times in a row its circuit opens, and requests needing a new
+ * token for it fail straight away with the last error. The circuit stays open
+ * for an exponentially increasing backoff, with jitter so that many clients
+ * don't all retry together. After that, the next request is allowed to try a
+ * negotiation, concurrent ones sharing it as usual: if it succeeds the host is
+ * forgotten, if not the circuit opens again for longer.
+ */
+class NegotiationCircuitBreaker
+{
+    private static final Logger logger = LoggerFactory.getLogger(NegotiationCircuitBreaker.class);
+
+    // backoffs vary randomly by up to this fraction, downwards
+    static final double JITTER = 0.5;
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+    private final int failureThreshold;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final Clock clock;
+    private final Random random = new Random();
+
+    /**
+     * @param failureThreshold consecutive failures after which the circuit opens,
+     * 0 disables the circuit breaker altogether
+     * @param initialBackoffMs how long the circuit first stays open
+     * @param maxBackoffMs upper limit on how long the circuit stays open
+     */
+    NegotiationCircuitBreaker(int failureThreshold, long initialBackoffMs, long maxBackoffMs, Clock clock)
+    {
+        if (failureThreshold < 0 || initialBackoffMs < 0 || maxBackoffMs < initialBackoffMs)
+        {
+            throw new IllegalArgumentException(String.format("Invalid negotiation backoff, threshold %s, initial %s ms, max %s ms",
+                                                             failureThreshold, initialBackoffMs, maxBackoffMs));
+        }
+        this.failureThreshold = failureThreshold;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.clock = clock;
+    }
+
+    /**
+     * Throws the last error for the host if its circuit is open.
+     */
+    void checkClosed(String key) throws SolrException
+    {
+        if (circuits.isEmpty())
+        {
+            return;
+        }
+        Circuit circuit = circuits.get(key);
+        if (circuit != null)
+        {
+            circuit.checkClosed(key);
+        }
+    }
+
+    void recordSuccess(String key)
+    {
+        if (!circuits.isEmpty() && circuits.remove(key) != null)
+        {
+            logger.info("Negotiation with " + key + " succeeded, closing circuit");
+        }
+    }
+
+    void recordFailure(String key, Throwable error)
+    {
+        if (failureThreshold == 0)
+        {
+            return;
+        }
+        Circuit circuit = circuits.get(key);
+        if (circuit == null)
+        {
+            Circuit created = new Circuit();
+            circuit = circuits.putIfAbsent(key, created);
+            if (circuit == null)
+            {
+                circuit = created;
+            }
+        }
+        circuit.recordFailure(key, error);
+    }
+
+    /**
+     * Drops the host's failure history, e.g. once the cache holds nothing else
+     * for it.
+     */
+    void forget(String key)
+    {
+        circuits.remove(key);
+    }
+
+    /**
+     * Drops circuits with no failure for longer than the maximum backoff since
+     * they last closed, for hosts which haven't been negotiated with since.
+     */
+    void prune()
+    {
+        long now = clock.currentTimeMillis();
+        for (Map.Entry<String, Circuit> entry : circuits.entrySet())
+        {
+            if (entry.getValue().isStale(now))
+            {
+                circuits.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    int getCircuitCount()
+    {
+        return circuits.size();
+    }
+
+    private long backoff(int failures)
+    {
+        int doublings = Math.min(failures - failureThreshold, 30);
+        long backoff = Math.min(initialBackoffMs << doublings, maxBackoffMs);
+        return backoff - (long) (backoff * JITTER * random.nextDouble());
+    }
+
+    private class Circuit
+    {
+        private int failures;
+        private long lastFailure;
+        private long openUntil;
+        private Throwable lastError;
+
+        synchronized void checkClosed(String key)
+        {
+            long remaining = openUntil - clock.currentTimeMillis();
+            if (failures >= failureThreshold && remaining > 0)
+            {
+                throw new SolrException(SolrException.ErrorCode.UNAUTHORIZED,
+                                        String.format("Not negotiating with %s for another %s ms after %s consecutive failures: %s",
+                                                      key, remaining, failures, lastError.getMessage()),
+                                        lastError);
+            }
+        }
+
+        synchronized boolean isStale(long now)
+        {
+            return now - Math.max(lastFailure, openUntil) > maxBackoffMs;
+        }
+
+        synchronized void recordFailure(String key, Throwable error)
+        {
+            failures++;
+            lastError = error;
+            lastFailure = clock.currentTimeMillis();
+            if (failures >= failureThreshold)
+            {
+                long backoff = backoff(failures);
+                openUntil = lastFailure + backoff;
+                logger.warn(String.format("Negotiation with %s failed %s times in a row, failing fast for %s ms: %s",
+                                          key, failures, backoff, error.getMessage()));
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the negotiations a SpnegoTokenCache runs at once, and optionally how
+ * many it starts per second using a token bucket, to protect the KDC when many
+ * tokens are needed together, e.g. after a restart or when a whole cluster's
+ * tokens expire at the same time.
+ *
+ * Negotiations wait their turn in first come, first served order, with those
+ * for hosts which have no valid token at all served before refreshes of tokens
+ * which are still usable. Each waits only until its deadline.
+ */
+class NegotiationLimiter
+{
+    enum Priority
+    {
+        /** a request is waiting on the token */
+        DEMAND,
+        /** the current token is still valid */
+        REFRESH
+    }
+
+    private final int maxConcurrent;
+    private final double permitsPerNano;
+    private final double burst;
+    private final boolean enabled;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Deque<Condition> demand = new ArrayDeque<Condition>();
+    private final Deque<Condition> refresh = new ArrayDeque<Condition>();
+    private int inFlight;
+    private double permits;
+    private long lastRefill;
+
+    /**
+     * @param maxConcurrent maximum negotiations in flight, 0 for no limit
+     * @param ratePerSecond maximum negotiations started per second, 0 for no limit
+     * @param burst number of negotiations which can be started at once after
+     * a quiet period, when rate limited
+     */
+    NegotiationLimiter(int maxConcurrent, double ratePerSecond, double burst)
+    {
+        if (maxConcurrent < 0 || ratePerSecond < 0 || (ratePerSecond > 0 && burst < 1))
+        {
+            throw new IllegalArgumentException(String.format("Invalid negotiation limits, max concurrent %s, rate %s/s, burst %s",
+                                                             maxConcurrent, ratePerSecond, burst));
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.permitsPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.enabled = maxConcurrent > 0 || ratePerSecond > 0;
+        this.permits = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Waits for a turn to negotiate, which must be handed back with release.
+     * With a timeout of 0, or less, a turn is only taken if it's free now.
+     *
+     * @return false if the timeout passed first
+     */
+    boolean acquire(Priority priority, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        if (!enabled)
+        {
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Deque<Condition> queue = (priority == Priority.DEMAND) ? demand : refresh;
+        lock.lockInterruptibly();
+        try
+        {
+            Condition turn = lock.newCondition();
+            queue.addLast(turn);
+            boolean acquired = false;
+            try
+            {
+                while (true)
+                {
+                    long now = System.nanoTime();
+                    long wait = deadline - now;
+                    if (head() == turn && (maxConcurrent == 0 || inFlight < maxConcurrent))
+                    {
+                        long untilPermit = untilPermit(now);
+                        if (untilPermit == 0)
+                        {
+                            queue.removeFirst();
+                            inFlight++;
+                            acquired = true;
+                            // let the next in line check whether it can go too
+                            signalHead();
+                            return true;
+                        }
+                        wait = Math.min(wait, untilPermit);
+                    }
+                    // the deadline only counts once there's no turn to be had
+                    // without waiting, so a timeout of 0 still gets a free one
+                    if (deadline - now <= 0)
+                    {
+                        return false;
+                    }
+                    turn.awaitNanos(wait);
+                }
+            }
+            finally
+            {
+                if (!acquired)
+                {
+                    // timed out or interrupted, give up our place
+                    boolean wasHead = head() == turn;
+                    queue.remove(turn);
+                    if (wasHead)
+                    {
+                        signalHead();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    void release()
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        lock.lock();
+        try
+        {
+            inFlight--;
+            signalHead();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    int getQueueLength()
+    {
+        lock.lock();
+        try
+        {
+            return demand.size() + refresh.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private Condition head()
+    {
+        Condition head = demand.peekFirst();
+        return head != null ? head : refresh.peekFirst();
+    }
+
+    private void signalHead()
+    {
+        Condition head = head();
+        if (head != null)
+        {
+            head.signal();
+        }
+    }
+
+    /**
+     * Refills the token bucket and, if it holds a permit, takes it.
+     *
+     * @return 0 if a permit was taken, otherwise how long until there is one
+     */
+    private long untilPermit(long now)
+    {
+        if (permitsPerNano == 0)
+        {
+            return 0;
+        }
+        permits = Math.min(burst, permits + (now - lastRefill) * permitsPerNano);
+        lastRefill = now;
+        if (permits >= 1)
+        {
+            permits -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - permits) / permitsPerNano));
+    }
+}
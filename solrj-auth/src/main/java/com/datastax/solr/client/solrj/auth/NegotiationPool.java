@@ -0,0 +1,67 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The threads a SpnegoTokenCache negotiates on, and the NegotiationLimiter
+ * which decides when negotiations may start. Caches usually have a pool of
+ * their own, but the caches of a MultiPrincipalAuthenticatorFactory share one,
+ * so the load on the KDC and the number of threads don't grow with the number
+ * of identities.
+ */
+class NegotiationPool
+{
+    private final int threads;
+    private final NegotiationLimiter limiter;
+    private ThreadPoolExecutor executor;
+
+    NegotiationPool(int threads, NegotiationLimiter limiter)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("Negotiation threads must be positive, got " + threads);
+        }
+        this.threads = threads;
+        this.limiter = limiter;
+    }
+
+    NegotiationLimiter getLimiter()
+    {
+        return limiter;
+    }
+
+    /**
+     * Returns the negotiation threads, started on first use.
+     */
+    synchronized Executor getExecutor()
+    {
+        if (executor == null)
+        {
+            executor = new ThreadPoolExecutor(threads, threads,
+                                              60, TimeUnit.SECONDS,
+                                              new LinkedBlockingQueue<Runnable>(),
+                                              new ThreadFactoryBuilder()
+                                                  .setDaemon(true)
+                                                  .setNameFormat("spnego-token-negotiation-%d")
+                                                  .build());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Lets negotiations already submitted complete, and rejects any more.
+     */
+    synchronized void shutdown()
+    {
+        if (executor != null)
+        {
+            executor.shutdown();
+        }
+    }
+}
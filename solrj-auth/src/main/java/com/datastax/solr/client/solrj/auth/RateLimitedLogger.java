@@ -0,0 +1,42 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Logs errors at most once per interval, along with a count of the similar
+ * errors suppressed since the last one logged, so a failing host doesn't flood
+ * the log with a stack trace per request.
+ */
+class RateLimitedLogger
+{
+    private final Logger logger;
+    private final long intervalMs;
+    private final AtomicLong nextLog = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    RateLimitedLogger(Logger logger, long intervalMs)
+    {
+        this.logger = logger;
+        this.intervalMs = intervalMs;
+    }
+
+    void error(String message, Throwable error)
+    {
+        long now = System.currentTimeMillis();
+        long next = nextLog.get();
+        if (now < next || !nextLog.compareAndSet(next, now + intervalMs))
+        {
+            suppressed.incrementAndGet();
+            logger.debug(message, error);
+            return;
+        }
+        long count = suppressed.getAndSet(0);
+        if (count > 0)
+        {
+            message = String.format("%s (%s similar errors suppressed in the last %s ms)", message, count, intervalMs);
+        }
+        logger.error(message, error);
+    }
+}
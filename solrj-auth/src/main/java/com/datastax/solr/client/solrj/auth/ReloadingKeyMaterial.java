@@ -0,0 +1,449 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509KeyManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * An SSLContext whose keystore and truststore are reloaded when their files
+ * change, so certificates can be rotated without restarting the process.
+ *
+ * The context's key and trust managers delegate to the material loaded last.
+ * The key and trust material are held together and swapped in a single write,
+ * and only once everything that changed has loaded, so a new key is never
+ * paired with a stale truststore, or the other way round. A handshake reads the
+ * current material whenever it needs a key or to check a certificate, so one
+ * running at the moment of a swap may finish with the new material; any
+ * handshake starting after the swap sees only the new. Only handshakes are
+ * affected: connections already pooled by SolrJ's HTTP clients stay open, and
+ * token caches are left alone.
+ * The client session cache is cleared on reload, so new connections handshake
+ * with the new material rather than resuming sessions set up with the old.
+ *
+ * The files are checked from a single shared daemon thread, and count as
+ * changed when their content does, by comparing a hash of it, so a file
+ * rewritten within the file system's timestamp resolution is still picked up
+ * and one which is merely touched doesn't cause a reload. If a changed file
+ * can't be loaded, e.g. because it's only partly written, all the old material
+ * is kept and loading is tried again at the next check.
+ *
+ * <pre>
+ * {@code
+ *      ReloadingKeyMaterial material = new ReloadingKeyMaterial.Builder()
+ *                                          .keyStore(new File("client.jks"), "JKS", password)
+ *                                          .trustStore(new File("truststore.jks"), "JKS", password)
+ *                                          .build();
+ *      SolrHttpClientInitializer.initEncryption(
+ *                 new EncryptionOptions()
+ *                     .withSSLContext(material.getSSLContext()));
+ * }
+ * </pre>
+ */
+public class ReloadingKeyMaterial
+{
+    private static final Logger logger = LoggerFactory.getLogger(ReloadingKeyMaterial.class);
+
+    public static final long DEFAULT_CHECK_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("solrj-key-material-watcher-%d")
+                .build());
+
+    private final StoreFile keyStore;
+    private final StoreFile trustStore;
+    private final SSLContext context;
+    private final ScheduledFuture<?> check;
+    private volatile Material material;
+
+    private ReloadingKeyMaterial(Builder builder) throws GeneralSecurityException, IOException
+    {
+        this.keyStore = builder.keyStore;
+        this.trustStore = builder.trustStore;
+        StoreFile.Loaded keys = (keyStore == null) ? null : keyStore.loadIfChanged();
+        StoreFile.Loaded trust = (trustStore == null) ? null : trustStore.loadIfChanged();
+        this.material = new Material(keys == null ? null : loadKeyManager(keys),
+                                     trust == null ? null : loadTrustManager(trust));
+        if (keys != null)
+        {
+            keyStore.loaded(keys);
+        }
+        if (trust != null)
+        {
+            trustStore.loaded(trust);
+        }
+
+        this.context = SSLContext.getInstance(builder.protocol);
+        context.init(keyStore == null ? null : new KeyManager[] { new ReloadingKeyManager() },
+                     trustStore == null ? null : new TrustManager[] { new ReloadingTrustManager() },
+                     null);
+
+        this.check = watcher.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                reloadIfChanged();
+            }
+        }, builder.checkIntervalMs, builder.checkIntervalMs, TimeUnit.MILLISECONDS);
+        logger.info(String.format("Watching %s and %s for changes every %s ms",
+                                  keyStore == null ? "no keystore" : "keystore " + keyStore.file,
+                                  trustStore == null ? "no truststore" : "truststore " + trustStore.file,
+                                  builder.checkIntervalMs));
+    }
+
+    /**
+     * The SSLContext to pass to EncryptionOptions, AuthenticationOptions or a
+     * ClusterProfile. It stays the same across reloads.
+     */
+    public SSLContext getSSLContext()
+    {
+        return context;
+    }
+
+    /**
+     * Reloads whichever of the keystore and truststore have changed since they
+     * were last loaded, without waiting for the next check. If either fails to
+     * load, neither is swapped in.
+     *
+     * @return whether any new material was swapped in
+     */
+    public synchronized boolean reloadIfChanged()
+    {
+        Material current = material;
+        StoreFile.Loaded keys;
+        StoreFile.Loaded trust;
+        Material reloaded;
+        try
+        {
+            keys = (keyStore == null) ? null : keyStore.loadIfChanged();
+            trust = (trustStore == null) ? null : trustStore.loadIfChanged();
+            if (keys == null && trust == null)
+            {
+                return false;
+            }
+            reloaded = new Material(keys == null ? current.keyManager : loadKeyManager(keys),
+                                    trust == null ? current.trustManager : loadTrustManager(trust));
+        }
+        catch (Exception e)
+        {
+            logger.warn("Failed to reload key material, keeping the current keystore and truststore", e);
+            return false;
+        }
+        material = reloaded;
+        if (keys != null)
+        {
+            keyStore.loaded(keys);
+            logger.info("Reloaded keystore " + keyStore.file);
+        }
+        if (trust != null)
+        {
+            trustStore.loaded(trust);
+            logger.info("Reloaded truststore " + trustStore.file);
+        }
+        invalidateSessions(context.getClientSessionContext());
+        return true;
+    }
+
+    /**
+     * Stops watching the files. The SSLContext keeps using the material loaded
+     * last.
+     */
+    public void close()
+    {
+        check.cancel(false);
+    }
+
+    private static void invalidateSessions(SSLSessionContext sessions)
+    {
+        if (sessions == null)
+        {
+            return;
+        }
+        for (Enumeration<byte[]> ids = sessions.getIds(); ids.hasMoreElements();)
+        {
+            SSLSession session = sessions.getSession(ids.nextElement());
+            if (session != null)
+            {
+                session.invalidate();
+            }
+        }
+    }
+
+    private static X509KeyManager loadKeyManager(StoreFile.Loaded loaded) throws GeneralSecurityException
+    {
+        KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(loaded.store, loaded.password);
+        for (KeyManager manager : factory.getKeyManagers())
+        {
+            if (manager instanceof X509KeyManager)
+            {
+                return (X509KeyManager) manager;
+            }
+        }
+        throw new GeneralSecurityException("No X509KeyManager available for " + loaded.file);
+    }
+
+    private static X509TrustManager loadTrustManager(StoreFile.Loaded loaded) throws GeneralSecurityException
+    {
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(loaded.store);
+        for (TrustManager manager : factory.getTrustManagers())
+        {
+            if (manager instanceof X509TrustManager)
+            {
+                return (X509TrustManager) manager;
+            }
+        }
+        throw new GeneralSecurityException("No X509TrustManager available for " + loaded.file);
+    }
+
+    /**
+     * The key and trust managers in use, replaced as a whole on reload. Either
+     * is null if there's no store for it.
+     */
+    private static class Material
+    {
+        private final X509KeyManager keyManager;
+        private final X509TrustManager trustManager;
+
+        private Material(X509KeyManager keyManager, X509TrustManager trustManager)
+        {
+            this.keyManager = keyManager;
+            this.trustManager = trustManager;
+        }
+    }
+
+    /**
+     * A keystore file, and a hash of the content it had when it was last
+     * loaded.
+     */
+    private static class StoreFile
+    {
+        private final File file;
+        private final String type;
+        private final char[] password;
+        private byte[] digest;
+
+        private StoreFile(File file, String type, char[] password)
+        {
+            this.file = file;
+            this.type = type;
+            this.password = password == null ? null : password.clone();
+        }
+
+        /**
+         * Reads the file, loading it only if its content differs from what was
+         * loaded last. The same bytes are hashed and loaded, so a file replaced
+         * between the two can't be recorded with the wrong hash.
+         *
+         * @return the loaded store, or null if the file hasn't changed
+         */
+        private Loaded loadIfChanged() throws GeneralSecurityException, IOException
+        {
+            byte[] content = Files.readAllBytes(file.toPath());
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+            if (digest != null && MessageDigest.isEqual(hash, digest))
+            {
+                return null;
+            }
+            KeyStore store = KeyStore.getInstance(type);
+            store.load(new ByteArrayInputStream(content), password);
+            return new Loaded(file, store, password, hash);
+        }
+
+        /**
+         * Records the store as in use. Only called once the new material has
+         * been swapped in, so a file caught halfway through being replaced, or
+         * changed alongside one which was, is read again at the next check.
+         */
+        private void loaded(Loaded loaded)
+        {
+            digest = loaded.digest;
+        }
+
+        private static class Loaded
+        {
+            private final File file;
+            private final KeyStore store;
+            private final char[] password;
+            private final byte[] digest;
+
+            private Loaded(File file, KeyStore store, char[] password, byte[] digest)
+            {
+                this.file = file;
+                this.store = store;
+                this.password = password;
+                this.digest = digest;
+            }
+        }
+    }
+
+    private class ReloadingKeyManager extends X509ExtendedKeyManager
+    {
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers)
+        {
+            return material.keyManager.getClientAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket)
+        {
+            return material.keyManager.chooseClientAlias(keyType, issuers, socket);
+        }
+
+        @Override
+        public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine)
+        {
+            X509KeyManager current = material.keyManager;
+            return (current instanceof X509ExtendedKeyManager) ?
+                       ((X509ExtendedKeyManager) current).chooseEngineClientAlias(keyType, issuers, engine) :
+                       current.chooseClientAlias(keyType, issuers, null);
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers)
+        {
+            return material.keyManager.getServerAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket)
+        {
+            return material.keyManager.chooseServerAlias(keyType, issuers, socket);
+        }
+
+        @Override
+        public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine)
+        {
+            X509KeyManager current = material.keyManager;
+            return (current instanceof X509ExtendedKeyManager) ?
+                       ((X509ExtendedKeyManager) current).chooseEngineServerAlias(keyType, issuers, engine) :
+                       current.chooseServerAlias(keyType, issuers, null);
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias)
+        {
+            return material.keyManager.getCertificateChain(alias);
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias)
+        {
+            return material.keyManager.getPrivateKey(alias);
+        }
+    }
+
+    private class ReloadingTrustManager implements X509TrustManager
+    {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException
+        {
+            material.trustManager.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException
+        {
+            material.trustManager.checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers()
+        {
+            return material.trustManager.getAcceptedIssuers();
+        }
+    }
+
+    public static class Builder
+    {
+        private StoreFile keyStore;
+        private StoreFile trustStore;
+        private long checkIntervalMs = DEFAULT_CHECK_INTERVAL_MS;
+        private String protocol = "TLS";
+
+        /**
+         * Keystore holding the client's key and certificate, e.g. for client
+         * certificate authentication. The key must have the store's password.
+         */
+        public Builder keyStore(File file, String type, char[] password)
+        {
+            this.keyStore = new StoreFile(file, type, password);
+            return this;
+        }
+
+        /**
+         * Truststore of certificates trusted to identify Solr nodes. Without
+         * one, the JVM's default trusted certificates are used.
+         */
+        public Builder trustStore(File file, String type, char[] password)
+        {
+            this.trustStore = new StoreFile(file, type, password);
+            return this;
+        }
+
+        public Builder checkInterval(long checkIntervalMs)
+        {
+            this.checkIntervalMs = checkIntervalMs;
+            return this;
+        }
+
+        /**
+         * SSLContext protocol, TLS by default.
+         */
+        public Builder protocol(String protocol)
+        {
+            this.protocol = protocol;
+            return this;
+        }
+
+        /**
+         * Loads the keystore and truststore and starts watching them.
+         *
+         * @throws GeneralSecurityException, IOException if either can't be
+         * loaded
+         */
+        public ReloadingKeyMaterial build() throws GeneralSecurityException, IOException
+        {
+            if (keyStore == null && trustStore == null)
+            {
+                throw new IllegalStateException("Please supply a keystore, a truststore or both");
+            }
+            return new ReloadingKeyMaterial(this);
+        }
+    }
+}
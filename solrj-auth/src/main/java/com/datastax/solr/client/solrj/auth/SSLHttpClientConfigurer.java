@@ -1,26 +1,207 @@
 package com.datastax.solr.client.solrj.auth;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.HttpContext;
 import org.apache.solr.client.solrj.impl.HttpClientConfigurer;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.SolrParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Configures SolrJ's HTTP clients to use the supplied SSLSocketFactory for https
+ * connections, and applies any connection pool and keep-alive settings.
+ *
+ * SolrJ holds a single HttpClientConfigurer, so registering this one would
+ * replace any the application registered itself. Given that configurer as a
+ * delegate, it runs first and this one's settings are applied on top.
+ *
+ * Only the pool settings which were explicitly set are applied. Connection
+ * limits passed to HttpClientUtil.createClient for a particular client take
+ * precedence over the pool-wide ones, unless they're SolrJ's defaults, which
+ * HttpSolrServer passes whether or not the application asked for them.
+ */
 public class SSLHttpClientConfigurer extends HttpClientConfigurer
 {
+    private static final Logger logger = LoggerFactory.getLogger(SSLHttpClientConfigurer.class);
+
     private final SSLSocketFactory socketFactory;
+    private final ConnectionPoolSettings poolSettings;
+    private volatile HttpClientConfigurer delegate;
     
     public SSLHttpClientConfigurer(SSLSocketFactory socketFactory)
+    {
+        this(socketFactory, ConnectionPoolSettings.DEFAULTS);
+    }
+    
+    /**
+     * @param socketFactory SSL socket factory for https connections, or null to
+     * leave the client's SSL configuration alone
+     * @param poolSettings connection pool settings to apply
+     */
+    public SSLHttpClientConfigurer(SSLSocketFactory socketFactory, ConnectionPoolSettings poolSettings)
     {
         this.socketFactory = socketFactory;
+        this.poolSettings = poolSettings;
+    }
+    
+    /**
+     * @param delegate configurer to run before this one, in place of SolrJ's
+     * default configuration, or null
+     */
+    void setDelegate(HttpClientConfigurer delegate)
+    {
+        this.delegate = delegate;
+    }
+    
+    HttpClientConfigurer getDelegate()
+    {
+        return delegate;
     }
     
     @Override
     protected void configure(DefaultHttpClient httpClient, SolrParams config)
     {
-        super.configure(httpClient, config);
-        Scheme httpsScheme = new Scheme("https", 443, socketFactory);
-        httpClient.getConnectionManager().getSchemeRegistry().register(httpsScheme);
+        HttpClientConfigurer before = delegate;
+        if (before != null)
+        {
+            configure(before, httpClient, config);
+        }
+        else
+        {
+            super.configure(httpClient, config);
+        }
+        ClientConnectionManager connectionManager = httpClient.getConnectionManager();
+        if (socketFactory != null)
+        {
+            // the port is only the default, for URLs which don't specify one
+            Scheme httpsScheme = new Scheme("https", poolSettings.getHttpsPort(), socketFactory);
+            connectionManager.getSchemeRegistry().register(httpsScheme);
+        }
+        configurePool(connectionManager, config);
+        configureKeepAlive(httpClient);
+        if (poolSettings.getStaleConnectionCheck() != null)
+        {
+            HttpConnectionParams.setStaleCheckingEnabled(httpClient.getParams(), poolSettings.getStaleConnectionCheck());
+        }
+        if (poolSettings.getIdleTimeoutMs() != ConnectionPoolSettings.UNSET)
+        {
+            IdleConnectionReaper.register(connectionManager, poolSettings.getIdleTimeoutMs(), poolSettings.getReaperIntervalMs());
+        }
     }
 
+    private void configurePool(ClientConnectionManager connectionManager, SolrParams config)
+    {
+        int maxConnections = getLimit(poolSettings.getMaxConnections(), config,
+                                      HttpClientUtil.PROP_MAX_CONNECTIONS,
+                                      ConnectionPoolSettings.SOLRJ_MAX_CONNECTIONS_DEFAULT);
+        int maxConnectionsPerHost = getLimit(poolSettings.getMaxConnectionsPerHost(), config,
+                                             HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST,
+                                             ConnectionPoolSettings.SOLRJ_MAX_CONNECTIONS_PER_HOST_DEFAULT);
+        if (maxConnections == ConnectionPoolSettings.UNSET && maxConnectionsPerHost == ConnectionPoolSettings.UNSET)
+        {
+            return;
+        }
+        if (!(connectionManager instanceof PoolingClientConnectionManager))
+        {
+            logger.warn("Unable to apply connection pool limits to connection manager of type " + connectionManager.getClass().getName());
+            return;
+        }
+        PoolingClientConnectionManager pool = (PoolingClientConnectionManager) connectionManager;
+        if (maxConnections != ConnectionPoolSettings.UNSET)
+        {
+            pool.setMaxTotal(maxConnections);
+        }
+        if (maxConnectionsPerHost != ConnectionPoolSettings.UNSET)
+        {
+            pool.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        }
+    }
+
+    /**
+     * @return the pool-wide limit to apply, or UNSET to keep the one the client
+     * was created with
+     */
+    private static int getLimit(int limit, SolrParams config, String param, int solrjDefault)
+    {
+        if (limit == ConnectionPoolSettings.UNSET || config == null)
+        {
+            return limit;
+        }
+        Integer requested = config.getInt(param);
+        if (requested != null && requested != solrjDefault)
+        {
+            logger.debug("Keeping " + param + "=" + requested + " requested for this client, rather than " + limit);
+            return ConnectionPoolSettings.UNSET;
+        }
+        return limit;
+    }
+
+    private void configureKeepAlive(DefaultHttpClient httpClient)
+    {
+        final long keepAliveMs = poolSettings.getKeepAliveMs();
+        if (keepAliveMs == ConnectionPoolSettings.UNSET)
+        {
+            return;
+        }
+        httpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy()
+        {
+            private final ConnectionKeepAliveStrategy serverStrategy = new DefaultConnectionKeepAliveStrategy();
+
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+            {
+                // honour a shorter keep-alive requested by the server
+                long serverKeepAliveMs = serverStrategy.getKeepAliveDuration(response, context);
+                return serverKeepAliveMs > 0 ? Math.min(serverKeepAliveMs, keepAliveMs) : keepAliveMs;
+            }
+        });
+    }
+
+    /**
+     * HttpClientConfigurer.configure is protected, and this class is in another
+     * package, so another configurer can only be called reflectively.
+     */
+    private static void configure(HttpClientConfigurer configurer, DefaultHttpClient httpClient, SolrParams config)
+    {
+        try
+        {
+            Method configure = HttpClientConfigurer.class.getDeclaredMethod("configure", DefaultHttpClient.class, SolrParams.class);
+            configure.setAccessible(true);
+            configure.invoke(configurer, httpClient, config);
+        }
+        catch (InvocationTargetException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, cause.getMessage(), cause);
+        }
+        catch (NoSuchMethodException e)
+        {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Unable to call configurer " + configurer, e);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Unable to call configurer " + configurer, e);
+        }
+    }
 }
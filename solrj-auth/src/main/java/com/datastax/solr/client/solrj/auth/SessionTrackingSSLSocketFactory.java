@@ -0,0 +1,84 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Delegates to another SSLSocketFactory, registering a listener for the
+ * handshakes on each socket it creates, which knows when the socket was created.
+ */
+class SessionTrackingSSLSocketFactory extends SSLSocketFactory
+{
+    private final SSLSocketFactory delegate;
+    private final TlsSessionStats stats;
+
+    SessionTrackingSSLSocketFactory(SSLSocketFactory delegate, TlsSessionStats stats)
+    {
+        this.delegate = delegate;
+        this.stats = stats;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites()
+    {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites()
+    {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException
+    {
+        return track(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException
+    {
+        return track(delegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException
+    {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+    {
+        return track(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException
+    {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+    {
+        return track(delegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    private Socket track(Socket socket)
+    {
+        // a socket's handshake can't start before it's created, so any session
+        // created earlier was resumed
+        long created = System.currentTimeMillis();
+        if (socket instanceof SSLSocket)
+        {
+            ((SSLSocket) socket).addHandshakeCompletedListener(stats.newListener(created));
+        }
+        return socket;
+    }
+}
@@ -1,18 +1,33 @@
 package com.datastax.solr.client.solrj.auth;
 
 import java.io.File;
+import java.lang.reflect.Field;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.net.ssl.SSLContext;
 import javax.security.auth.kerberos.KerberosPrincipal;
 
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.HttpClient;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.solr.client.solrj.impl.HttpClientConfigurer;
 import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.client.solrj.impl.auth.HttpRequestAuthenticatorFactory;
 import org.apache.solr.client.solrj.impl.auth.HttpRequestAuthenticatorProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * <p>Handles initializing Solr with custom helpers to support Kerberos authentication
  * & SSL encryption. These helpers must set before Solr creates any HTTPClient objects, 
@@ -94,6 +109,20 @@ public class SolrHttpClientInitializer
 {
     private static final Logger logger = LoggerFactory.getLogger(SolrHttpClientInitializer.class);
     
+    public static final int WARMUP_PARALLELISM_DEFAULT = 16;
+    
+    private static final int UNSET = -1;
+    
+    private static volatile TokenCacheLocator authenticatorFactory;
+    private static HttpRequestAuthenticatorFactory defaultAuthenticatorFactory;
+    private static ClusterProfiles profiles;
+    private static volatile SSLSocketFactory socketFactory;
+    private static volatile ConnectionPoolSettings poolSettings = ConnectionPoolSettings.DEFAULTS;
+    // the configurer last registered with HttpClientUtil by this class
+    private static SSLHttpClientConfigurer registeredConfigurer;
+    private static volatile SSLContext encryptionContext;
+    private static final TlsSessionStats tlsSessionStats = new TlsSessionStats();
+    
     /**
      * Configure Solrj to use Kerberos authentication via SPNEGO/GSSAPI for
      * client requests. Client Kerberos credentials for the supplied Principal
@@ -103,21 +132,274 @@ public class SolrHttpClientInitializer
      * obtain secure sockets. If you have no special SSL requirements, other 
      * than to enable it, use SSLContext.getDefault(). Optionally, an
      * X509HostVerifier may also be supplied in AuthenticationOptions.
+     * HTTP clients created by SolrJ after this call also pick up renewed
+     * tokens set by the server on its responses. Calling it again replaces the
+     * previous authentication, whose token caches are closed.
      * 
      * @param options properties to configure the Kerberos connection & SPNEGO 
      * protocol negotiation
      */
-    public static void initAuthentication(AuthenticationOptions options)
+    public static synchronized void initAuthentication(AuthenticationOptions options)
     {
         logger.info("Registering custom HTTPClient authentication with Solr");
-        SpnegoAuthenticatorFactory authenticatorFactory = 
+        SSLContext ctx = options.ctx;
+        if (options.shareEncryptionContext)
+        {
+            ctx = encryptionContext;
+            if (ctx == null)
+            {
+                throw new IllegalStateException("Encryption has not been initialized, call initEncryption first");
+            }
+        }
+        SpnegoAuthenticatorFactory.Builder builder = 
                     new SpnegoAuthenticatorFactory.Builder()
                         .keytab(options.keytab)
                         .principal(options.principal)
-                        .sslContext(options.ctx)
+                        .sslContext(ctx)
                         .hostnameVerifier(options.verifier)
-                        .build();
-      HttpRequestAuthenticatorProvider.registerFactory(authenticatorFactory);
+                        .reuseLogin(options.sharedLogin)
+                        .httpClientNegotiation(options.httpClientNegotiation)
+                        .httpClient(options.httpClient)
+                        .negotiateOnRequest(options.negotiateOnRequest)
+                        .keyStrategy(options.keyStrategy)
+                        .metrics(options.metrics)
+                        .mbeanName(options.mbeanName)
+                        .tlsSessionStats(tlsSessionStats)
+                        .negotiationBackoff(options.failureThreshold, options.initialBackoffMs, options.maxBackoffMs)
+                        .negotiationLimits(options.maxConcurrentNegotiations, options.negotiationRate, options.queueTimeoutMs)
+                        .negotiationBurst(options.negotiationBurst)
+                        .negotiationTimeouts(options.connectTimeoutMs, options.readTimeoutMs)
+                        .tokenTimeout(options.tokenTimeoutMs)
+                        .cachePolicy(options.ttl, options.maxEntries, options.expireAfterAccessMs);
+        if (options.clientCertificate && encryptionContext == null)
+        {
+            throw new IllegalStateException("Client certificate authentication requires initEncryption to be called first, " +
+                                            "with an SSLContext holding the client's key");
+        }
+        closeAuthenticatorFactory();
+        if (options.clientCertificate)
+        {
+            ClientCertificateAuthenticatorFactory authenticatorFactory = 
+                    new ClientCertificateAuthenticatorFactory(options.negotiateFallback ? builder.build() : null);
+            registerAuthenticatorFactory(authenticatorFactory);
+            // without a fallback there are no tokens to harvest or retry with
+            SolrHttpClientInitializer.authenticatorFactory = options.negotiateFallback ? authenticatorFactory : null;
+        }
+        else if (options.identities.isEmpty())
+        {
+            SpnegoAuthenticatorFactory authenticatorFactory = builder.build();
+            registerAuthenticatorFactory(authenticatorFactory);
+            SolrHttpClientInitializer.authenticatorFactory = authenticatorFactory;
+        }
+        else
+        {
+            MultiPrincipalAuthenticatorFactory authenticatorFactory = 
+                    new MultiPrincipalAuthenticatorFactory(builder, options.mbeanName, options.requireIdentity);
+            for (Map.Entry<Principal, File> identity : options.identities.entrySet())
+            {
+                authenticatorFactory.addIdentity(identity.getKey(), identity.getValue());
+            }
+            registerAuthenticatorFactory(authenticatorFactory);
+            SolrHttpClientInitializer.authenticatorFactory = authenticatorFactory;
+        }
+        registerConfigurer();
+    }
+    
+    /**
+     * Registers a cluster with its own SSL, connection pool and authentication
+     * settings, isolated from those set up by initEncryption and
+     * initAuthentication and from other profiles. Use the profile's
+     * newSolrServer, or its HTTP client, to talk to the cluster. Requests to
+     * hosts which aren't part of any profile carry on using the process wide
+     * settings.
+     */
+    public static synchronized void registerProfile(ClusterProfile profile)
+    {
+        if (profiles == null)
+        {
+            profiles = new ClusterProfiles();
+            profiles.setDefaultFactory(defaultAuthenticatorFactory);
+            HttpRequestAuthenticatorProvider.registerFactory(profiles);
+        }
+        profiles.register(profile);
+    }
+    
+    /**
+     * @return the profile registered under name, or null if there is none
+     */
+    public static synchronized ClusterProfile getProfile(String name)
+    {
+        return (profiles == null) ? null : profiles.getProfile(name);
+    }
+    
+    /**
+     * SolrJ supports a single authenticator factory, so once profiles are in use
+     * the process wide one becomes the default for hosts outside them.
+     */
+    private static synchronized void registerAuthenticatorFactory(HttpRequestAuthenticatorFactory factory)
+    {
+        defaultAuthenticatorFactory = factory;
+        if (profiles != null)
+        {
+            profiles.setDefaultFactory(factory);
+        }
+        else
+        {
+            HttpRequestAuthenticatorProvider.registerFactory(factory);
+        }
+    }
+    
+    /**
+     * Configure SolrJ to authenticate with HTTP Basic authentication, for
+     * clusters using DSE internal password authentication rather than Kerberos.
+     */
+    public static void initBasicAuthentication(String username, String password)
+    {
+        initBasicAuthentication(new BasicAuthenticatorFactory(username, password));
+    }
+    
+    /**
+     * Configure SolrJ to authenticate with HTTP Basic authentication, reading
+     * the credentials from the supplier on every request so they can be changed
+     * while the application runs. See BasicAuthenticatorFactory.
+     */
+    public static void initBasicAuthentication(Supplier<UsernamePasswordCredentials> credentials)
+    {
+        initBasicAuthentication(new BasicAuthenticatorFactory(credentials));
+    }
+    
+    private static synchronized void initBasicAuthentication(BasicAuthenticatorFactory factory)
+    {
+        logger.info("Registering HTTP Basic authentication with Solr");
+        registerAuthenticatorFactory(factory);
+        // there are no SPNEGO tokens to harvest, so any SPNEGO configurer is
+        // replaced by one for encryption alone, or removed
+        closeAuthenticatorFactory();
+        registerConfigurer();
+    }
+    
+    /**
+     * Closes the token caches of the authentication set up by the last call
+     * to initAuthentication, if any, so replacing it doesn't leave their
+     * threads, MBeans and Kerberos logins behind. It's done before the new
+     * caches are built, so they can register MBeans under the same names.
+     */
+    private static synchronized void closeAuthenticatorFactory()
+    {
+        TokenCacheLocator previous = authenticatorFactory;
+        authenticatorFactory = null;
+        if (previous instanceof MultiPrincipalAuthenticatorFactory)
+        {
+            ((MultiPrincipalAuthenticatorFactory) previous).close();
+        }
+        else if (previous != null && previous.getTokenCache() != null)
+        {
+            previous.getTokenCache().close();
+        }
+    }
+    
+    /**
+     * Registers another identity requests can be made as, selected with
+     * KerberosIdentityContext, after initAuthentication was called with at
+     * least one AuthenticationOptions.withIdentity.
+     */
+    public static void addIdentity(Principal principal, File keytab)
+    {
+        TokenCacheLocator factory = getAuthenticatorFactory();
+        if (!(factory instanceof MultiPrincipalAuthenticatorFactory))
+        {
+            throw new IllegalStateException("Authentication was not initialized for multiple identities, use AuthenticationOptions.withIdentity");
+        }
+        ((MultiPrincipalAuthenticatorFactory) factory).addIdentity(principal, keytab);
+    }
+    
+    /**
+     * Pre-authenticate against each of the supplied Solr base URLs, so that
+     * the first requests to every node don't pay for a SPNEGO handshake.
+     * Negotiations run in parallel, WARMUP_PARALLELISM_DEFAULT at a time.
+     * 
+     * @see #warmUp(Collection, int)
+     */
+    public static ListenableFuture<List<WarmupResult>> warmUp(Collection<String> baseUrls)
+    {
+        return warmUp(baseUrls, WARMUP_PARALLELISM_DEFAULT);
+    }
+    
+    /**
+     * Pre-authenticate against each of the supplied Solr base URLs, using the
+     * token cache set up by initAuthentication. The returned future completes
+     * when all URLs have been tried, with a result per URL reporting success
+     * and latency. Applications can wait on it during startup, or let the 
+     * warm up continue in the background.
+     * 
+     * @param baseUrls Solr URLs, e.g. https://host:8983/solr/wiki.solr
+     * @param parallelism maximum number of concurrent negotiations
+     */
+    public static ListenableFuture<List<WarmupResult>> warmUp(Collection<String> baseUrls, int parallelism)
+    {
+        TokenCacheLocator factory = getAuthenticatorFactory();
+        List<URL> urls = new ArrayList<URL>(baseUrls.size());
+        for (String baseUrl : baseUrls)
+        {
+            try
+            {
+                urls.add(new URL(baseUrl));
+            }
+            catch (MalformedURLException e)
+            {
+                throw new IllegalArgumentException("Invalid Solr URL " + baseUrl, e);
+            }
+        }
+        return factory.getTokenCache().warmUp(urls, parallelism);
+    }
+    
+    /**
+     * Returns a snapshot of the SPNEGO tokens obtained so far, which can be
+     * passed to other processes (e.g. short lived workers) or saved and
+     * reloaded after a restart, and imported with importTokens.
+     */
+    public static TokenBundle exportTokens()
+    {
+        return getAuthenticatorFactory().getTokenCache().exportTokens();
+    }
+    
+    /**
+     * Seeds the token cache set up by initAuthentication with tokens exported
+     * by another process, so requests to those hosts don't need to negotiate.
+     * Tokens which have expired are skipped.
+     * 
+     * @return the number of tokens imported
+     */
+    public static int importTokens(TokenBundle bundle)
+    {
+        return getAuthenticatorFactory().getTokenCache().importTokens(bundle);
+    }
+    
+    /**
+     * Counts of full and resumed TLS handshakes, on both SolrJ's connections and
+     * those used for SPNEGO negotiation.
+     */
+    public static TlsSessionStats getTlsSessionStats()
+    {
+        return tlsSessionStats;
+    }
+    
+    /**
+     * @return the socket factory set up by initEncryption, or null
+     */
+    static SSLSocketFactory getSocketFactory()
+    {
+        return socketFactory;
+    }
+    
+    private static TokenCacheLocator getAuthenticatorFactory()
+    {
+        TokenCacheLocator factory = authenticatorFactory;
+        if (factory == null)
+        {
+            throw new IllegalStateException("Authentication has not been initialized, call initAuthentication first");
+        }
+        return factory;
     }
     
     /**
@@ -132,11 +414,89 @@ public class SolrHttpClientInitializer
     public static void initEncryption(EncryptionOptions options)
     {    
         logger.info("Registering custom HTTPClient SSL configuration with Solr");
+        if (options.sessionCacheSize != UNSET)
+        {
+            TlsSessionStats.configureSessionCache(options.ctx, options.sessionCacheSize, options.sessionTimeoutSeconds);
+        }
         SSLSocketFactory socketFactory = 
-                (options.verifier == null) ?
-                        new SSLSocketFactory(options.ctx) :
-                        new SSLSocketFactory(options.ctx, options.verifier);
-        HttpClientUtil.setConfigurer(new SSLHttpClientConfigurer(socketFactory));  
+                new SSLSocketFactory(tlsSessionStats.wrap(options.ctx.getSocketFactory()),
+                                     (options.verifier == null) ?
+                                         SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER :
+                                         options.verifier);
+        ConnectionPoolSettings poolSettings = options.pool.build();
+        synchronized (SolrHttpClientInitializer.class)
+        {
+            SolrHttpClientInitializer.encryptionContext = options.ctx;
+            SolrHttpClientInitializer.socketFactory = socketFactory;
+            SolrHttpClientInitializer.poolSettings = poolSettings;
+            registerConfigurer();
+        }
+    }
+    
+    /**
+     * SolrJ supports a single HttpClientConfigurer, so register one which covers
+     * everything set up so far by initAuthentication and initEncryption. Any
+     * configurer the application registered itself is kept, and runs first.
+     */
+    private static synchronized void registerConfigurer()
+    {
+        HttpClientConfigurer installed = getInstalledConfigurer();
+        HttpClientConfigurer application = (installed != null && installed == registeredConfigurer) ?
+                registeredConfigurer.getDelegate() : installed;
+        if (application != null && application.getClass() == HttpClientConfigurer.class)
+        {
+            // SolrJ's own default, which the configurers below extend anyway
+            application = null;
+        }
+
+        SSLHttpClientConfigurer configurer;
+        TokenCacheLocator factory = authenticatorFactory;
+        if (factory != null)
+        {
+            configurer = new SpnegoHttpClientConfigurer(socketFactory, poolSettings, factory);
+        }
+        else if (socketFactory != null)
+        {
+            configurer = new SSLHttpClientConfigurer(socketFactory, poolSettings);
+        }
+        else
+        {
+            // nothing of ours left to apply, e.g. after switching to Basic
+            // authentication, so put back what was there before us
+            if (registeredConfigurer != null && (installed == null || installed == registeredConfigurer))
+            {
+                HttpClientUtil.setConfigurer(application != null ? application : new HttpClientConfigurer());
+            }
+            registeredConfigurer = null;
+            return;
+        }
+        if (application != null)
+        {
+            logger.info("Applying HttpClientConfigurer " + application.getClass().getName() + " before SolrJ authentication and encryption settings");
+        }
+        configurer.setDelegate(application);
+        HttpClientUtil.setConfigurer(configurer);
+        registeredConfigurer = configurer;
+    }
+    
+    /**
+     * HttpClientUtil has no getter for its configurer, so read it reflectively.
+     * 
+     * @return the registered configurer, or null if it can't be determined
+     */
+    private static HttpClientConfigurer getInstalledConfigurer()
+    {
+        try
+        {
+            Field field = HttpClientUtil.class.getDeclaredField("configurer");
+            field.setAccessible(true);
+            return (HttpClientConfigurer) field.get(null);
+        }
+        catch (Exception e)
+        {
+            logger.warn("Unable to find HttpClientConfigurer registered with SolrJ, it will be replaced", e);
+            return null;
+        }
     }
     
     
@@ -146,6 +506,31 @@ public class SolrHttpClientInitializer
         private File keytab;
         private SSLContext ctx;
         private X509HostnameVerifier verifier;
+        private boolean sharedLogin;
+        private boolean httpClientNegotiation;
+        private HttpClient httpClient;
+        private boolean negotiateOnRequest;
+        private TokenKeyStrategy keyStrategy = TokenKeyStrategies.HOST;
+        private TokenCacheMetrics metrics;
+        private String mbeanName;
+        private boolean shareEncryptionContext;
+        private int failureThreshold = UNSET;
+        private long initialBackoffMs;
+        private long maxBackoffMs;
+        private int maxConcurrentNegotiations = UNSET;
+        private double negotiationRate;
+        private double negotiationBurst;
+        private long queueTimeoutMs;
+        private int connectTimeoutMs;
+        private int readTimeoutMs;
+        private long tokenTimeoutMs;
+        private long ttl = UNSET;
+        private int maxEntries = UNSET;
+        private long expireAfterAccessMs = UNSET;
+        private final Map<Principal, File> identities = new LinkedHashMap<Principal, File>();
+        private boolean requireIdentity;
+        private boolean clientCertificate;
+        private boolean negotiateFallback;
         
         public AuthenticationOptions withKeytab(File keytab)
         {
@@ -170,12 +555,232 @@ public class SolrHttpClientInitializer
             this.verifier = verifier;
             return this;
         }
+        
+        /**
+         * Log in to Kerberos once and reuse the Subject, with its TGT and service
+         * tickets, for every negotiation, logging in again in the background
+         * before the TGT expires. By default each negotiation logs in afresh.
+         * Negotiating over HTTP Client or on requests always uses a shared login.
+         */
+        public AuthenticationOptions withSharedLogin()
+        {
+            this.sharedLogin = true;
+            return this;
+        }
+        
+        /**
+         * Make SPNEGO negotiation connections with the SSLContext passed to
+         * initEncryption, which must be called first. TLS sessions are cached
+         * per SSLContext, so negotiation and Solr requests to the same node can
+         * then resume each other's sessions instead of each doing a full handshake.
+         */
+        public AuthenticationOptions withEncryptionSSLContext()
+        {
+            this.shareEncryptionContext = true;
+            return this;
+        }
+        
+        /**
+         * Perform SPNEGO negotiation over a pooled HTTP Client, configured with the
+         * same SSL settings as SolrJ, instead of opening new connections for each
+         * negotiation.
+         */
+        public AuthenticationOptions withHttpClientNegotiation()
+        {
+            this.httpClientNegotiation = true;
+            return this;
+        }
+        
+        /**
+         * Perform SPNEGO negotiation over the supplied HTTP Client, typically the
+         * one shared by the application's HttpSolrServer instances.
+         */
+        public AuthenticationOptions withNegotiationHttpClient(HttpClient httpClient)
+        {
+            this.httpClient = httpClient;
+            this.httpClientNegotiation = true;
+            return this;
+        }
+        
+        /**
+         * Authenticate requests to hosts with no cached token by sending a Negotiate
+         * header with the request itself, rather than obtaining a token with a
+         * separate handshake first. The token the server returns is then cached
+         * from the response. Only applies to HTTP clients created by SolrJ after
+         * initialization.
+         */
+        public AuthenticationOptions withNegotiateOnRequest()
+        {
+            this.negotiateOnRequest = true;
+            return this;
+        }
+        
+        /**
+         * Decide which requests share a cached token, see TokenKeyStrategies. 
+         * By default, tokens are cached per host name.
+         */
+        public AuthenticationOptions withTokenKeyStrategy(TokenKeyStrategy keyStrategy)
+        {
+            this.keyStrategy = keyStrategy;
+            return this;
+        }
+        
+        /**
+         * After failureThreshold consecutive failed negotiations with a host,
+         * fail requests needing a new token for it straight away for
+         * initialBackoffMs, doubling after each further failure up to
+         * maxBackoffMs, instead of starting a new handshake for each one.
+         * Off by default, a failureThreshold of 0 also turns it off.
+         */
+        public AuthenticationOptions withNegotiationBackoff(int failureThreshold, long initialBackoffMs, long maxBackoffMs)
+        {
+            this.failureThreshold = failureThreshold;
+            this.initialBackoffMs = initialBackoffMs;
+            this.maxBackoffMs = maxBackoffMs;
+            return this;
+        }
+        
+        /**
+         * Protect the KDC by limiting the SPNEGO negotiations in flight at once
+         * and, if negotiationRate is greater than 0, the number started per second.
+         * Negotiations beyond the limits wait in turn, those needed by requests
+         * ahead of background refreshes, and fail after queueTimeoutMs. With a
+         * queueTimeoutMs of 0, they fail unless they can start right away.
+         */
+        public AuthenticationOptions withNegotiationLimits(int maxConcurrentNegotiations, double negotiationRate, long queueTimeoutMs)
+        {
+            this.maxConcurrentNegotiations = maxConcurrentNegotiations;
+            this.negotiationRate = negotiationRate;
+            this.queueTimeoutMs = queueTimeoutMs;
+            return this;
+        }
+        
+        /**
+         * How many negotiations can start at once after a quiet period, when
+         * withNegotiationLimits limits their rate. One second's worth by default.
+         */
+        public AuthenticationOptions withNegotiationBurst(double negotiationBurst)
+        {
+            this.negotiationBurst = negotiationBurst;
+            return this;
+        }
+        
+        /**
+         * Rely on the client certificate in the SSLContext given to initEncryption
+         * to authenticate, rather than SPNEGO, so requests need no tokens and
+         * hosts no negotiation. With negotiateFallback, the other Kerberos
+         * settings are used to negotiate with any server which nevertheless
+         * answers with a Negotiate challenge, and the request is retried with
+         * the resulting token. Requests with non-repeatable bodies can't be
+         * retried, and fail on the first challenge from a host.
+         */
+        public AuthenticationOptions withClientCertificate(boolean negotiateFallback)
+        {
+            this.clientCertificate = true;
+            this.negotiateFallback = negotiateFallback;
+            return this;
+        }
+        
+        /**
+         * Register an additional Kerberos identity, which requests made on a
+         * thread can be switched to with KerberosIdentityContext. Tokens are
+         * cached separately for each identity, and each logs in to Kerberos
+         * once. All identities share SolrJ's HTTP clients, and the settings
+         * given here. Requests with no identity selected use the principal and
+         * keytab from withPrincipal and withKeytab, or the ticket cache.
+         */
+        public AuthenticationOptions withIdentity(Principal principal, File keytab)
+        {
+            this.identities.put(principal, keytab);
+            return this;
+        }
+        
+        /**
+         * With identities registered, fail requests made with no identity
+         * selected with KerberosIdentityContext, rather than making them as the
+         * default principal. Catches work which has moved to a thread without
+         * its identity, see KerberosIdentityContext.wrap.
+         */
+        public AuthenticationOptions withRequiredIdentity()
+        {
+            this.requireIdentity = true;
+            return this;
+        }
+        
+        /**
+         * Connect and read timeouts for each request made while negotiating a
+         * SPNEGO token, so a node which hangs mid handshake doesn't block the
+         * negotiation forever. By default there are none.
+         */
+        public AuthenticationOptions withNegotiationTimeouts(int connectTimeoutMs, int readTimeoutMs)
+        {
+            this.connectTimeoutMs = connectTimeoutMs;
+            this.readTimeoutMs = readTimeoutMs;
+            return this;
+        }
+        
+        /**
+         * Fail a request after waiting tokenTimeoutMs for a SPNEGO token to be
+         * negotiated, rather than waiting for the negotiation to complete. Only
+         * requests to the slow node are held up, and the negotiation carries on
+         * in the background for later requests. Unless withNegotiationTimeouts
+         * sets them, negotiations get connect and read timeouts of the same
+         * length, so one which never gets a response doesn't hold its thread.
+         */
+        public AuthenticationOptions withTokenTimeout(long tokenTimeoutMs)
+        {
+            this.tokenTimeoutMs = tokenTimeoutMs;
+            return this;
+        }
+        
+        /**
+         * Bound the SPNEGO token cache, rather than using the spnego.token.cache
+         * system properties. Any setting given as -1 is still taken from its
+         * property.
+         * 
+         * @param ttl maximum time a token is used for, or 0 to use each token
+         * until the expiry the server gave it
+         * @param maxEntries maximum number of tokens held, evicting the least
+         * recently used once full, or 0 for no limit
+         * @param expireAfterAccessMs drop tokens not used for this long, or 0 to
+         * keep them until they expire
+         */
+        public AuthenticationOptions withTokenCachePolicy(long ttl, int maxEntries, long expireAfterAccessMs)
+        {
+            this.ttl = ttl;
+            this.maxEntries = maxEntries;
+            this.expireAfterAccessMs = expireAfterAccessMs;
+            return this;
+        }
+        
+        /**
+         * Forward token cache hits, misses, negotiations and failures to the
+         * application's own metrics registry.
+         */
+        public AuthenticationOptions withMetrics(TokenCacheMetrics metrics)
+        {
+            this.metrics = metrics;
+            return this;
+        }
+        
+        /**
+         * Publish token cache stats over JMX as
+         * com.datastax.solr.client.solrj.auth:type=SpnegoTokenCache,name=(name)
+         */
+        public AuthenticationOptions withJmx(String name)
+        {
+            this.mbeanName = name;
+            return this;
+        }
     }
             
     public static class EncryptionOptions
     {
         private SSLContext ctx;
         private X509HostnameVerifier verifier;
+        private final ConnectionPoolSettings.Builder pool = new ConnectionPoolSettings.Builder();
+        private int sessionCacheSize = UNSET;
+        private int sessionTimeoutSeconds = UNSET;
         
         public EncryptionOptions withSSLContext(SSLContext ctx)
         {
@@ -188,5 +793,65 @@ public class SolrHttpClientInitializer
             this.verifier = verifier;
             return this;
         }
+        
+        /**
+         * Limit the connections pooled by each SolrJ HTTP client, in total and
+         * to any one Solr node.
+         */
+        public EncryptionOptions withMaxConnections(int maxConnections, int maxConnectionsPerHost)
+        {
+            pool.maxConnections(maxConnections).maxConnectionsPerHost(maxConnectionsPerHost);
+            return this;
+        }
+        
+        /**
+         * Keep idle connections for reuse for at most this long, or less if the
+         * server asks for a shorter keep-alive.
+         */
+        public EncryptionOptions withKeepAlive(long keepAliveMs)
+        {
+            pool.keepAliveMs(keepAliveMs);
+            return this;
+        }
+        
+        /**
+         * Check pooled connections are still open before reusing them.
+         */
+        public EncryptionOptions withStaleConnectionCheck(boolean staleConnectionCheck)
+        {
+            pool.staleConnectionCheck(staleConnectionCheck);
+            return this;
+        }
+        
+        /**
+         * Close connections which have been idle for this long, or whose keep-alive
+         * has expired, from a background thread.
+         */
+        public EncryptionOptions withIdleConnectionTimeout(long idleTimeoutMs)
+        {
+            pool.idleTimeoutMs(idleTimeoutMs);
+            return this;
+        }
+        
+        /**
+         * Size the SSLContext's client session cache and set how long cached
+         * sessions can be resumed for, see SSLSessionContext. Resuming a session
+         * avoids the cost of a full handshake on each new connection.
+         */
+        public EncryptionOptions withSessionCache(int size, int timeoutSeconds)
+        {
+            this.sessionCacheSize = size;
+            this.sessionTimeoutSeconds = timeoutSeconds;
+            return this;
+        }
+        
+        /**
+         * Port to use for https URLs which don't specify one, 443 by default.
+         */
+        public EncryptionOptions withDefaultHttpsPort(int httpsPort)
+        {
+            pool.httpsPort(httpsPort);
+            return this;
+        }
     }
 }
@@ -1,6 +1,7 @@
 package com.datastax.solr.client.solrj.auth;
 
-import java.net.URL;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.solr.client.solrj.impl.auth.HttpRequestAuthenticator;
@@ -8,37 +9,105 @@ import org.apache.solr.common.SolrException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.cloudera.alfredo.client.AuthenticatedURL;
+import com.cloudera.alfredo.client.KerberosAuthenticator;
 
+/**
+ * Adds the cached SPNEGO token for the target host to each SolrJ request.
+ * 
+ * By default, a token is negotiated with the host before the request is sent
+ * if none is cached. Alternatively, with negotiateOnRequest, the request itself
+ * carries a Negotiate header in that case, and the token returned with the
+ * response is picked up by a TokenHarvestingInterceptor. That saves a round 
+ * trip on every cold host, but requires the interceptor to be registered with
+ * the HTTP client. Only one request per host carries a negotiation at a time,
+ * the others wait for the token it brings back.
+ * 
+ * With a token timeout, a request which has to wait for a negotiation fails
+ * once the timeout has passed, rather than waiting on a slow node for as long
+ * as the negotiation takes.
+ */
 public class SpnegoAuthenticator implements HttpRequestAuthenticator
 {
     private static final Logger logger = LoggerFactory.getLogger(SpnegoAuthenticator.class);
 
+    static final long ERROR_LOG_INTERVAL_MS = 10 * 1000;
+
+    private final RateLimitedLogger errorLogger = new RateLimitedLogger(logger, ERROR_LOG_INTERVAL_MS);
+
     private final SpnegoTokenCache tokenCache;
+    private final boolean negotiateOnRequest;
+    private final long tokenTimeoutMs;
     
     public SpnegoAuthenticator(SpnegoTokenCache tokenCache)
+    {
+        this(tokenCache, false);
+    }
+    
+    public SpnegoAuthenticator(SpnegoTokenCache tokenCache, boolean negotiateOnRequest)
+    {
+        this(tokenCache, negotiateOnRequest, 0);
+    }
+    
+    /**
+     * @param tokenTimeoutMs how long a request waits for a token to be
+     * negotiated before failing, 0 to wait for the negotiation to complete
+     */
+    public SpnegoAuthenticator(SpnegoTokenCache tokenCache, boolean negotiateOnRequest, long tokenTimeoutMs)
     {
         this.tokenCache = tokenCache;
+        this.negotiateOnRequest = negotiateOnRequest;
+        this.tokenTimeoutMs = tokenTimeoutMs;
     }
     
     @Override
     public HttpRequestBase setAuthenticationOptions(HttpRequestBase method) throws SolrException
     {
-        
-       logger.debug("Using Alfredo to pre-authenticate SolrJ request with Kerberos");
         try 
         {
-            URL url = method.getURI().toURL();
-            AuthenticatedURL.Token token = tokenCache.getToken(url);
-            // this is the HTTP Client equivalent of what Alfredo does for java.net.HttpUrlConnection
-            method.addHeader("Cookie", AuthenticatedURL.AUTH_COOKIE + "=" + token);
+            // the cached token carries a prebuilt Cookie header, so there is
+            // nothing to convert, parse or concatenate per request
+            URI uri = method.getURI();
+            if (negotiateOnRequest)
+            {
+                CachedToken token = tokenCache.getValidToken(uri);
+                SpnegoTokenCache.RequestNegotiation negotiation = null;
+                if (token == null)
+                {
+                    negotiation = tokenCache.startRequestNegotiation(uri);
+                }
+                if (negotiation != null)
+                {
+                    method.setHeader(KerberosAuthenticator.AUTHORIZATION, negotiation.getHeader());
+                    method.getParams().setParameter(TokenHarvestingInterceptor.NEGOTIATION_PARAM, negotiation);
+                }
+                else
+                {
+                    if (token == null)
+                    {
+                        // another request is already negotiating with the host, wait for its token
+                        token = getCachedToken(uri);
+                    }
+                    method.addHeader(token.getHeader());
+                }
+            }
+            else
+            {
+                method.addHeader(getCachedToken(uri).getHeader());
+            }
         }
         catch (Exception e)
         {
-            logger.error("Error performing HTTP Authentication for Solr client request", e);
+            errorLogger.error("Error performing HTTP Authentication for Solr client request to " + method.getURI(), e);
             throw new SolrException(SolrException.ErrorCode.UNAUTHORIZED, e.getMessage(), e);
         }
         return method;
     }
+    
+    private CachedToken getCachedToken(URI uri)
+    {
+        return (tokenTimeoutMs > 0) ?
+                tokenCache.getCachedToken(uri, tokenTimeoutMs, TimeUnit.MILLISECONDS) :
+                tokenCache.getCachedToken(uri);
+    }
 
 }
@@ -6,23 +6,78 @@ import java.security.Principal;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 
+import org.apache.http.client.HttpClient;
 import org.apache.solr.client.solrj.impl.auth.HttpRequestAuthenticator;
 import org.apache.solr.client.solrj.impl.auth.HttpRequestAuthenticatorFactory;
 
-public class SpnegoAuthenticatorFactory implements HttpRequestAuthenticatorFactory
+public class SpnegoAuthenticatorFactory implements HttpRequestAuthenticatorFactory, TokenCacheLocator
 {
+    private static final int UNSET = -1;
+
+    private final SpnegoTokenCache tokenCache;
     private final SpnegoAuthenticator authenticator; 
+    private final boolean negotiateOnRequest;
 
     private SpnegoAuthenticatorFactory(Builder builder)
     {
-        AuthenticatedURLProvider urlProvider = 
-                   new AuthenticatedURLProvider.Builder()
-                       .keytab(builder.keytab)
-                       .principal(builder.principal)
-                       .sslContext(builder.sslContext)
-                       .hostnameVerifier(builder.hostnameVerifier)
-                       .build();
-        authenticator = new SpnegoAuthenticator(new SpnegoTokenCache(urlProvider));
+        AuthenticatedURLProvider urlProvider = builder.urlProvider;
+        boolean ownsUrlProvider = urlProvider == null;
+        if (ownsUrlProvider)
+        {
+            urlProvider = new AuthenticatedURLProvider.Builder()
+                              .keytab(builder.keytab)
+                              .principal(builder.principal)
+                              .sslContext(builder.sslContext)
+                              .hostnameVerifier(builder.hostnameVerifier)
+                              // negotiating on requests creates its tokens from the shared login
+                              .reuseLogin(builder.reuseLogin || builder.negotiateOnRequest)
+                              .httpClientNegotiation(builder.httpClientNegotiation)
+                              .httpClient(builder.httpClient)
+                              .tlsSessionStats(builder.tlsSessionStats)
+                              .timeouts(negotiationTimeout(builder.connectTimeoutMs, builder.tokenTimeoutMs),
+                                        negotiationTimeout(builder.readTimeoutMs, builder.tokenTimeoutMs))
+                              .build();
+        }
+        SpnegoTokenCache.Builder cacheBuilder = new SpnegoTokenCache.Builder(urlProvider)
+                                                    .refreshRatio(builder.refreshRatio)
+                                                    .keyStrategy(builder.keyStrategy)
+                                                    .metrics(builder.metrics)
+                                                    .closeUrlProvider(ownsUrlProvider);
+        if (builder.failureThreshold != UNSET)
+        {
+            cacheBuilder.negotiationBackoff(builder.failureThreshold, builder.initialBackoffMs, builder.maxBackoffMs);
+        }
+        if (builder.maxConcurrentNegotiations != UNSET)
+        {
+            cacheBuilder.negotiationLimits(builder.maxConcurrentNegotiations, builder.negotiationRate, builder.queueTimeoutMs);
+        }
+        if (builder.negotiationBurst > 0)
+        {
+            cacheBuilder.negotiationBurst(builder.negotiationBurst);
+        }
+        if (builder.negotiationPool != null)
+        {
+            cacheBuilder.negotiationPool(builder.negotiationPool);
+        }
+        if (builder.ttl != UNSET)
+        {
+            cacheBuilder.ttl(builder.ttl);
+        }
+        if (builder.maxEntries != UNSET)
+        {
+            cacheBuilder.maxEntries(builder.maxEntries);
+        }
+        if (builder.expireAfterAccessMs != UNSET)
+        {
+            cacheBuilder.expireAfterAccess(builder.expireAfterAccessMs);
+        }
+        tokenCache = cacheBuilder.build();
+        if (builder.mbeanName != null)
+        {
+            tokenCache.registerMBean(builder.mbeanName);
+        }
+        authenticator = new SpnegoAuthenticator(tokenCache, builder.negotiateOnRequest, builder.tokenTimeoutMs);
+        negotiateOnRequest = builder.negotiateOnRequest;
     }
         
     @Override
@@ -30,6 +85,36 @@ public class SpnegoAuthenticatorFactory implements HttpRequestAuthenticatorFacto
     {
         return authenticator;
     }
+    
+    @Override
+    public SpnegoTokenCache getTokenCache()
+    {
+        return tokenCache;
+    }
+    
+    /**
+     * Whether requests without a cached token are authenticated directly, in
+     * which case SolrJ's HTTP clients must pass the resulting tokens back to
+     * the cache, see TokenHarvestingInterceptor.
+     */
+    public boolean isNegotiateOnRequest()
+    {
+        return negotiateOnRequest;
+    }
+        
+    /**
+     * A negotiation which outlives the requests waiting for it still holds a
+     * negotiation thread, so with a token timeout, negotiations get connect and
+     * read timeouts of the same length unless given their own.
+     */
+    static int negotiationTimeout(int timeoutMs, long tokenTimeoutMs)
+    {
+        if (timeoutMs > 0 || tokenTimeoutMs <= 0)
+        {
+            return timeoutMs;
+        }
+        return (int) Math.min(tokenTimeoutMs, Integer.MAX_VALUE);
+    }
         
     public static class Builder
     {
@@ -37,6 +122,30 @@ public class SpnegoAuthenticatorFactory implements HttpRequestAuthenticatorFacto
         private File keytab;
         private SSLContext sslContext;
         private HostnameVerifier hostnameVerifier;
+        private boolean reuseLogin;
+        private boolean httpClientNegotiation;
+        private HttpClient httpClient;
+        private boolean negotiateOnRequest;
+        private double refreshRatio = SpnegoTokenCache.getRefreshRatioProperty();
+        private TokenKeyStrategy keyStrategy = TokenKeyStrategies.HOST;
+        private TokenCacheMetrics metrics;
+        private String mbeanName;
+        private TlsSessionStats tlsSessionStats;
+        private int failureThreshold = UNSET;
+        private long initialBackoffMs;
+        private long maxBackoffMs;
+        private int maxConcurrentNegotiations = UNSET;
+        private double negotiationRate;
+        private double negotiationBurst;
+        private long queueTimeoutMs;
+        private int connectTimeoutMs;
+        private int readTimeoutMs;
+        private long tokenTimeoutMs;
+        private long ttl = UNSET;
+        private int maxEntries = UNSET;
+        private long expireAfterAccessMs = UNSET;
+        private NegotiationPool negotiationPool;
+        private AuthenticatedURLProvider urlProvider;
         
         public Builder principal(Principal principal)
         {
@@ -62,6 +171,168 @@ public class SpnegoAuthenticatorFactory implements HttpRequestAuthenticatorFacto
             return this;
         }
         
+        public Builder reuseLogin(boolean reuseLogin)
+        {
+            this.reuseLogin = reuseLogin;
+            return this;
+        }
+        
+        public Builder httpClientNegotiation(boolean httpClientNegotiation)
+        {
+            this.httpClientNegotiation = httpClientNegotiation;
+            return this;
+        }
+        
+        public Builder httpClient(HttpClient httpClient)
+        {
+            this.httpClient = httpClient;
+            return this;
+        }
+        
+        public Builder negotiateOnRequest(boolean negotiateOnRequest)
+        {
+            this.negotiateOnRequest = negotiateOnRequest;
+            return this;
+        }
+        
+        public Builder refreshRatio(double refreshRatio)
+        {
+            this.refreshRatio = refreshRatio;
+            return this;
+        }
+        
+        public Builder keyStrategy(TokenKeyStrategy keyStrategy)
+        {
+            this.keyStrategy = keyStrategy;
+            return this;
+        }
+        
+        public Builder metrics(TokenCacheMetrics metrics)
+        {
+            this.metrics = metrics;
+            return this;
+        }
+        
+        public Builder mbeanName(String mbeanName)
+        {
+            this.mbeanName = mbeanName;
+            return this;
+        }
+        
+        public Builder tlsSessionStats(TlsSessionStats tlsSessionStats)
+        {
+            this.tlsSessionStats = tlsSessionStats;
+            return this;
+        }
+        
+        public Builder negotiationBackoff(int failureThreshold, long initialBackoffMs, long maxBackoffMs)
+        {
+            this.failureThreshold = failureThreshold;
+            this.initialBackoffMs = initialBackoffMs;
+            this.maxBackoffMs = maxBackoffMs;
+            return this;
+        }
+        
+        public Builder negotiationLimits(int maxConcurrentNegotiations, double negotiationRate, long queueTimeoutMs)
+        {
+            this.maxConcurrentNegotiations = maxConcurrentNegotiations;
+            this.negotiationRate = negotiationRate;
+            this.queueTimeoutMs = queueTimeoutMs;
+            return this;
+        }
+        
+        public Builder negotiationBurst(double negotiationBurst)
+        {
+            this.negotiationBurst = negotiationBurst;
+            return this;
+        }
+        
+        public Builder negotiationTimeouts(int connectTimeoutMs, int readTimeoutMs)
+        {
+            this.connectTimeoutMs = connectTimeoutMs;
+            this.readTimeoutMs = readTimeoutMs;
+            return this;
+        }
+        
+        /**
+         * Also the default for negotiationTimeouts, where they're not set.
+         */
+        public Builder tokenTimeout(long tokenTimeoutMs)
+        {
+            this.tokenTimeoutMs = tokenTimeoutMs;
+            return this;
+        }
+        
+        /**
+         * Bound the token cache. Each setting given as -1 keeps the cache's
+         * default, from the spnego.token.cache system properties.
+         */
+        public Builder cachePolicy(long ttl, int maxEntries, long expireAfterAccessMs)
+        {
+            this.ttl = ttl;
+            this.maxEntries = maxEntries;
+            this.expireAfterAccessMs = expireAfterAccessMs;
+            return this;
+        }
+        
+        /**
+         * Negotiate on an existing cache's threads and within its limits,
+         * ignoring negotiationLimits and negotiationBurst.
+         */
+        Builder negotiationPool(NegotiationPool negotiationPool)
+        {
+            this.negotiationPool = negotiationPool;
+            return this;
+        }
+        
+        /**
+         * Negotiate with AuthenticatedURLs from this provider, rather than one
+         * built from the Kerberos and SSL settings, so tests can do without a KDC.
+         */
+        Builder urlProvider(AuthenticatedURLProvider urlProvider)
+        {
+            this.urlProvider = urlProvider;
+            return this;
+        }
+        
+        /**
+         * Returns a new Builder with the same settings, so further changes to
+         * one don't affect the other.
+         */
+        Builder copy()
+        {
+            Builder copy = new Builder();
+            copy.principal = principal;
+            copy.keytab = keytab;
+            copy.sslContext = sslContext;
+            copy.hostnameVerifier = hostnameVerifier;
+            copy.reuseLogin = reuseLogin;
+            copy.httpClientNegotiation = httpClientNegotiation;
+            copy.httpClient = httpClient;
+            copy.negotiateOnRequest = negotiateOnRequest;
+            copy.refreshRatio = refreshRatio;
+            copy.keyStrategy = keyStrategy;
+            copy.metrics = metrics;
+            copy.mbeanName = mbeanName;
+            copy.tlsSessionStats = tlsSessionStats;
+            copy.failureThreshold = failureThreshold;
+            copy.initialBackoffMs = initialBackoffMs;
+            copy.maxBackoffMs = maxBackoffMs;
+            copy.maxConcurrentNegotiations = maxConcurrentNegotiations;
+            copy.negotiationRate = negotiationRate;
+            copy.negotiationBurst = negotiationBurst;
+            copy.queueTimeoutMs = queueTimeoutMs;
+            copy.connectTimeoutMs = connectTimeoutMs;
+            copy.readTimeoutMs = readTimeoutMs;
+            copy.tokenTimeoutMs = tokenTimeoutMs;
+            copy.ttl = ttl;
+            copy.maxEntries = maxEntries;
+            copy.expireAfterAccessMs = expireAfterAccessMs;
+            copy.negotiationPool = negotiationPool;
+            copy.urlProvider = urlProvider;
+            return copy;
+        }
+        
         public SpnegoAuthenticatorFactory build()
         {
             if ((keytab == null) != (principal == null))
@@ -0,0 +1,89 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.security.Principal;
+
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.solr.common.params.SolrParams;
+
+import com.cloudera.alfredo.client.KerberosAuthenticator;
+
+/**
+ * Configures SolrJ's HTTP clients to feed tokens from Solr responses back into
+ * a SpnegoTokenCache, using a TokenHarvestingInterceptor, and to retry requests
+ * whose cached token is rejected with a fresh one, using StaleTokenAuthScheme.
+ * This is all in addition to any SSL configuration. SolrJ only supports
+ * a single HttpClientConfigurer, so this extends SSLHttpClientConfigurer rather
+ * than being registered alongside it.
+ */
+public class SpnegoHttpClientConfigurer extends SSLHttpClientConfigurer
+{
+    // HTTP Client only responds to a challenge if it has credentials for the 
+    // scheme, the real ones are the tokens held by the cache
+    private static final Credentials TOKEN_CACHE_CREDENTIALS = new Credentials()
+    {
+        @Override
+        public Principal getUserPrincipal()
+        {
+            return null;
+        }
+
+        @Override
+        public String getPassword()
+        {
+            return null;
+        }
+    };
+
+    private final TokenCacheLocator tokenCaches;
+
+    /**
+     * @param socketFactory SSL socket factory for https connections, or null to
+     * leave the client's SSL configuration alone
+     * @param tokenCache cache to store harvested tokens in
+     */
+    public SpnegoHttpClientConfigurer(SSLSocketFactory socketFactory, SpnegoTokenCache tokenCache)
+    {
+        super(socketFactory);
+        this.tokenCaches = new TokenCacheLocator.Fixed(tokenCache);
+    }
+
+    /**
+     * @param socketFactory SSL socket factory for https connections, or null to
+     * leave the client's SSL configuration alone
+     * @param poolSettings connection pool settings to apply
+     * @param tokenCache cache to store harvested tokens in
+     */
+    public SpnegoHttpClientConfigurer(SSLSocketFactory socketFactory, ConnectionPoolSettings poolSettings,
+                                      SpnegoTokenCache tokenCache)
+    {
+        this(socketFactory, poolSettings, new TokenCacheLocator.Fixed(tokenCache));
+    }
+
+    /**
+     * @param socketFactory SSL socket factory for https connections, or null to
+     * leave the client's SSL configuration alone
+     * @param poolSettings connection pool settings to apply
+     * @param tokenCaches finds the cache for the identity each request is made as
+     */
+    public SpnegoHttpClientConfigurer(SSLSocketFactory socketFactory, ConnectionPoolSettings poolSettings,
+                                      TokenCacheLocator tokenCaches)
+    {
+        super(socketFactory, poolSettings);
+        this.tokenCaches = tokenCaches;
+    }
+
+    @Override
+    protected void configure(DefaultHttpClient httpClient, SolrParams config)
+    {
+        super.configure(httpClient, config);
+        httpClient.addResponseInterceptor(new TokenHarvestingInterceptor(tokenCaches));
+        httpClient.getAuthSchemes().register(KerberosAuthenticator.NEGOTIATE, new StaleTokenAuthScheme.Factory(tokenCaches));
+        httpClient.getCredentialsProvider().setCredentials(
+                new AuthScope(AuthScope.ANY_HOST, AuthScope.ANY_PORT, AuthScope.ANY_REALM, KerberosAuthenticator.NEGOTIATE),
+                TOKEN_CACHE_CREDENTIALS);
+    }
+
+}
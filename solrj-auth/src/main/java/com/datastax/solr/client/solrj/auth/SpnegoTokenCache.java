@@ -1,13 +1,34 @@
 package com.datastax.solr.client.solrj.auth;
 
 import java.io.IOException;
-
+import java.lang.management.ManagementFactory;
+import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
-import java.util.StringTokenizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.solr.common.SolrException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,91 +36,1663 @@ import org.slf4j.LoggerFactory;
 import com.cloudera.alfredo.client.AuthenticatedURL;
 import com.cloudera.alfredo.client.AuthenticatedURL.Token;
 import com.cloudera.alfredo.client.AuthenticationException;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+/**
+ * Caches SPNEGO tokens on a per-host basis, obtaining a new one via an
+ * AuthenticatedURL whenever no valid token is held for a host. What counts as
+ * the same host is decided by a TokenKeyStrategy, by default the host name in
+ * the request. Other strategies can share tokens between aliases of a node, or
+ * across a whole cluster whose nodes all accept the same tokens.
+ *
+ * Tokens are held in a lock-free map as CachedTokens, with their expiry already
+ * parsed, so a cache hit costs a map lookup and a comparison. On a miss, a single
+ * thread negotiates a new token for the host while any other threads requesting
+ * the same host wait for it to complete.
+ *
+ * Tokens can also be obtained asynchronously with getTokenAsync. Asynchronous
+ * negotiations run on a dedicated pool of up to spnego.token.negotiation.threads
+ * threads rather than the caller's, started as needed and stopped once idle,
+ * and share any in-flight negotiation for the same host with both synchronous
+ * and asynchronous callers. Callers which can't wait indefinitely can pass a
+ * timeout to getToken, the negotiation then runs on the same pool and only the
+ * caller gives up on it. Later requests for the host start a fresh negotiation
+ * rather than wait on the one given up on, but a host never has more than
+ * MAX_POOLED_NEGOTIATIONS_PER_HOST negotiations on the pool, so one which
+ * doesn't respond can't take over every thread.
+ *
+ * Optionally, tokens can be refreshed ahead of their expiry. When a refresh ratio
+ * is set, a background thread re-negotiates each host's token once that fraction
+ * of its remaining lifetime has elapsed and swaps it into the cache, so request
+ * threads carry on using the old (still valid) token and don't have to wait on a
+ * handshake. Hosts which saw no requests since their last refresh are left to
+ * expire normally.
+ *
+ * Hits, misses, negotiations and their latency, failures, refreshes and
+ * invalidations are counted per host in TokenCacheStats, and can be published
+ * over JMX with registerMBean or forwarded to an application's own metrics
+ * registry through a TokenCacheMetrics.
+ *
+ * Failed negotiations are remembered per host. After a number of consecutive
+ * failures, requests needing a new token for that host fail fast with the last
+ * error, rather than each starting another handshake, until an exponentially
+ * increasing backoff has passed, see NegotiationCircuitBreaker.
+ *
+ * The number of negotiations in flight at once, and the rate at which they're
+ * started, can be limited to protect the KDC, see NegotiationLimiter.
+ *
+ * A negotiation can also be carried by a request itself, see
+ * startRequestNegotiation. It takes the host's place in the same single
+ * flight, so other requests for the host wait for the token it brings back
+ * rather than each negotiating for themselves.
+ *
+ * By default tokens are held until they expire, with no bound on how many are
+ * held. The cache can instead be limited to a maximum number of tokens,
+ * evicting the least recently used, and drop tokens which haven't been used
+ * for a while. Expired and idle tokens are then swept away in the background.
+ * Once a host's token goes, so do its per host stats, circuit breaker state
+ * and any names the TokenKeyStrategy remembered for it.
+ */
 public class SpnegoTokenCache
 {
     private static final Logger logger = LoggerFactory.getLogger(SpnegoTokenCache.class);
-    
-    private final Cache<String, Token> cache;
+
+    private final ConcurrentMap<String, CachedToken> tokens = new ConcurrentHashMap<String, CachedToken>();
+    // keys from least to most recently used, to within ACCESS_RESOLUTION_MS,
+    // only kept when the number of tokens is bounded
+    private final LinkedHashMap<String, Boolean> accessOrder = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+    private final ConcurrentMap<String, ListenableFuture<CachedToken>> loads = new ConcurrentHashMap<String, ListenableFuture<CachedToken>>();
     private final AuthenticatedURLProvider urlProvider;
+    private final boolean closeUrlProvider;
+    private final TokenKeyStrategy keyStrategy;
+    private final long ttl;
+    private final int maxEntries;
+    private final long expireAfterAccessMs;
+    private final boolean trackAccess;
+    private final ScheduledExecutorService sweeper;
+    private final double refreshRatio;
+    private final ScheduledExecutorService refresher;
+    private final ConcurrentMap<String, Refresh> refreshes = new ConcurrentHashMap<String, Refresh>();
+    // negotiations on the pool, per host, including any given up on
+    static final int MAX_POOLED_NEGOTIATIONS_PER_HOST = 2;
+
+    private final NegotiationPool negotiationPool;
+    private final boolean sharedNegotiationPool;
+    private final ConcurrentHashMultiset<String> pooledNegotiations = ConcurrentHashMultiset.create();
+    private final TokenCacheStats stats;
+    private final NegotiationCircuitBreaker circuitBreaker;
+    private final NegotiationLimiter limiter;
+    private final long queueTimeoutMs;
+    private final long requestNegotiationTimeoutMs;
+    private final Clock clock;
+    private ObjectName mbeanName;
 
     public static final long CACHE_TTL_MS_DEFAULT = 60 * 60 * 1000;
     public static final String CACHE_TTL_MS_PROPERTY = "spnego.token.cache.ttl";
-    
-    private static final String ATTR_SEPARATOR = "&";
-    private static final String EXPIRES_ATTR = "e";
-    
+
+    public static final int MAX_ENTRIES_DEFAULT = 0;
+    public static final String MAX_ENTRIES_PROPERTY = "spnego.token.cache.max.entries";
+
+    public static final long EXPIRE_AFTER_ACCESS_MS_DEFAULT = 0;
+    public static final String EXPIRE_AFTER_ACCESS_MS_PROPERTY = "spnego.token.cache.expire.after.access";
+
+    public static final long SWEEP_INTERVAL_MS_DEFAULT = 60 * 1000;
+    public static final String SWEEP_INTERVAL_MS_PROPERTY = "spnego.token.cache.sweep.interval";
+
+    // how stale a token's last access time may get, so a hit only writes it
+    // once in a while rather than on every request
+    static final long ACCESS_RESOLUTION_MS = 1000;
+
+    public static final double REFRESH_RATIO_DEFAULT = 0;
+    public static final String REFRESH_RATIO_PROPERTY = "spnego.token.refresh.ratio";
+
+    public static final int NEGOTIATION_THREADS_DEFAULT = 16;
+    public static final String NEGOTIATION_THREADS_PROPERTY = "spnego.token.negotiation.threads";
+
+    public static final int FAILURE_THRESHOLD_DEFAULT = 0;
+    public static final String FAILURE_THRESHOLD_PROPERTY = "spnego.negotiation.failure.threshold";
+
+    public static final long BACKOFF_MS_DEFAULT = 1000;
+    public static final String BACKOFF_MS_PROPERTY = "spnego.negotiation.backoff";
+
+    public static final long MAX_BACKOFF_MS_DEFAULT = 60 * 1000;
+    public static final String MAX_BACKOFF_MS_PROPERTY = "spnego.negotiation.backoff.max";
+
+    public static final int MAX_CONCURRENT_NEGOTIATIONS_DEFAULT = 0;
+    public static final String MAX_CONCURRENT_NEGOTIATIONS_PROPERTY = "spnego.negotiation.max.concurrent";
+
+    public static final double NEGOTIATION_RATE_DEFAULT = 0;
+    public static final String NEGOTIATION_RATE_PROPERTY = "spnego.negotiation.rate";
+
+    // 0 allows a burst of one second's worth of negotiations, and at least one
+    public static final double NEGOTIATION_BURST_DEFAULT = 0;
+    public static final String NEGOTIATION_BURST_PROPERTY = "spnego.negotiation.burst";
+
+    public static final long QUEUE_TIMEOUT_MS_DEFAULT = 30 * 1000;
+    public static final String QUEUE_TIMEOUT_MS_PROPERTY = "spnego.negotiation.queue.timeout";
+
+    public static final long REQUEST_NEGOTIATION_TIMEOUT_MS_DEFAULT = 60 * 1000;
+    public static final String REQUEST_NEGOTIATION_TIMEOUT_MS_PROPERTY = "spnego.negotiation.request.timeout";
+
+    public static final String MBEAN_DOMAIN = "com.datastax.solr.client.solrj.auth";
+
+    private static final long WAIT_INDEFINITELY = -1;
+
+    // runs listeners and inline loads on the calling thread
+    private static final Executor SAME_THREAD = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    // don't schedule refreshes closer together than this, a token this close
+    // to expiry will just be renegotiated on demand
+    static final long REFRESH_MIN_DELAY_MS = 100;
+
     public SpnegoTokenCache(AuthenticatedURLProvider urlProvider)
     {
-        this.urlProvider = urlProvider;
-        long ttl = Long.getLong(CACHE_TTL_MS_PROPERTY,  CACHE_TTL_MS_DEFAULT);
-        logger.info(String.format("Initialized SPNEGO token cache with TTL of %s ms", ttl));
-        cache = CacheBuilder.newBuilder()
-                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
-                .build();
+        this(new Builder(urlProvider));
     }
-    
-    public Token getToken(URL url)
+
+    /**
+     * @param urlProvider supplies the AuthenticatedURLs used to obtain new tokens
+     * @param refreshRatio fraction of a token's remaining lifetime after which it
+     * is refreshed in the background. Must be in the range [0, 1), 0 disables
+     * refresh-ahead altogether
+     */
+    public SpnegoTokenCache(AuthenticatedURLProvider urlProvider, double refreshRatio)
+    {
+        this(new Builder(urlProvider).refreshRatio(refreshRatio));
+    }
+
+    /**
+     * @param urlProvider supplies the AuthenticatedURLs used to obtain new tokens
+     * @param refreshRatio fraction of a token's remaining lifetime after which it
+     * is refreshed in the background. Must be in the range [0, 1), 0 disables
+     * refresh-ahead altogether
+     * @param keyStrategy decides which requests share a token
+     */
+    public SpnegoTokenCache(AuthenticatedURLProvider urlProvider, double refreshRatio, TokenKeyStrategy keyStrategy)
+    {
+        this(new Builder(urlProvider).refreshRatio(refreshRatio).keyStrategy(keyStrategy));
+    }
+
+    /**
+     * @param urlProvider supplies the AuthenticatedURLs used to obtain new tokens
+     * @param refreshRatio fraction of a token's remaining lifetime after which it
+     * is refreshed in the background. Must be in the range [0, 1), 0 disables
+     * refresh-ahead altogether
+     * @param keyStrategy decides which requests share a token
+     * @param metrics also receives the cache's events, may be null
+     */
+    public SpnegoTokenCache(AuthenticatedURLProvider urlProvider, double refreshRatio, TokenKeyStrategy keyStrategy,
+                            TokenCacheMetrics metrics)
+    {
+        this(new Builder(urlProvider).refreshRatio(refreshRatio).keyStrategy(keyStrategy).metrics(metrics));
+    }
+
+    private SpnegoTokenCache(Builder builder)
     {
-        logger.debug("Checking for cached token for host : " + url.getHost());
-        Token token = getFromCache(url);
-        if (isExpired(token))
+        if (builder.refreshRatio < 0 || builder.refreshRatio >= 1)
+        {
+            throw new IllegalArgumentException("Token refresh ratio must be in the range [0, 1), got " + builder.refreshRatio);
+        }
+        this.urlProvider = builder.urlProvider;
+        this.closeUrlProvider = builder.closeUrlProvider;
+        this.keyStrategy = builder.keyStrategy;
+        this.refreshRatio = builder.refreshRatio;
+        this.clock = builder.clock;
+        this.stats = new TokenCacheStats(builder.metrics);
+        this.circuitBreaker = new NegotiationCircuitBreaker(builder.failureThreshold, builder.initialBackoffMs, builder.maxBackoffMs, clock);
+        if (builder.negotiationPool != null)
+        {
+            this.negotiationPool = builder.negotiationPool;
+            this.sharedNegotiationPool = true;
+        }
+        else
+        {
+            double burst = builder.negotiationBurst > 0 ? builder.negotiationBurst : Math.max(1, builder.negotiationRate);
+            NegotiationLimiter limiter = new NegotiationLimiter(builder.maxConcurrentNegotiations, builder.negotiationRate, burst);
+            this.negotiationPool = new NegotiationPool(builder.negotiationThreads, limiter);
+            this.sharedNegotiationPool = false;
+            if (builder.maxConcurrentNegotiations > 0 || builder.negotiationRate > 0)
+            {
+                logger.info(String.format("Limiting SPNEGO negotiations to %s at once and %s per second",
+                                          builder.maxConcurrentNegotiations == 0 ? "unlimited" : builder.maxConcurrentNegotiations,
+                                          builder.negotiationRate == 0 ? "unlimited" : builder.negotiationRate));
+            }
+        }
+        this.limiter = negotiationPool.getLimiter();
+        this.queueTimeoutMs = builder.queueTimeoutMs;
+        this.requestNegotiationTimeoutMs = builder.requestNegotiationTimeoutMs;
+        this.ttl = builder.ttl;
+        this.maxEntries = builder.maxEntries;
+        this.expireAfterAccessMs = builder.expireAfterAccessMs;
+        this.trackAccess = maxEntries > 0 || expireAfterAccessMs > 0;
+        logger.info(String.format("Initialized SPNEGO token cache with TTL of %s, max entries %s, expire after access %s",
+                                  ttl > 0 ? ttl + " ms" : "token expiry",
+                                  maxEntries > 0 ? maxEntries : "unlimited",
+                                  expireAfterAccessMs > 0 ? expireAfterAccessMs + " ms" : "never"));
+
+        if (trackAccess)
+        {
+            sweeper = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("spnego-token-cache-sweep-%d")
+                        .build());
+            sweeper.scheduleWithFixedDelay(new Sweep(), builder.sweepIntervalMs, builder.sweepIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        else
+        {
+            sweeper = null;
+        }
+
+        if (refreshRatio > 0)
         {
-            cache.invalidate(url.getHost());
-            return getFromCache(url);
+            logger.info(String.format("Refreshing SPNEGO tokens after %s of their remaining lifetime", refreshRatio));
+            refresher = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("spnego-token-refresh-%d")
+                        .build());
         }
         else
         {
-            return token;
+            refresher = null;
+        }
+    }
+
+    public Token getToken(URL url)
+    {
+        return getCachedToken(keyOf(url), url, null, WAIT_INDEFINITELY).getToken();
+    }
+
+    /**
+     * As getToken, but gives up with a SolrException if no token could be
+     * obtained within the timeout. The negotiation itself carries on in the
+     * background on the cache's negotiation threads, and its token is cached
+     * for later requests if it succeeds.
+     */
+    public Token getToken(URL url, long timeout, TimeUnit unit)
+    {
+        return getCachedToken(keyOf(url), url, null, unit.toNanos(timeout)).getToken();
+    }
+
+    /**
+     * Returns the cached token for the host of the supplied request URI, obtaining
+     * a new one first if necessary. This is the per-request path, so when a valid
+     * token is already cached no objects are created.
+     */
+    public CachedToken getCachedToken(URI uri)
+    {
+        return getCachedToken(keyOf(uri), null, uri, WAIT_INDEFINITELY);
+    }
+
+    /**
+     * As getCachedToken, but waits no longer than the timeout for a token to be
+     * negotiated, see getToken(URL, long, TimeUnit).
+     */
+    public CachedToken getCachedToken(URI uri, long timeout, TimeUnit unit)
+    {
+        return getCachedToken(keyOf(uri), null, uri, unit.toNanos(timeout));
+    }
+
+    /**
+     * Returns the cached token for the host of the supplied request URI if there
+     * is one and it's still valid, or null otherwise. Never negotiates.
+     */
+    public CachedToken getValidToken(URI uri)
+    {
+        String key = keyOf(uri);
+        CachedToken cached = tokens.get(key);
+        long now = clock.currentTimeMillis();
+        if (cached == null || cached.isExpired(now))
+        {
+            stats.recordMiss(key);
+            return null;
+        }
+        stats.recordHit(key);
+        recordAccess(key, cached, now);
+        return cached;
+    }
+
+    /**
+     * As getValidToken, but a host with no valid token doesn't count as a miss,
+     * for callers which only use a token when the host has asked for one.
+     */
+    CachedToken peekValidToken(URI uri)
+    {
+        String key = keyOf(uri);
+        CachedToken cached = tokens.get(key);
+        long now = clock.currentTimeMillis();
+        if (cached == null || cached.isExpired(now))
+        {
+            return null;
+        }
+        stats.recordHit(key);
+        recordAccess(key, cached, now);
+        return cached;
+    }
+
+    /**
+     * Stores a token for a host obtained outside of the cache, e.g. from the
+     * response to a request which carried its own Negotiate header. It replaces
+     * the cached token unless that one outlives it.
+     */
+    public void putToken(URI uri, Token token)
+    {
+        String key = keyOf(uri);
+        long now = clock.currentTimeMillis();
+        CachedToken cached = new CachedToken(token, notAfter(now), now);
+        if (cached.isExpired(now))
+        {
+            logger.debug("Ignoring expired or invalid token received from host " + uri.getHost());
+            return;
+        }
+        putIfNewer(key, cached);
+    }
+
+    /**
+     * Returns a snapshot of all the valid tokens currently cached, which can be
+     * imported into another cache with importTokens, in this or another process.
+     */
+    public TokenBundle exportTokens()
+    {
+        long now = clock.currentTimeMillis();
+        List<TokenBundle.Entry> entries = new ArrayList<TokenBundle.Entry>();
+        for (Map.Entry<String, CachedToken> entry : tokens.entrySet())
+        {
+            CachedToken cached = entry.getValue();
+            if (!cached.isExpired(now))
+            {
+                entries.add(new TokenBundle.Entry(entry.getKey(), cached.getToken().toString(), cached.getExpires()));
+            }
+        }
+        logger.debug(String.format("Exported %s SPNEGO tokens", entries.size()));
+        return new TokenBundle(entries);
+    }
+
+    /**
+     * Adds the still valid tokens from a bundle exported by another cache. An
+     * imported token only replaces one already cached if it expires later, and
+     * is kept no longer than this cache's TTL allows, from the time of import.
+     *
+     * @return the number of tokens imported
+     */
+    public int importTokens(TokenBundle bundle)
+    {
+        long now = clock.currentTimeMillis();
+        int imported = 0;
+        for (TokenBundle.Entry entry : bundle.getEntries())
+        {
+            CachedToken cached = new CachedToken(new Token(entry.getToken()), Math.min(entry.getExpires(), notAfter(now)), now);
+            if (!cached.isExpired(now) && putIfNewer(entry.getKey(), cached))
+            {
+                imported++;
+            }
+        }
+        logger.info(String.format("Imported %s of %s SPNEGO tokens", imported, bundle.size()));
+        return imported;
+    }
+
+    /**
+     * Removes the cached token for a host, but only if it's the one that was
+     * rejected. When many requests see the same token rejected, only the first
+     * to get here invalidates it, the others then share the negotiation of its
+     * replacement rather than discarding that too.
+     *
+     * @param uri the request which was rejected
+     * @param rejectedHeader value of the Cookie header carrying the rejected token
+     * @return true if the token was invalidated
+     */
+    public boolean invalidate(URI uri, String rejectedHeader)
+    {
+        String key = keyOf(uri);
+        CachedToken current = tokens.get(key);
+        if (current != null
+            && current.getHeader().getValue().equals(rejectedHeader)
+            && tokens.remove(key, current))
+        {
+            untouch(key);
+            stats.recordInvalidation(key);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns an Authorization header value carrying a new SPNEGO token for the
+     * host of the supplied request URI, to authenticate that request directly
+     * instead of negotiating a cached token first.
+     */
+    public String getNegotiateHeader(URI uri)
+    {
+        try
+        {
+            return urlProvider.getNegotiateHeader(uri.getHost());
+        }
+        catch (AuthenticationException e)
+        {
+            throw new SolrException(SolrException.ErrorCode.UNAUTHORIZED, e.getMessage(), e);
         }
     }
-    
-    private boolean isExpired(Token token)
+
+    /**
+     * Starts a negotiation which is carried by the request to the given URI,
+     * in an Authorization header, instead of a separate handshake. It stands
+     * in for a load of the host's token, so other requests for the host wait
+     * on it, and completes once the response to the request is passed to
+     * RequestNegotiation.complete, see TokenHarvestingInterceptor.
+     *
+     * @return the negotiation, or null if the host already has a negotiation
+     * in flight, whose token can be waited for with getCachedToken
+     */
+    RequestNegotiation startRequestNegotiation(URI uri)
     {
-        StringTokenizer st = new StringTokenizer(token.toString(), ATTR_SEPARATOR);
-        while (st.hasMoreTokens()) {
-            String part = st.nextToken();
-            int separator = part.indexOf('=');
-            if (separator == -1) {
-                // if the token string is invalid, return true so we invalidate from 
-                // cache and try to get a new token
-                return true;
+        String key = keyOf(uri);
+        circuitBreaker.checkClosed(key);
+        RequestNegotiation negotiation = new RequestNegotiation(key, uri);
+        while (true)
+        {
+            ListenableFuture<CachedToken> inFlight = loads.putIfAbsent(key, negotiation);
+            if (inFlight == null)
+            {
+                break;
+            }
+            if (!abandonIfOverdue(key, inFlight))
+            {
+                return null;
             }
-            if ( part.substring(0, separator).equals(EXPIRES_ATTR) )
+        }
+        try
+        {
+            negotiation.start();
+        }
+        catch (SolrException e)
+        {
+            negotiation.fail(e);
+            throw e;
+        }
+        return negotiation;
+    }
+
+    /**
+     * Returns a future token for the host of the supplied URL. If a valid token
+     * is cached the future is already complete, otherwise it completes when a
+     * negotiation with the host does, failing with a SolrException if that
+     * negotiation fails. Negotiations started here run on the cache's own
+     * negotiation threads, so the caller is never blocked, and concurrent
+     * requests for the same host share a single negotiation.
+     */
+    public ListenableFuture<Token> getTokenAsync(URL url)
+    {
+        final String key = keyOf(url);
+        CachedToken cached = tokens.get(key);
+        long now = clock.currentTimeMillis();
+        if (cached != null && !cached.isExpired(now))
+        {
+            stats.recordHit(key);
+            recordAccess(key, cached, now);
+            return Futures.immediateFuture(cached.getToken());
+        }
+        stats.recordMiss(key);
+        try
+        {
+            circuitBreaker.checkClosed(key);
+        }
+        catch (SolrException e)
+        {
+            return Futures.immediateFailedFuture(e);
+        }
+
+        final ListenableFuture<CachedToken> load = load(key, url, getNegotiator());
+        final SettableFuture<Token> result = SettableFuture.create();
+        load.addListener(new Runnable()
+        {
+            @Override
+            public void run()
             {
-                long expires = Long.parseLong(part.substring(separator + 1));
-                return expires != -1 && System.currentTimeMillis() > expires;
+                try
+                {
+                    CachedToken loaded = getLoaded(load);
+                    recordAccess(key, loaded, clock.currentTimeMillis());
+                    result.set(loaded.getToken());
+                }
+                catch (SolrException e)
+                {
+                    result.setException(e);
+                }
             }
+        }, SAME_THREAD);
+        return result;
+    }
+
+    /**
+     * Obtains tokens for all of the supplied URLs in parallel, so that the first
+     * requests to each host don't have to wait on a SPNEGO handshake. Hosts which
+     * already have a valid token cached are not negotiated again.
+     * 
+     * The returned future completes once every URL has been tried, with one
+     * result per URL in the order supplied. It never fails, individual errors
+     * are reported by the corresponding WarmupResult. Callers can wait on it
+     * before sending traffic, or carry on and let the warm-up finish in the
+     * background.
+     * 
+     * @param urls Solr URLs to authenticate against, typically one base URL per node
+     * @param parallelism maximum number of negotiations to run at once
+     */
+    public ListenableFuture<List<WarmupResult>> warmUp(Collection<URL> urls, int parallelism)
+    {
+        if (parallelism < 1)
+        {
+            throw new IllegalArgumentException("Warm up parallelism must be at least 1, got " + parallelism);
+        }
+        logger.info(String.format("Warming up SPNEGO tokens for %s URLs", urls.size()));
+        ListeningExecutorService executor = MoreExecutors.listeningDecorator(
+                Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, urls.size())),
+                        new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("spnego-token-warmup-%d")
+                            .build()));
+        List<ListenableFuture<WarmupResult>> results = new ArrayList<ListenableFuture<WarmupResult>>(urls.size());
+        for (URL url : urls)
+        {
+            results.add(executor.submit(new Warmup(url)));
+        }
+        // already submitted warm ups will still run to completion
+        executor.shutdown();
+        return Futures.allAsList(results);
+    }
+
+    /**
+     * Stops any background token refreshes. Cached tokens remain usable, but
+     * will be renegotiated on demand once they expire. A provider the cache was
+     * built to close has its Kerberos login renewal and HTTP client stopped.
+     */
+    public void close()
+    {
+        unregisterMBean();
+        if (refresher != null)
+        {
+            refresher.shutdownNow();
+        }
+        if (sweeper != null)
+        {
+            sweeper.shutdownNow();
+        }
+        if (!sharedNegotiationPool)
+        {
+            negotiationPool.shutdown();
+        }
+        if (closeUrlProvider)
+        {
+            urlProvider.close();
+        }
+    }
+
+    /**
+     * Returns the threads and limits this cache negotiates with, so other
+     * caches can share them.
+     */
+    NegotiationPool getNegotiationPool()
+    {
+        return negotiationPool;
+    }
+
+    /**
+     * Returns the counts and latencies recorded by this cache.
+     */
+    public TokenCacheStats getStats()
+    {
+        return stats;
+    }
+
+    /**
+     * Publishes this cache's stats and the remaining lifetime of its tokens as
+     * an MBean in the platform MBeanServer, named
+     * com.datastax.solr.client.solrj.auth:type=SpnegoTokenCache,name=(name).
+     * The MBean is unregistered when the cache is closed.
+     *
+     * @param name distinguishes this cache from any others in the same JVM
+     */
+    public synchronized void registerMBean(String name)
+    {
+        unregisterMBean();
+        try
+        {
+            ObjectName objectName = new ObjectName(MBEAN_DOMAIN + ":type=SpnegoTokenCache,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new SpnegoTokenCacheMonitor(this), objectName);
+            mbeanName = objectName;
+            logger.info("Registered SPNEGO token cache MBean " + objectName);
+        }
+        catch (JMException e)
+        {
+            logger.warn("Unable to register SPNEGO token cache MBean", e);
         }
-        // strange, the token appeared to contain no expiry information
-        // this should not happen, so something is up. lets return true, 
-        // expire this token and try to grab a new one
-        return true;
     }
 
-    private Token getFromCache(final URL url)
+    private synchronized void unregisterMBean()
     {
+        if (mbeanName == null)
+        {
+            return;
+        }
         try
         {
-            Token token = cache.get(url.getHost(), new Callable<Token>(){
-                @Override
-                public Token call() throws IOException, AuthenticationException
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(mbeanName))
+            {
+                server.unregisterMBean(mbeanName);
+            }
+        }
+        catch (JMException e)
+        {
+            logger.warn("Unable to unregister SPNEGO token cache MBean " + mbeanName, e);
+        }
+        mbeanName = null;
+    }
+
+    Map<String, CachedToken> getTokens()
+    {
+        return Collections.unmodifiableMap(tokens);
+    }
+
+    private CachedToken getCachedToken(String key, URL url, URI uri, long timeoutNanos)
+    {
+        CachedToken cached = tokens.get(key);
+        long now = clock.currentTimeMillis();
+        if (cached != null && !cached.isExpired(now))
+        {
+            stats.recordHit(key);
+        }
+        else
+        {
+            stats.recordMiss(key);
+            circuitBreaker.checkClosed(key);
+            if (url == null)
+            {
+                url = toURL(uri);
+            }
+            long deadline = System.nanoTime() + timeoutNanos;
+            cached = load(key, url, timeoutNanos);
+            if (cached.isExpired(clock.currentTimeMillis()))
+            {
+                // the server handed us a token which was already expired or which
+                // we couldn't parse, have one more go before giving up on it
+                cached = load(key, url, timeoutNanos == WAIT_INDEFINITELY ? WAIT_INDEFINITELY : deadline - System.nanoTime());
+            }
+        }
+
+        recordAccess(key, cached, now);
+        return cached;
+    }
+
+    private void recordAccess(String key, CachedToken cached, long now)
+    {
+        // only write when something has changed, the hit path is shared by
+        // every request thread
+        if (!cached.accessed)
+        {
+            cached.accessed = true;
+        }
+        if (trackAccess && now - cached.lastAccessed >= ACCESS_RESOLUTION_MS)
+        {
+            cached.lastAccessed = now;
+            touch(key);
+        }
+    }
+
+    private long notAfter(long now)
+    {
+        return ttl > 0 ? now + ttl : CachedToken.NEVER_EXPIRES;
+    }
+
+    private void store(String key, CachedToken cached)
+    {
+        tokens.put(key, cached);
+        touch(key);
+        evictIfFull();
+    }
+
+    /**
+     * Moves a key to the most recently used end of the access order.
+     */
+    private void touch(String key)
+    {
+        if (maxEntries <= 0)
+        {
+            return;
+        }
+        synchronized (accessOrder)
+        {
+            accessOrder.put(key, Boolean.TRUE);
+        }
+    }
+
+    private void untouch(String key)
+    {
+        if (maxEntries <= 0)
+        {
+            return;
+        }
+        synchronized (accessOrder)
+        {
+            accessOrder.remove(key);
+        }
+    }
+
+    /**
+     * Drops what's held for a host whose token has been evicted or swept, as
+     * it may never be asked for again.
+     */
+    private void forget(String key)
+    {
+        untouch(key);
+        if (tokens.containsKey(key))
+        {
+            // a new token arrived in the meantime
+            return;
+        }
+        stats.forget(key);
+        circuitBreaker.forget(key);
+        if (keyStrategy instanceof TokenKeyStrategies.Prunable)
+        {
+            ((TokenKeyStrategies.Prunable) keyStrategy).forget(key);
+        }
+    }
+
+    /**
+     * Removes the least recently used tokens until the cache is back within its
+     * size bound, taking them from the front of the access order.
+     */
+    private void evictIfFull()
+    {
+        if (maxEntries <= 0)
+        {
+            return;
+        }
+        while (tokens.size() > maxEntries)
+        {
+            String eldestKey;
+            synchronized (accessOrder)
+            {
+                Iterator<String> keys = accessOrder.keySet().iterator();
+                if (!keys.hasNext())
                 {
-                    logger.debug("No token found for host, obtaining new one via AuthenticatedURL");
-                    AuthenticatedURL authenticatedUrl = urlProvider.get();
-                    Token token = new AuthenticatedURL.Token();
-                    return authenticatedUrl.authenticateWithToken(url, token);
+                    return;
                 }
-            });
-            return token;
+                eldestKey = keys.next();
+                keys.remove();
+            }
+            CachedToken eldest = tokens.get(eldestKey);
+            if (eldest != null && tokens.remove(eldestKey, eldest))
+            {
+                logger.debug("Evicted least recently used token for " + eldestKey + ", cache is full");
+                forget(eldestKey);
+            }
         }
-        catch(ExecutionException e)
+    }
+
+    private CachedToken load(String key, URL url, long timeoutNanos)
+    {
+        ListenableFuture<CachedToken> inFlight = loads.get(key);
+        if (inFlight instanceof RequestNegotiation)
         {
-            logger.debug("Error performing HTTP Authentication for Solr client request", e.getCause());
-            throw new SolrException(SolrException.ErrorCode.UNAUTHORIZED, e.getCause().getMessage(), e.getCause());
+            // the response carrying its token may never come back, so wait no
+            // longer than the request should take, then negotiate separately
+            RequestNegotiation negotiation = (RequestNegotiation) inFlight;
+            long waitNanos = negotiation.getRemainingNanos();
+            if (timeoutNanos == WAIT_INDEFINITELY || waitNanos < timeoutNanos)
+            {
+                long start = System.nanoTime();
+                try
+                {
+                    return getLoaded(negotiation, waitNanos);
+                }
+                catch (TimeoutException e)
+                {
+                    abandonIfOverdue(key, negotiation);
+                    if (timeoutNanos != WAIT_INDEFINITELY)
+                    {
+                        timeoutNanos -= System.nanoTime() - start;
+                    }
+                }
+            }
+        }
+        if (timeoutNanos == WAIT_INDEFINITELY)
+        {
+            // run the negotiation on this thread, unless one is already in flight
+            return getLoaded(load(key, url, SAME_THREAD));
+        }
+        // the caller can't be released from a negotiation running on its own
+        // thread, so run it on the negotiation pool and wait only until the deadline
+        ListenableFuture<CachedToken> load = load(key, url, getNegotiator());
+        try
+        {
+            return getLoaded(load, Math.max(0, timeoutNanos));
+        }
+        catch (TimeoutException e)
+        {
+            abandon(key, load);
+            throw new SolrException(SolrException.ErrorCode.UNAUTHORIZED,
+                                    String.format("Timed out after %s ms waiting for SPNEGO token for %s",
+                                                  TimeUnit.NANOSECONDS.toMillis(timeoutNanos), key), e);
+        }
+    }
+
+    /**
+     * Stops sharing a pooled negotiation which a caller has given up on, so the
+     * next request for the host negotiates afresh rather than waiting on one
+     * which may never finish. It carries on, and caches its token if it gets
+     * one. Once the host has MAX_POOLED_NEGOTIATIONS_PER_HOST on the pool, the
+     * latest is kept for later requests to wait on instead.
+     */
+    private void abandon(String key, ListenableFuture<CachedToken> load)
+    {
+        if (pooledNegotiations.count(key) < MAX_POOLED_NEGOTIATIONS_PER_HOST && loads.remove(key, load))
+        {
+            logger.debug("Gave up waiting on negotiation with " + key + ", the next request will negotiate again");
+        }
+    }
+
+    private ListenableFuture<CachedToken> load(final String key, URL url, Executor executor)
+    {
+        final boolean pooled = executor != SAME_THREAD;
+        final ListenableFutureTask<CachedToken> task = ListenableFutureTask.create(new Load(key, url));
+        while (true)
+        {
+            ListenableFuture<CachedToken> inFlight = loads.putIfAbsent(key, task);
+            if (inFlight == null)
+            {
+                break;
+            }
+            if (!abandonIfOverdue(key, inFlight))
+            {
+                return inFlight;
+            }
+        }
+
+        if (pooled)
+        {
+            pooledNegotiations.add(key);
+        }
+        task.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                loads.remove(key, task);
+                if (pooled)
+                {
+                    pooledNegotiations.remove(key);
+                }
+            }
+        }, SAME_THREAD);
+        try
+        {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            loads.remove(key, task);
+            if (pooled)
+            {
+                pooledNegotiations.remove(key);
+            }
+            return Futures.immediateFailedFuture(e);
+        }
+        return task;
+    }
+
+    /**
+     * Gives up on a request negotiation whose response should have arrived
+     * by now, e.g. because the request failed, so the host can be negotiated
+     * with again.
+     *
+     * @return true if the load was abandoned, false if it's still in flight
+     */
+    private boolean abandonIfOverdue(String key, ListenableFuture<CachedToken> load)
+    {
+        if (load instanceof RequestNegotiation && ((RequestNegotiation) load).getRemainingNanos() <= 0)
+        {
+            ((RequestNegotiation) load).fail(new TimeoutException(String.format(
+                    "No response to request negotiating with %s after %s ms", key, requestNegotiationTimeoutMs)));
+            return true;
+        }
+        return false;
+    }
+
+    private CachedToken getLoaded(ListenableFuture<CachedToken> load)
+    {
+        try
+        {
+            return getLoaded(load, WAIT_INDEFINITELY);
+        }
+        catch (TimeoutException e)
+        {
+            // can't happen without a timeout
+            throw new AssertionError(e);
+        }
+    }
+
+    private CachedToken getLoaded(ListenableFuture<CachedToken> load, long timeoutNanos) throws TimeoutException
+    {
+        try
+        {
+            return (timeoutNanos == WAIT_INDEFINITELY) ? load.get() : load.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        catch(ExecutionException e)
+        {
+            logger.debug("Error performing HTTP Authentication for Solr client request", e.getCause());
+            throw new SolrException(SolrException.ErrorCode.UNAUTHORIZED, e.getCause().getMessage(), e.getCause());
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new SolrException(SolrException.ErrorCode.UNAUTHORIZED, "Interrupted waiting for SPNEGO token", e);
+        }
+    }
+
+    private Executor getNegotiator()
+    {
+        return negotiationPool.getExecutor();
+    }
+
+    private CachedToken negotiate(String key, URL url) throws IOException, AuthenticationException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            AuthenticatedURL authenticatedUrl = urlProvider.get();
+            Token token = new AuthenticatedURL.Token();
+            token = authenticatedUrl.authenticateWithToken(url, token);
+            stats.recordNegotiation(key, System.nanoTime() - start);
+            long now = clock.currentTimeMillis();
+            return new CachedToken(token, notAfter(now), now);
+        }
+        catch (IOException e)
+        {
+            stats.recordNegotiationFailure(key, System.nanoTime() - start, e);
+            throw e;
+        }
+        catch (AuthenticationException e)
+        {
+            stats.recordNegotiationFailure(key, System.nanoTime() - start, e);
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            stats.recordNegotiationFailure(key, System.nanoTime() - start, e);
+            throw e;
+        }
+    }
+
+    private void scheduleRefresh(String key, URL url, CachedToken cached)
+    {
+        if (refresher == null)
+        {
+            return;
+        }
+
+        long now = clock.currentTimeMillis();
+        long delay = (long) ((cached.getExpires() - now) * refreshRatio);
+        Refresh refresh = new Refresh(key, url);
+        Refresh previous = refreshes.put(key, refresh);
+        if (previous != null)
+        {
+            previous.cancelled = true;
+        }
+
+        if (delay < REFRESH_MIN_DELAY_MS)
+        {
+            logger.debug("Token for " + key + " expires too soon to refresh ahead");
+            refreshes.remove(key, refresh);
+            return;
+        }
+        logger.debug(String.format("Scheduling refresh of token for %s in %s ms", key, delay));
+        refresher.schedule(refresh, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean putIfNewer(String key, CachedToken cached)
+    {
+        return putIfNewer(key, cached, true);
+    }
+
+    /**
+     * Caches the token unless the one already cached expires no earlier.
+     *
+     * @param inheritAccess whether a replaced token's use carries over to the
+     * new one, so it's refreshed in turn; a refresh starts afresh
+     */
+    private boolean putIfNewer(String key, CachedToken cached, boolean inheritAccess)
+    {
+        while (true)
+        {
+            CachedToken current = tokens.get(key);
+            if (current == null)
+            {
+                if (tokens.putIfAbsent(key, cached) == null)
+                {
+                    logger.debug("Stored new token for " + key);
+                    touch(key);
+                    evictIfFull();
+                    return true;
+                }
+            }
+            else if (current.getExpires() >= cached.getExpires())
+            {
+                return false;
+            }
+            else
+            {
+                if (inheritAccess)
+                {
+                    cached.accessed = current.accessed;
+                }
+                cached.lastAccessed = current.lastAccessed;
+                if (tokens.replace(key, current, cached))
+                {
+                    logger.debug("Replaced token for " + key + " with newer one");
+                    return true;
+                }
+            }
+        }
+    }
+
+    private String keyOf(URI uri)
+    {
+        return keyStrategy.getKey(uri.getScheme(), uri.getHost(), uri.getPort());
+    }
+
+    private String keyOf(URL url)
+    {
+        return keyStrategy.getKey(url.getProtocol(), url.getHost(), url.getPort());
+    }
+
+    private static URL toURL(URI uri)
+    {
+        try
+        {
+            return uri.toURL();
+        }
+        catch (MalformedURLException e)
+        {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e.getMessage(), e);
+        }
+    }
+
+    static double getRefreshRatioProperty()
+    {
+        return getDoubleProperty(REFRESH_RATIO_PROPERTY, REFRESH_RATIO_DEFAULT);
+    }
+
+    private static double getDoubleProperty(String name, double defaultValue)
+    {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * Negotiates a new token for a host which has none, or only an expired one.
+     * Runs at most once at a time per host, other callers wait on its result.
+     */
+    private class Load implements Callable<CachedToken>
+    {
+        private final String key;
+        private final URL url;
+
+        private Load(String key, URL url)
+        {
+            this.key = key;
+            this.url = url;
+        }
+
+        @Override
+        public CachedToken call() throws IOException, AuthenticationException, TimeoutException, InterruptedException
+        {
+            // another thread may have completed a load between our cache miss
+            // and this one starting
+            CachedToken current = tokens.get(key);
+            if (current != null && !current.isExpired(clock.currentTimeMillis()))
+            {
+                return current;
+            }
+
+            logger.debug("No token found for " + key + ", obtaining new one via AuthenticatedURL");
+            if (!limiter.acquire(NegotiationLimiter.Priority.DEMAND, queueTimeoutMs, TimeUnit.MILLISECONDS))
+            {
+                throw new TimeoutException(String.format("Timed out after %s ms waiting for a turn to negotiate with %s",
+                                                         queueTimeoutMs, key));
+            }
+            CachedToken cached;
+            try
+            {
+                cached = negotiate(key, url);
+            }
+            catch (IOException e)
+            {
+                circuitBreaker.recordFailure(key, e);
+                throw e;
+            }
+            catch (AuthenticationException e)
+            {
+                circuitBreaker.recordFailure(key, e);
+                throw e;
+            }
+            catch (RuntimeException e)
+            {
+                circuitBreaker.recordFailure(key, e);
+                throw e;
+            }
+            finally
+            {
+                limiter.release();
+            }
+            circuitBreaker.recordSuccess(key);
+            store(key, cached);
+            scheduleRefresh(key, url, cached);
+            return cached;
+        }
+    }
+
+    /**
+     * A negotiation carried by a request, in place of a Load. The GSS context
+     * is kept until the response arrives, so the server's mutual
+     * authentication token is verified before the token it returns is cached.
+     */
+    class RequestNegotiation extends AbstractFuture<CachedToken>
+    {
+        private final String key;
+        private final URI uri;
+        private final long startNanos = System.nanoTime();
+        private NegotiateContext context;
+        private String header;
+
+        private RequestNegotiation(String key, URI uri)
+        {
+            this.key = key;
+            this.uri = uri;
+        }
+
+        private void start()
+        {
+            try
+            {
+                if (!limiter.acquire(NegotiationLimiter.Priority.DEMAND, queueTimeoutMs, TimeUnit.MILLISECONDS))
+                {
+                    throw new SolrException(SolrException.ErrorCode.UNAUTHORIZED,
+                                            String.format("Timed out after %s ms waiting for a turn to negotiate with %s",
+                                                          queueTimeoutMs, key));
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new SolrException(SolrException.ErrorCode.UNAUTHORIZED, "Interrupted waiting for a turn to negotiate", e);
+            }
+            try
+            {
+                // only creating the context involves the KDC, for the service ticket
+                context = urlProvider.createNegotiateContext(uri.getHost());
+                header = urlProvider.step(context, null);
+            }
+            catch (AuthenticationException e)
+            {
+                throw new SolrException(SolrException.ErrorCode.UNAUTHORIZED, e.getMessage(), e);
+            }
+            finally
+            {
+                limiter.release();
+            }
+        }
+
+        /**
+         * @return the Authorization header value the request must carry
+         */
+        String getHeader()
+        {
+            return header;
+        }
+
+        long getRemainingNanos()
+        {
+            return TimeUnit.MILLISECONDS.toNanos(requestNegotiationTimeoutMs) - (System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Completes the negotiation from the response to the request which
+         * carried it, caching the token the server returned.
+         */
+        synchronized void complete(HttpResponse response)
+        {
+            if (isDone())
+            {
+                return;
+            }
+            String tokenString = AuthCookies.getToken(response);
+            int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_UNAUTHORIZED || tokenString == null)
+            {
+                fail(new AuthenticationException("Negotiation on request to " + key + " failed, status: " + status));
+                return;
+            }
+            try
+            {
+                String challenge = NegotiateContext.getChallenge(response);
+                if (challenge != null && challenge.length() > 0 && !context.isEstablished())
+                {
+                    // final leg of mutual authentication
+                    urlProvider.step(context, challenge);
+                }
+            }
+            catch (AuthenticationException e)
+            {
+                fail(e);
+                return;
+            }
+            long now = clock.currentTimeMillis();
+            CachedToken cached = new CachedToken(new Token(tokenString), notAfter(now), now);
+            if (cached.isExpired(now))
+            {
+                fail(new AuthenticationException("Expired or invalid token received from " + key));
+                return;
+            }
+            stats.recordNegotiation(key, System.nanoTime() - startNanos);
+            circuitBreaker.recordSuccess(key);
+            putIfNewer(key, cached);
+            scheduleRefresh(key, toURL(uri), cached);
+            finish();
+            set(cached);
+        }
+
+        synchronized void fail(Throwable error)
+        {
+            if (isDone())
+            {
+                return;
+            }
+            stats.recordNegotiationFailure(key, System.nanoTime() - startNanos, error);
+            circuitBreaker.recordFailure(key, error);
+            finish();
+            setException(error);
+        }
+
+        private void finish()
+        {
+            loads.remove(key, this);
+            if (context != null)
+            {
+                context.dispose();
+            }
+        }
+    }
+
+    private class Warmup implements Callable<WarmupResult>
+    {
+        private final URL url;
+
+        private Warmup(URL url)
+        {
+            this.url = url;
+        }
+
+        @Override
+        public WarmupResult call()
+        {
+            long start = System.nanoTime();
+            Throwable error = null;
+            try
+            {
+                getToken(url);
+            }
+            catch (Exception e)
+            {
+                logger.warn("Error obtaining SPNEGO token for " + url + " during warm up", e);
+                error = e.getCause() != null ? e.getCause() : e;
+            }
+            return new WarmupResult(url, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), error);
+        }
+    }
+
+    /**
+     * Re-negotiates the token for a single host, replacing the cached one if
+     * the new one outlives it. Any failure leaves the current token in place,
+     * to be replaced on demand when it expires. The refresher thread only
+     * hands refreshes over to the negotiation pool, so a slow host can't hold
+     * up the refreshes of others past their refresh time.
+     */
+    private class Refresh implements Runnable
+    {
+        private final String key;
+        private final URL url;
+        private volatile boolean cancelled;
+
+        private Refresh(String key, URL url)
+        {
+            this.key = key;
+            this.url = url;
+        }
+
+        @Override
+        public void run()
+        {
+            if (cancelled)
+            {
+                return;
+            }
+            final CachedToken current = tokens.get(key);
+            if (current == null || !current.accessed)
+            {
+                logger.debug("Token for " + key + " not used since last refresh, allowing it to expire");
+                refreshes.remove(key, this);
+                return;
+            }
+
+            try
+            {
+                getNegotiator().execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        refresh(current);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                // the cache is being closed
+                refreshes.remove(key, this);
+            }
+        }
+
+        private void refresh(CachedToken current)
+        {
+            try
+            {
+                // there's no point waiting beyond the current token's expiry,
+                // a request will have to negotiate on demand by then anyway
+                long timeout = Math.min(queueTimeoutMs, current.getExpires() - clock.currentTimeMillis());
+                if (!limiter.acquire(NegotiationLimiter.Priority.REFRESH, timeout, TimeUnit.MILLISECONDS))
+                {
+                    logger.debug("No turn to refresh token for " + key + " before it expires, it will be renegotiated on demand");
+                    refreshes.remove(key, this);
+                    return;
+                }
+                try
+                {
+                    logger.debug("Refreshing token for " + key + " with host " + url.getHost());
+                    CachedToken cached = negotiate(key, url);
+                    if (cancelled)
+                    {
+                        return;
+                    }
+                    // a refresh doesn't count as use of the token
+                    cached.lastAccessed = current.lastAccessed;
+                    if (cached.isExpired(clock.currentTimeMillis()) || !putIfNewer(key, cached, false))
+                    {
+                        logger.debug("Refreshed token for " + key + " doesn't outlive the cached one, keeping that");
+                        refreshes.remove(key, this);
+                        return;
+                    }
+                    stats.recordRefresh(key);
+                    scheduleRefresh(key, url, cached);
+                }
+                finally
+                {
+                    limiter.release();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                refreshes.remove(key, this);
+            }
+            catch (Exception e)
+            {
+                logger.warn("Error refreshing SPNEGO token for " + key + ", it will be renegotiated on demand", e);
+                refreshes.remove(key, this);
+            }
+        }
+    }
+
+    /**
+     * Runs a sweep now, rather than waiting for the next scheduled one.
+     */
+    void sweep()
+    {
+        new Sweep().run();
+    }
+
+    /**
+     * Drops expired tokens, and those not used within the expire after access
+     * time, so tokens for hosts which have gone away don't linger until the
+     * cache happens to be asked for them again.
+     */
+    private class Sweep implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            long now = clock.currentTimeMillis();
+            int removed = 0;
+            for (Map.Entry<String, CachedToken> entry : tokens.entrySet())
+            {
+                CachedToken cached = entry.getValue();
+                boolean idle = expireAfterAccessMs > 0 && now - cached.lastAccessed > expireAfterAccessMs;
+                if ((idle || cached.isExpired(now)) && tokens.remove(entry.getKey(), cached))
+                {
+                    forget(entry.getKey());
+                    removed++;
+                }
+            }
+            if (removed > 0)
+            {
+                logger.debug(String.format("Removed %s expired or idle tokens, %s remain cached", removed, tokens.size()));
+            }
+            circuitBreaker.prune();
+        }
+    }
+
+    public static class Builder
+    {
+        private final AuthenticatedURLProvider urlProvider;
+        private double refreshRatio = getRefreshRatioProperty();
+        private TokenKeyStrategy keyStrategy = TokenKeyStrategies.HOST;
+        private TokenCacheMetrics metrics;
+        private int failureThreshold = Integer.getInteger(FAILURE_THRESHOLD_PROPERTY, FAILURE_THRESHOLD_DEFAULT);
+        private long initialBackoffMs = Long.getLong(BACKOFF_MS_PROPERTY, BACKOFF_MS_DEFAULT);
+        private long maxBackoffMs = Long.getLong(MAX_BACKOFF_MS_PROPERTY, MAX_BACKOFF_MS_DEFAULT);
+        private int maxConcurrentNegotiations = Integer.getInteger(MAX_CONCURRENT_NEGOTIATIONS_PROPERTY, MAX_CONCURRENT_NEGOTIATIONS_DEFAULT);
+        private double negotiationRate = getDoubleProperty(NEGOTIATION_RATE_PROPERTY, NEGOTIATION_RATE_DEFAULT);
+        private double negotiationBurst = getDoubleProperty(NEGOTIATION_BURST_PROPERTY, NEGOTIATION_BURST_DEFAULT);
+        private int negotiationThreads = Integer.getInteger(NEGOTIATION_THREADS_PROPERTY, NEGOTIATION_THREADS_DEFAULT);
+        private long queueTimeoutMs = Long.getLong(QUEUE_TIMEOUT_MS_PROPERTY, QUEUE_TIMEOUT_MS_DEFAULT);
+        private long requestNegotiationTimeoutMs = Long.getLong(REQUEST_NEGOTIATION_TIMEOUT_MS_PROPERTY,
+                                                                REQUEST_NEGOTIATION_TIMEOUT_MS_DEFAULT);
+        private long ttl = Long.getLong(CACHE_TTL_MS_PROPERTY,  CACHE_TTL_MS_DEFAULT);
+        private int maxEntries = Integer.getInteger(MAX_ENTRIES_PROPERTY, MAX_ENTRIES_DEFAULT);
+        private long expireAfterAccessMs = Long.getLong(EXPIRE_AFTER_ACCESS_MS_PROPERTY, EXPIRE_AFTER_ACCESS_MS_DEFAULT);
+        private long sweepIntervalMs = Long.getLong(SWEEP_INTERVAL_MS_PROPERTY, SWEEP_INTERVAL_MS_DEFAULT);
+        private Clock clock = Clock.SYSTEM;
+        private NegotiationPool negotiationPool;
+        private boolean closeUrlProvider;
+
+        /**
+         * @param urlProvider supplies the AuthenticatedURLs used to obtain new tokens
+         */
+        public Builder(AuthenticatedURLProvider urlProvider)
+        {
+            this.urlProvider = urlProvider;
+        }
+
+        /**
+         * Fraction of a token's remaining lifetime after which it is refreshed
+         * in the background. Must be in the range [0, 1), 0 disables refresh-ahead.
+         */
+        public Builder refreshRatio(double refreshRatio)
+        {
+            this.refreshRatio = refreshRatio;
+            return this;
+        }
+
+        public Builder keyStrategy(TokenKeyStrategy keyStrategy)
+        {
+            this.keyStrategy = keyStrategy;
+            return this;
+        }
+
+        public Builder metrics(TokenCacheMetrics metrics)
+        {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * After failureThreshold consecutive failed negotiations with a host,
+         * fail fast for initialBackoffMs, doubling with each further failure up
+         * to maxBackoffMs. A threshold of 0, the default, never fails fast.
+         */
+        public Builder negotiationBackoff(int failureThreshold, long initialBackoffMs, long maxBackoffMs)
+        {
+            this.failureThreshold = failureThreshold;
+            this.initialBackoffMs = initialBackoffMs;
+            this.maxBackoffMs = maxBackoffMs;
+            return this;
+        }
+
+        /**
+         * Limit the negotiations in flight at once, and how many are started per
+         * second, 0 meaning no limit. Negotiations beyond the limits queue, those
+         * for hosts with no valid token ahead of refreshes, and fail if they can't
+         * start within queueTimeoutMs. A queueTimeoutMs of 0 means not queueing
+         * at all, negotiations only start if there's room for them right away.
+         */
+        public Builder negotiationLimits(int maxConcurrentNegotiations, double negotiationRate, long queueTimeoutMs)
+        {
+            this.maxConcurrentNegotiations = maxConcurrentNegotiations;
+            this.negotiationRate = negotiationRate;
+            this.queueTimeoutMs = queueTimeoutMs;
+            return this;
+        }
+
+        /**
+         * Maximum threads running negotiations for getTokenAsync and callers
+         * with a timeout. They're started as needed, and stop after a minute
+         * idle.
+         */
+        public Builder negotiationThreads(int negotiationThreads)
+        {
+            this.negotiationThreads = negotiationThreads;
+            return this;
+        }
+
+        /**
+         * How many negotiations can start at once after a quiet period, when
+         * the rate is limited. 0, the default, allows one second's worth.
+         */
+        public Builder negotiationBurst(double negotiationBurst)
+        {
+            this.negotiationBurst = negotiationBurst;
+            return this;
+        }
+
+        /**
+         * How long other requests wait for the token from a request carrying
+         * its own negotiation, after which it's assumed to have failed and the
+         * host is negotiated with again.
+         */
+        public Builder requestNegotiationTimeout(long requestNegotiationTimeoutMs)
+        {
+            this.requestNegotiationTimeoutMs = requestNegotiationTimeoutMs;
+            return this;
+        }
+
+        /**
+         * Maximum time a token is used for, even if it would remain valid for
+         * longer. 0 uses each token until the expiry the server gave it.
+         */
+        public Builder ttl(long ttl)
+        {
+            this.ttl = ttl;
+            return this;
+        }
+
+        /**
+         * Maximum number of tokens held, 0 for no limit. Once full, adding a
+         * token evicts the least recently used one.
+         */
+        public Builder maxEntries(int maxEntries)
+        {
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * Drop tokens which haven't been used for this long, 0 to keep them
+         * until they expire.
+         */
+        public Builder expireAfterAccess(long expireAfterAccessMs)
+        {
+            this.expireAfterAccessMs = expireAfterAccessMs;
+            return this;
+        }
+
+        /**
+         * How often expired and idle tokens are dropped, when either maxEntries
+         * or expireAfterAccess is set.
+         */
+        public Builder sweepInterval(long sweepIntervalMs)
+        {
+            this.sweepIntervalMs = sweepIntervalMs;
+            return this;
+        }
+
+        /**
+         * Time source for token expiry, so tests can control it.
+         */
+        Builder clock(Clock clock)
+        {
+            this.clock = clock;
+            return this;
+        }
+
+        /**
+         * Negotiate on another cache's threads, and within its limits, rather
+         * than those configured here. The pool stays up when this cache is
+         * closed.
+         */
+        Builder negotiationPool(NegotiationPool negotiationPool)
+        {
+            this.negotiationPool = negotiationPool;
+            return this;
+        }
+
+        /**
+         * Close the AuthenticatedURLProvider along with the cache, for a
+         * provider built just for this cache.
+         */
+        Builder closeUrlProvider(boolean closeUrlProvider)
+        {
+            this.closeUrlProvider = closeUrlProvider;
+            return this;
+        }
+
+        public SpnegoTokenCache build()
+        {
+            return new SpnegoTokenCache(this);
         }
     }
-    
 }
@@ -0,0 +1,54 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.Map;
+
+/**
+ * JMX view of a SpnegoTokenCache, registered by SpnegoTokenCache.registerMBean.
+ * Per host attributes are keyed by the cache's TokenKeyStrategy, which by
+ * default is just the host name.
+ */
+public interface SpnegoTokenCacheMXBean
+{
+    int getCachedTokens();
+
+    long getHits();
+
+    long getMisses();
+
+    long getNegotiations();
+
+    long getNegotiationFailures();
+
+    long getRefreshes();
+
+    long getInvalidations();
+
+    double getNegotiationLatencyMeanMillis();
+
+    long getNegotiationLatency50thPercentileMillis();
+
+    long getNegotiationLatency99thPercentileMillis();
+
+    long getNegotiationLatencyMaxMillis();
+
+    Map<String, Long> getNegotiationLatencyHistogram();
+
+    Map<String, Long> getHitsByHost();
+
+    Map<String, Long> getMissesByHost();
+
+    Map<String, Long> getNegotiationsByHost();
+
+    Map<String, Long> getNegotiationFailuresByHost();
+
+    Map<String, Long> getRefreshesByHost();
+
+    Map<String, Long> getInvalidationsByHost();
+
+    Map<String, Long> getNegotiationLatency99thPercentileMillisByHost();
+
+    /**
+     * Milliseconds until each cached token expires, negative once it has.
+     */
+    Map<String, Long> getTimeToExpiryMillis();
+}
@@ -0,0 +1,152 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Implements the JMX view of a SpnegoTokenCache from its TokenCacheStats and the
+ * tokens it currently holds.
+ */
+class SpnegoTokenCacheMonitor implements SpnegoTokenCacheMXBean
+{
+    private final SpnegoTokenCache cache;
+    private final TokenCacheStats stats;
+
+    SpnegoTokenCacheMonitor(SpnegoTokenCache cache)
+    {
+        this.cache = cache;
+        this.stats = cache.getStats();
+    }
+
+    @Override
+    public int getCachedTokens()
+    {
+        return cache.getTokens().size();
+    }
+
+    @Override
+    public long getHits()
+    {
+        return stats.getHits();
+    }
+
+    @Override
+    public long getMisses()
+    {
+        return stats.getMisses();
+    }
+
+    @Override
+    public long getNegotiations()
+    {
+        return stats.getNegotiations();
+    }
+
+    @Override
+    public long getNegotiationFailures()
+    {
+        return stats.getNegotiationFailures();
+    }
+
+    @Override
+    public long getRefreshes()
+    {
+        return stats.getRefreshes();
+    }
+
+    @Override
+    public long getInvalidations()
+    {
+        return stats.getInvalidations();
+    }
+
+    @Override
+    public double getNegotiationLatencyMeanMillis()
+    {
+        return stats.getNegotiationLatency().getMeanMillis();
+    }
+
+    @Override
+    public long getNegotiationLatency50thPercentileMillis()
+    {
+        return stats.getNegotiationLatency().getPercentileMillis(50);
+    }
+
+    @Override
+    public long getNegotiationLatency99thPercentileMillis()
+    {
+        return stats.getNegotiationLatency().getPercentileMillis(99);
+    }
+
+    @Override
+    public long getNegotiationLatencyMaxMillis()
+    {
+        return stats.getNegotiationLatency().getMaxMillis();
+    }
+
+    @Override
+    public Map<String, Long> getNegotiationLatencyHistogram()
+    {
+        return stats.getNegotiationLatency().getBuckets();
+    }
+
+    @Override
+    public Map<String, Long> getHitsByHost()
+    {
+        return stats.getHitsByHost();
+    }
+
+    @Override
+    public Map<String, Long> getMissesByHost()
+    {
+        return stats.getMissesByHost();
+    }
+
+    @Override
+    public Map<String, Long> getNegotiationsByHost()
+    {
+        return stats.getNegotiationsByHost();
+    }
+
+    @Override
+    public Map<String, Long> getNegotiationFailuresByHost()
+    {
+        return stats.getNegotiationFailuresByHost();
+    }
+
+    @Override
+    public Map<String, Long> getRefreshesByHost()
+    {
+        return stats.getRefreshesByHost();
+    }
+
+    @Override
+    public Map<String, Long> getInvalidationsByHost()
+    {
+        return stats.getInvalidationsByHost();
+    }
+
+    @Override
+    public Map<String, Long> getNegotiationLatency99thPercentileMillisByHost()
+    {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (Map.Entry<String, LatencyHistogram> entry : stats.getNegotiationLatencyByHost().entrySet())
+        {
+            result.put(entry.getKey(), entry.getValue().getPercentileMillis(99));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getTimeToExpiryMillis()
+    {
+        long now = System.currentTimeMillis();
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (Map.Entry<String, CachedToken> entry : cache.getTokens().entrySet())
+        {
+            long expires = entry.getValue().getExpires();
+            result.put(entry.getKey(), expires == CachedToken.NEVER_EXPIRES ? Long.MAX_VALUE : expires - now);
+        }
+        return result;
+    }
+}
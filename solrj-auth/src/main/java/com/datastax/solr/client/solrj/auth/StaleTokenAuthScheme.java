@@ -0,0 +1,199 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.auth.AuthScheme;
+import org.apache.http.auth.AuthSchemeFactory;
+import org.apache.http.auth.AuthenticationException;
+import org.apache.http.auth.ContextAwareAuthScheme;
+import org.apache.http.auth.Credentials;
+import org.apache.http.auth.MalformedChallengeException;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.RequestWrapper;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.solr.common.SolrException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.alfredo.client.AuthenticatedURL;
+import com.cloudera.alfredo.client.KerberosAuthenticator;
+
+/**
+ * Handles "401 WWW-Authenticate: Negotiate" responses to requests carrying a
+ * cached token, which happen when the server no longer accepts that token, e.g.
+ * after a restart or a change of its signature secret. Registered with SolrJ's
+ * HTTP clients in place of HTTP Client's own Negotiate scheme, it has HTTP Client
+ * retry the request once with a fresh token.
+ *
+ * The rejected token is invalidated only if it's still the one cached for the
+ * host, so when many requests are rejected at once, the first invalidates it
+ * and the rest wait on the single negotiation for its replacement.
+ *
+ * Requests with non-repeatable entities, such as streamed updates, can't be
+ * retried by HTTP Client. They still fail, but the stale token is replaced for
+ * the requests that follow.
+ */
+public class StaleTokenAuthScheme implements ContextAwareAuthScheme
+{
+    private static final Logger logger = LoggerFactory.getLogger(StaleTokenAuthScheme.class);
+
+    private static final String COOKIE = "Cookie";
+    private static final String AUTH_COOKIE_EQ = AuthenticatedURL.AUTH_COOKIE + "=";
+
+    private final TokenCacheLocator tokenCaches;
+    private boolean complete;
+
+    public StaleTokenAuthScheme(SpnegoTokenCache tokenCache)
+    {
+        this(new TokenCacheLocator.Fixed(tokenCache));
+    }
+
+    public StaleTokenAuthScheme(TokenCacheLocator tokenCaches)
+    {
+        this.tokenCaches = tokenCaches;
+    }
+
+    @Override
+    public void processChallenge(Header header) throws MalformedChallengeException
+    {
+        // nothing to read from the challenge, any token it carries is
+        // for a negotiation we didn't start
+    }
+
+    @Override
+    public String getSchemeName()
+    {
+        return KerberosAuthenticator.NEGOTIATE;
+    }
+
+    @Override
+    public String getParameter(String name)
+    {
+        return null;
+    }
+
+    @Override
+    public String getRealm()
+    {
+        return null;
+    }
+
+    @Override
+    public boolean isConnectionBased()
+    {
+        return false;
+    }
+
+    /**
+     * Once a fresh token has been supplied, the scheme is complete, so that a
+     * second rejection fails the request rather than retrying it again.
+     */
+    @Override
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    @Override
+    @Deprecated
+    public Header authenticate(Credentials credentials, HttpRequest request) throws AuthenticationException
+    {
+        return authenticate(credentials, request, new BasicHttpContext());
+    }
+
+    @Override
+    public Header authenticate(Credentials credentials, HttpRequest request, HttpContext context) throws AuthenticationException
+    {
+        complete = true;
+        HttpHost target = (HttpHost) context.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+        if (target == null)
+        {
+            throw new AuthenticationException("Unable to determine target host of rejected request");
+        }
+
+        try
+        {
+            URI uri = getURI(target, request);
+            SpnegoTokenCache tokenCache = tokenCaches.getTokenCache();
+            String rejected = removeTokenCookie(request);
+            if (rejected != null && tokenCache.invalidate(uri, rejected))
+            {
+                logger.info("Cached token for host " + target.getHostName() + " was rejected, obtaining a new one");
+            }
+            return tokenCache.getCachedToken(uri).getHeader();
+        }
+        catch (SolrException e)
+        {
+            throw new AuthenticationException(e.getMessage(), e);
+        }
+        catch (URISyntaxException e)
+        {
+            throw new AuthenticationException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes the auth cookie header SpnegoAuthenticator added to the request,
+     * so it can be replaced by the new one, and returns its value.
+     */
+    private static String removeTokenCookie(HttpRequest request)
+    {
+        String value = null;
+        for (Header header : request.getHeaders(COOKIE))
+        {
+            if (header.getValue().startsWith(AUTH_COOKIE_EQ))
+            {
+                value = header.getValue();
+                request.removeHeader(header);
+            }
+        }
+        return value;
+    }
+
+    private static URI getURI(HttpHost target, HttpRequest request) throws URISyntaxException
+    {
+        // HTTP Client may have rewritten the request URI to be relative
+        // by now, but the original request still has the full one
+        if (request instanceof RequestWrapper)
+        {
+            request = ((RequestWrapper) request).getOriginal();
+        }
+        if (request instanceof HttpUriRequest)
+        {
+            URI uri = ((HttpUriRequest) request).getURI();
+            if (uri.isAbsolute())
+            {
+                return uri;
+            }
+        }
+        return new URI(target.toURI() + request.getRequestLine().getUri());
+    }
+
+    public static class Factory implements AuthSchemeFactory
+    {
+        private final TokenCacheLocator tokenCaches;
+
+        public Factory(SpnegoTokenCache tokenCache)
+        {
+            this(new TokenCacheLocator.Fixed(tokenCache));
+        }
+
+        public Factory(TokenCacheLocator tokenCaches)
+        {
+            this.tokenCaches = tokenCaches;
+        }
+
+        @Override
+        public AuthScheme newInstance(HttpParams params)
+        {
+            return new StaleTokenAuthScheme(tokenCaches);
+        }
+    }
+}
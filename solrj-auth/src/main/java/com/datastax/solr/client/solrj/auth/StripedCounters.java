@@ -0,0 +1,74 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed set of counters, each split into stripes chosen by thread, so
+ * threads counting the same event rarely contend on one cache line. Reading a
+ * counter sums its stripes, so it is cheap to update and slower to read, like
+ * Java 8's LongAdder.
+ */
+final class StripedCounters
+{
+    // spare longs between stripes, so each stripe's counters share no cache line with its neighbours'
+    private static final int PADDING = 8;
+    private static final int MAX_STRIPES = 16;
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    private final int counters;
+    private final int stride;
+    private final AtomicLongArray cells;
+
+    StripedCounters(int counters)
+    {
+        this.counters = counters;
+        this.stride = counters + PADDING;
+        this.cells = new AtomicLongArray(STRIPES * stride);
+    }
+
+    void increment(int counter)
+    {
+        add(counter, 1);
+    }
+
+    void add(int counter, long delta)
+    {
+        cells.addAndGet(stripe() * stride + counter, delta);
+    }
+
+    long get(int counter)
+    {
+        long total = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++)
+        {
+            total += cells.get(stripe * stride + counter);
+        }
+        return total;
+    }
+
+    /**
+     * Adds the current value of each of other's counters to this one's.
+     */
+    void addAll(StripedCounters other)
+    {
+        for (int counter = 0; counter < counters; counter++)
+        {
+            add(counter, other.get(counter));
+        }
+    }
+
+    private static int stripe()
+    {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    private static int stripes(int processors)
+    {
+        int stripes = 1;
+        while (stripes < processors && stripes < MAX_STRIPES)
+        {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+}
@@ -0,0 +1,89 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.IOException;
+import java.net.URL;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
+import javax.security.auth.Subject;
+import javax.security.auth.login.LoginException;
+
+import com.cloudera.alfredo.client.AuthenticationException;
+import com.cloudera.alfredo.client.Authenticator;
+
+/**
+ * An AuthenticatedURL which performs authentication as the Subject held by a
+ * KerberosLogin. Alfredo's Kerberos authenticator only logs in for itself when
+ * it finds no Subject in the current access control context, so running
+ * inside Subject.doAs lets it reuse the existing TGT and service tickets.
+ *
+ * Connect and read timeouts, if set, apply to each of the connections Alfredo
+ * opens during the negotiation, see TimeoutAuthenticatedURL.
+ */
+class SubjectAuthenticatedURL extends TimeoutAuthenticatedURL
+{
+    private final KerberosLogin login;
+
+    SubjectAuthenticatedURL(KerberosLogin login, int connectTimeoutMs, int readTimeoutMs)
+    {
+        super(connectTimeoutMs, readTimeoutMs);
+        this.login = login;
+    }
+
+    SubjectAuthenticatedURL(KerberosLogin login, SSLSocketFactory socketFactory, HostnameVerifier verifier,
+                            int connectTimeoutMs, int readTimeoutMs)
+    {
+        super(socketFactory, verifier, connectTimeoutMs, readTimeoutMs);
+        this.login = login;
+    }
+
+    /**
+     * Negotiates with the given Authenticator rather than Alfredo's Kerberos
+     * one, for tests.
+     */
+    SubjectAuthenticatedURL(KerberosLogin login, Authenticator authenticator, int connectTimeoutMs, int readTimeoutMs)
+    {
+        super(authenticator, connectTimeoutMs, readTimeoutMs);
+        this.login = login;
+    }
+
+    @Override
+    public Token authenticateWithToken(final URL url, final Token token) throws IOException, AuthenticationException
+    {
+        Subject subject;
+        try
+        {
+            subject = login.getSubject();
+        }
+        catch (LoginException e)
+        {
+            throw new AuthenticationException("Error logging in to Kerberos", e);
+        }
+
+        try
+        {
+            return Subject.doAs(subject, new PrivilegedExceptionAction<Token>() {
+                @Override
+                public Token run() throws IOException, AuthenticationException
+                {
+                    return SubjectAuthenticatedURL.super.authenticateWithToken(url, token);
+                }
+            });
+        }
+        catch (PrivilegedActionException e)
+        {
+            Exception cause = e.getException();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof AuthenticationException)
+            {
+                throw (AuthenticationException) cause;
+            }
+            throw new AuthenticationException(cause.getMessage(), cause);
+        }
+    }
+}
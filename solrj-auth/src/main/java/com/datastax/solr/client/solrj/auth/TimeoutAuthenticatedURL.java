@@ -0,0 +1,93 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.IOException;
+import java.net.URL;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.cloudera.alfredo.client.AuthenticatedURL;
+import com.cloudera.alfredo.client.AuthenticationException;
+import com.cloudera.alfredo.client.Authenticator;
+
+/**
+ * An AuthenticatedURL whose negotiations time out. Connect and read timeouts,
+ * if set, apply to each of the connections Alfredo opens during the
+ * negotiation, see TimeoutURLStreamHandler. Otherwise it negotiates just as
+ * Alfredo's own, logging in to Kerberos for itself.
+ */
+class TimeoutAuthenticatedURL extends AuthenticatedURL
+{
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    /**
+     * Negotiates with credentials from the ticket cache.
+     */
+    TimeoutAuthenticatedURL(int connectTimeoutMs, int readTimeoutMs)
+    {
+        super();
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Negotiates over HTTPS with credentials from the ticket cache.
+     */
+    TimeoutAuthenticatedURL(SSLSocketFactory socketFactory, HostnameVerifier verifier,
+                            int connectTimeoutMs, int readTimeoutMs)
+    {
+        // null arg forces default (i.e. Kerberos) authenticator, but no keytab or principal
+        super(null, socketFactory, verifier);
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Negotiates with credentials from the keytab.
+     */
+    TimeoutAuthenticatedURL(String keytab, String principal, int connectTimeoutMs, int readTimeoutMs)
+    {
+        super(keytab, principal);
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Negotiates over HTTPS with credentials from the keytab.
+     */
+    TimeoutAuthenticatedURL(String keytab, String principal, SSLSocketFactory socketFactory, HostnameVerifier verifier,
+                            int connectTimeoutMs, int readTimeoutMs)
+    {
+        super(keytab, principal, socketFactory, verifier);
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Negotiates with the given Authenticator rather than Alfredo's Kerberos
+     * one, for tests.
+     */
+    TimeoutAuthenticatedURL(Authenticator authenticator, int connectTimeoutMs, int readTimeoutMs)
+    {
+        super(authenticator);
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    int getConnectTimeoutMs()
+    {
+        return connectTimeoutMs;
+    }
+
+    int getReadTimeoutMs()
+    {
+        return readTimeoutMs;
+    }
+
+    @Override
+    public Token authenticateWithToken(URL url, Token token) throws IOException, AuthenticationException
+    {
+        return super.authenticateWithToken(TimeoutURLStreamHandler.withTimeouts(url, connectTimeoutMs, readTimeoutMs), token);
+    }
+}
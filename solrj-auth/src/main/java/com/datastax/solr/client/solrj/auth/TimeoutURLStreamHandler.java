@@ -0,0 +1,62 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+
+/**
+ * Sets connect and read timeouts on the connections opened for a URL. Alfredo
+ * opens its HttpURLConnections with URL.openConnection and never sets any
+ * timeouts, so a negotiation with a node which accepts connections but never
+ * responds would otherwise block forever. Handing Alfredo a URL backed by this
+ * handler bounds each leg of the negotiation instead.
+ *
+ * The connections themselves are still opened by the JDK's default handler for
+ * the URL's protocol, so they are the usual Http(s)URLConnections.
+ */
+class TimeoutURLStreamHandler extends URLStreamHandler
+{
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    private TimeoutURLStreamHandler(int connectTimeoutMs, int readTimeoutMs)
+    {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Returns a copy of the URL whose connections time out as given, 0 meaning
+     * no timeout, or the URL itself if neither timeout is set.
+     */
+    static URL withTimeouts(URL url, int connectTimeoutMs, int readTimeoutMs) throws MalformedURLException
+    {
+        if (connectTimeoutMs <= 0 && readTimeoutMs <= 0)
+        {
+            return url;
+        }
+        return new URL(null, url.toExternalForm(), new TimeoutURLStreamHandler(connectTimeoutMs, readTimeoutMs));
+    }
+
+    @Override
+    protected URLConnection openConnection(URL url) throws IOException
+    {
+        return configure(new URL(url.toExternalForm()).openConnection());
+    }
+
+    @Override
+    protected URLConnection openConnection(URL url, Proxy proxy) throws IOException
+    {
+        return configure(new URL(url.toExternalForm()).openConnection(proxy));
+    }
+
+    private URLConnection configure(URLConnection connection)
+    {
+        connection.setConnectTimeout(Math.max(0, connectTimeoutMs));
+        connection.setReadTimeout(Math.max(0, readTimeoutMs));
+        return connection;
+    }
+}
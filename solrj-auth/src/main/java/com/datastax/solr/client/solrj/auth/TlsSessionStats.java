@@ -0,0 +1,108 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts TLS handshakes on connections made through socket factories wrapped by
+ * this class, distinguishing full handshakes from resumed sessions. A handshake
+ * counts as resumed when the session it completes with was created before its
+ * socket was, i.e. the session was taken from the SSLContext's client session
+ * cache, and skipped the key exchange and certificate validation. Session IDs
+ * aren't compared, since with session tickets a server may send an empty or
+ * arbitrary ID.
+ *
+ * The JDK resumes TLS 1.3 sessions with pre-shared keys, but reports them as
+ * new sessions, with a new ID and creation time, so they are counted as full
+ * handshakes. Only TLS 1.2 and earlier resumptions are counted as resumed.
+ *
+ * The JSSE session cache belongs to the SSLContext, so connections only share
+ * sessions if they use the same SSLContext.
+ */
+public class TlsSessionStats
+{
+    private static final Logger logger = LoggerFactory.getLogger(TlsSessionStats.class);
+
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
+    /**
+     * Returns a socket factory which creates sockets from the supplied one,
+     * and records their handshakes here.
+     */
+    public SSLSocketFactory wrap(SSLSocketFactory socketFactory)
+    {
+        return new SessionTrackingSSLSocketFactory(socketFactory, this);
+    }
+
+    /**
+     * Returns a listener for the handshakes of a socket created at the given
+     * time, in ms since the epoch.
+     */
+    HandshakeCompletedListener newListener(final long socketCreated)
+    {
+        return new HandshakeCompletedListener()
+        {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event)
+            {
+                if (event.getSession().getCreationTime() < socketCreated)
+                {
+                    resumedHandshakes.incrementAndGet();
+                }
+                else
+                {
+                    fullHandshakes.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    public long getFullHandshakes()
+    {
+        return fullHandshakes.get();
+    }
+
+    public long getResumedHandshakes()
+    {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * Fraction of all handshakes which resumed a cached session.
+     */
+    public double getResumptionRatio()
+    {
+        long resumed = resumedHandshakes.get();
+        long total = resumed + fullHandshakes.get();
+        return total == 0 ? 0 : (double) resumed / total;
+    }
+
+    /**
+     * Sizes the client session cache of an SSLContext, and sets how long its
+     * sessions can be resumed for.
+     *
+     * @param size maximum number of cached sessions, 0 for no limit
+     * @param timeoutSeconds lifetime of cached sessions, 0 for no limit
+     */
+    public static void configureSessionCache(SSLContext context, int size, int timeoutSeconds)
+    {
+        SSLSessionContext sessions = context.getClientSessionContext();
+        if (sessions == null)
+        {
+            logger.warn("SSLContext has no client session context, TLS session caching can't be configured");
+            return;
+        }
+        sessions.setSessionCacheSize(size);
+        sessions.setSessionTimeout(timeoutSeconds);
+        logger.info(String.format("Configured TLS session cache with size %s and timeout %s s", size, timeoutSeconds));
+    }
+}
@@ -0,0 +1,214 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of the tokens held by a SpnegoTokenCache, along with their expiry
+ * times, which can be imported into another cache. This lets one process, e.g.
+ * a job driver, authenticate with each Solr node once and hand the tokens to
+ * many short lived workers, or lets a restarted process pick up its still valid
+ * tokens instead of negotiating them all again.
+ *
+ * Bundles are Serializable, and also have a compact binary form which can be
+ * written to a stream or saved to a file. Tokens are bearer credentials, so a
+ * bundle should be protected like a keytab. Files written by save are only
+ * readable by their owner, where the platform allows it.
+ *
+ * Entries are keyed the same way as the cache they came from, so the importing
+ * cache should use the same TokenKeyStrategy. A bundle holds at most
+ * MAX_ENTRIES tokens.
+ */
+public final class TokenBundle implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAGIC = 0x534e4b42;
+    private static final byte VERSION = 1;
+    // as many hosts as a cache tracks, anything more is a corrupt bundle
+    static final int MAX_ENTRIES = TokenKeyStrategies.MAX_HOSTS;
+
+    private final List<Entry> entries;
+
+    TokenBundle(List<Entry> entries)
+    {
+        this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    }
+
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public void writeTo(OutputStream out) throws IOException
+    {
+        if (entries.size() > MAX_ENTRIES)
+        {
+            throw new IOException(String.format("Too many tokens to write, %s of at most %s", entries.size(), MAX_ENTRIES));
+        }
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeInt(entries.size());
+        for (Entry entry : entries)
+        {
+            data.writeUTF(entry.key);
+            data.writeUTF(entry.token);
+            data.writeLong(entry.expires);
+        }
+        data.flush();
+    }
+
+    public static TokenBundle readFrom(InputStream in) throws IOException
+    {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC)
+        {
+            throw new IOException("Not a SPNEGO token bundle");
+        }
+        byte version = data.readByte();
+        if (version != VERSION)
+        {
+            throw new IOException("Unsupported SPNEGO token bundle version " + version);
+        }
+        int count = data.readInt();
+        if (count < 0 || count > MAX_ENTRIES)
+        {
+            throw new IOException("Corrupt SPNEGO token bundle, claims to hold " + count + " tokens");
+        }
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++)
+        {
+            entries.add(new Entry(data.readUTF(), data.readUTF(), data.readLong()));
+        }
+        return new TokenBundle(entries);
+    }
+
+    /**
+     * Writes the bundle to a file, replacing it atomically where the platform
+     * supports it, so concurrent readers never see a partially written bundle.
+     * On POSIX file systems the file is created readable only by its owner, so
+     * the tokens are never exposed, even while being written.
+     */
+    public void save(File file) throws IOException
+    {
+        Path target = file.toPath().toAbsolutePath();
+        Path temp = createOwnerOnlyTempFile(target);
+        try
+        {
+            OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp));
+            try
+            {
+                writeTo(out);
+            }
+            finally
+            {
+                out.close();
+            }
+            try
+            {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static Path createOwnerOnlyTempFile(Path target) throws IOException
+    {
+        Path dir = target.getParent();
+        String prefix = target.getFileName().toString();
+        try
+        {
+            return Files.createTempFile(dir, prefix, ".tmp",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        catch (UnsupportedOperationException e)
+        {
+            // not a POSIX file system, so the directory's ACLs decide who can read it
+            File temp = Files.createTempFile(dir, prefix, ".tmp").toFile();
+            temp.setReadable(false, false);
+            temp.setReadable(true, true);
+            temp.setWritable(false, false);
+            temp.setWritable(true, true);
+            return temp.toPath();
+        }
+    }
+
+    public static TokenBundle load(File file) throws IOException
+    {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try
+        {
+            return readFrom(in);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * A single cached token.
+     */
+    public static final class Entry implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String key;
+        private final String token;
+        private final long expires;
+
+        Entry(String key, String token, long expires)
+        {
+            this.key = key;
+            this.token = token;
+            this.expires = expires;
+        }
+
+        public String getKey()
+        {
+            return key;
+        }
+
+        public String getToken()
+        {
+            return token;
+        }
+
+        /**
+         * Time after which the token can no longer be used, in ms since the epoch.
+         */
+        public long getExpires()
+        {
+            return expires;
+        }
+    }
+}
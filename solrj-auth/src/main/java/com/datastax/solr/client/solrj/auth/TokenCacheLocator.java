@@ -0,0 +1,34 @@
+package com.datastax.solr.client.solrj.auth;
+
+/**
+ * Finds the SpnegoTokenCache for the request being made on the current thread.
+ * With a single Kerberos identity that's always the same cache. With one cache
+ * per identity, see MultiPrincipalAuthenticatorFactory, it's the cache for the
+ * principal selected with KerberosIdentityContext.
+ *
+ * Called on every request which needs a token, so implementations should be
+ * no more than a lookup.
+ */
+public interface TokenCacheLocator
+{
+    SpnegoTokenCache getTokenCache();
+
+    /**
+     * Always finds the same cache.
+     */
+    public static final class Fixed implements TokenCacheLocator
+    {
+        private final SpnegoTokenCache tokenCache;
+
+        public Fixed(SpnegoTokenCache tokenCache)
+        {
+            this.tokenCache = tokenCache;
+        }
+
+        @Override
+        public SpnegoTokenCache getTokenCache()
+        {
+            return tokenCache;
+        }
+    }
+}
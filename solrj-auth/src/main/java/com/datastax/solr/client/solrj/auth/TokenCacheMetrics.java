@@ -0,0 +1,48 @@
+package com.datastax.solr.client.solrj.auth;
+
+/**
+ * Receives events from a SpnegoTokenCache, so that its behaviour can be fed into
+ * whatever metrics registry an application already uses. Every cache keeps its
+ * own TokenCacheStats, which are exposed over JMX; an implementation of this
+ * interface can be supplied to have the same events forwarded elsewhere.
+ *
+ * Hosts are identified by their cache key, as produced by the cache's
+ * TokenKeyStrategy. Hits are reported on the request path, so implementations
+ * must be thread safe and should be cheap, e.g. incrementing a counter.
+ */
+public interface TokenCacheMetrics
+{
+    /**
+     * A valid token was already cached for the host.
+     */
+    void recordHit(String key);
+
+    /**
+     * No valid token was cached for the host, one will be negotiated.
+     */
+    void recordMiss(String key);
+
+    /**
+     * A new token was negotiated with the host, on demand or by a refresh.
+     *
+     * @param latencyNanos time taken by the negotiation
+     */
+    void recordNegotiation(String key, long latencyNanos);
+
+    /**
+     * A negotiation with the host failed.
+     *
+     * @param latencyNanos time taken before the negotiation failed
+     */
+    void recordNegotiationFailure(String key, long latencyNanos, Throwable error);
+
+    /**
+     * The host's token was refreshed ahead of its expiry.
+     */
+    void recordRefresh(String key);
+
+    /**
+     * The host's token was rejected by the server and discarded.
+     */
+    void recordInvalidation(String key);
+}
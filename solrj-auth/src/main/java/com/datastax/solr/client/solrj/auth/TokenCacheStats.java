@@ -0,0 +1,272 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Counts the events reported by a SpnegoTokenCache, per host and overall, and
+ * keeps a histogram of negotiation latencies. Events are also passed on to an
+ * optional application supplied TokenCacheMetrics.
+ *
+ * Each host's counters are updated independently, and striped across threads,
+ * totals are summed when read, so recording a hit costs a map lookup and an
+ * uncontended atomic increment. At most MAX_HOSTS hosts are tracked; when a new
+ * host would exceed that, or the cache forgets a host, the host's counts move
+ * into the totals and it is dropped from the per host figures.
+ */
+public class TokenCacheStats implements TokenCacheMetrics
+{
+    private static final int HITS = 0;
+    private static final int MISSES = 1;
+    private static final int NEGOTIATIONS = 2;
+    private static final int FAILURES = 3;
+    private static final int REFRESHES = 4;
+    private static final int INVALIDATIONS = 5;
+    private static final int COUNTERS = 6;
+
+    static final int MAX_HOSTS = TokenKeyStrategies.MAX_HOSTS;
+
+    private final ConcurrentMap<String, HostStats> hosts = new ConcurrentHashMap<String, HostStats>();
+    // counts of hosts no longer tracked, so they still add to the totals
+    private final StripedCounters forgotten = new StripedCounters(COUNTERS);
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final TokenCacheMetrics delegate;
+
+    public TokenCacheStats()
+    {
+        this(null);
+    }
+
+    /**
+     * @param delegate also receives every event, may be null
+     */
+    public TokenCacheStats(TokenCacheMetrics delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void recordHit(String key)
+    {
+        increment(key, HITS);
+        if (delegate != null)
+        {
+            delegate.recordHit(key);
+        }
+    }
+
+    @Override
+    public void recordMiss(String key)
+    {
+        increment(key, MISSES);
+        if (delegate != null)
+        {
+            delegate.recordMiss(key);
+        }
+    }
+
+    @Override
+    public void recordNegotiation(String key, long latencyNanos)
+    {
+        HostStats host = getHost(key);
+        host.counters.increment(NEGOTIATIONS);
+        host.latency.record(latencyNanos);
+        latency.record(latencyNanos);
+        if (delegate != null)
+        {
+            delegate.recordNegotiation(key, latencyNanos);
+        }
+    }
+
+    @Override
+    public void recordNegotiationFailure(String key, long latencyNanos, Throwable error)
+    {
+        increment(key, FAILURES);
+        if (delegate != null)
+        {
+            delegate.recordNegotiationFailure(key, latencyNanos, error);
+        }
+    }
+
+    @Override
+    public void recordRefresh(String key)
+    {
+        increment(key, REFRESHES);
+        if (delegate != null)
+        {
+            delegate.recordRefresh(key);
+        }
+    }
+
+    @Override
+    public void recordInvalidation(String key)
+    {
+        increment(key, INVALIDATIONS);
+        if (delegate != null)
+        {
+            delegate.recordInvalidation(key);
+        }
+    }
+
+    public long getHits()
+    {
+        return total(HITS);
+    }
+
+    public long getMisses()
+    {
+        return total(MISSES);
+    }
+
+    public long getNegotiations()
+    {
+        return total(NEGOTIATIONS);
+    }
+
+    public long getNegotiationFailures()
+    {
+        return total(FAILURES);
+    }
+
+    public long getRefreshes()
+    {
+        return total(REFRESHES);
+    }
+
+    public long getInvalidations()
+    {
+        return total(INVALIDATIONS);
+    }
+
+    public Map<String, Long> getHitsByHost()
+    {
+        return byHost(HITS);
+    }
+
+    public Map<String, Long> getMissesByHost()
+    {
+        return byHost(MISSES);
+    }
+
+    public Map<String, Long> getNegotiationsByHost()
+    {
+        return byHost(NEGOTIATIONS);
+    }
+
+    public Map<String, Long> getNegotiationFailuresByHost()
+    {
+        return byHost(FAILURES);
+    }
+
+    public Map<String, Long> getRefreshesByHost()
+    {
+        return byHost(REFRESHES);
+    }
+
+    public Map<String, Long> getInvalidationsByHost()
+    {
+        return byHost(INVALIDATIONS);
+    }
+
+    /**
+     * Latencies of all successful negotiations.
+     */
+    public LatencyHistogram getNegotiationLatency()
+    {
+        return latency;
+    }
+
+    /**
+     * Latencies of successful negotiations with each host.
+     */
+    public Map<String, LatencyHistogram> getNegotiationLatencyByHost()
+    {
+        Map<String, LatencyHistogram> result = new HashMap<String, LatencyHistogram>();
+        for (Map.Entry<String, HostStats> entry : hosts.entrySet())
+        {
+            result.put(entry.getKey(), entry.getValue().latency);
+        }
+        return result;
+    }
+
+    private void increment(String key, int counter)
+    {
+        getHost(key).counters.increment(counter);
+    }
+
+    private HostStats getHost(String key)
+    {
+        HostStats host = hosts.get(key);
+        if (host == null)
+        {
+            if (hosts.size() >= MAX_HOSTS)
+            {
+                forgetAny();
+            }
+            HostStats created = new HostStats();
+            host = hosts.putIfAbsent(key, created);
+            if (host == null)
+            {
+                host = created;
+            }
+        }
+        return host;
+    }
+
+    /**
+     * Stops tracking a host, e.g. once the cache holds no token for it. Its
+     * counts stay in the totals, though events recorded at the same moment may
+     * be lost.
+     */
+    void forget(String key)
+    {
+        HostStats host = hosts.remove(key);
+        if (host != null)
+        {
+            forgotten.addAll(host.counters);
+        }
+    }
+
+    private void forgetAny()
+    {
+        Iterator<String> keys = hosts.keySet().iterator();
+        if (keys.hasNext())
+        {
+            forget(keys.next());
+        }
+    }
+
+    int getHostCount()
+    {
+        return hosts.size();
+    }
+
+    private long total(int counter)
+    {
+        long total = forgotten.get(counter);
+        for (HostStats host : hosts.values())
+        {
+            total += host.counters.get(counter);
+        }
+        return total;
+    }
+
+    private Map<String, Long> byHost(int counter)
+    {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (Map.Entry<String, HostStats> entry : hosts.entrySet())
+        {
+            result.put(entry.getKey(), entry.getValue().counters.get(counter));
+        }
+        return result;
+    }
+
+    private static class HostStats
+    {
+        private final StripedCounters counters = new StripedCounters(COUNTERS);
+        private final LatencyHistogram latency = new LatencyHistogram();
+    }
+}
@@ -0,0 +1,72 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.IOException;
+import java.net.URI;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import com.cloudera.alfredo.client.AuthenticatedURL;
+
+/**
+ * Picks up token cookies set by the server on Solr responses, and stores them
+ * in the SpnegoTokenCache for subsequent requests to the host. That covers both
+ * the token returned for a request SpnegoAuthenticator sent with a Negotiate
+ * header, and renewed tokens the server's AuthenticationFilter hands out on 
+ * ordinary responses. As the cache only keeps a harvested token if it expires
+ * later than the one it holds, busy hosts keep sliding their tokens forward and
+ * rarely need a full negotiation.
+ *
+ * Registered with SolrJ's HTTP clients by SpnegoHttpClientConfigurer. Clients
+ * created by the application itself need it adding to them explicitly.
+ */
+public class TokenHarvestingInterceptor implements HttpResponseInterceptor
+{
+    // request parameter holding the negotiation a request carries, set by SpnegoAuthenticator
+    static final String NEGOTIATION_PARAM = "solrj.auth.negotiation";
+
+    private final TokenCacheLocator tokenCaches;
+
+    public TokenHarvestingInterceptor(SpnegoTokenCache tokenCache)
+    {
+        this(new TokenCacheLocator.Fixed(tokenCache));
+    }
+
+    /**
+     * @param tokenCaches finds the cache for the identity a request was made as,
+     * responses are processed on the thread which made the request
+     */
+    public TokenHarvestingInterceptor(TokenCacheLocator tokenCaches)
+    {
+        this.tokenCaches = tokenCaches;
+    }
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) throws HttpException, IOException
+    {
+        HttpRequest request = (HttpRequest) context.getAttribute(ExecutionContext.HTTP_REQUEST);
+        Object negotiation = (request == null) ? null : request.getParams().getParameter(NEGOTIATION_PARAM);
+        if (negotiation instanceof SpnegoTokenCache.RequestNegotiation)
+        {
+            // verifies the server's reply, and hands the token to the requests waiting on it
+            ((SpnegoTokenCache.RequestNegotiation) negotiation).complete(response);
+            return;
+        }
+        // most responses set no cookies at all, so check that cheaply first
+        if (!response.containsHeader(AuthCookies.SET_COOKIE))
+        {
+            return;
+        }
+        HttpHost target = (HttpHost) context.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+        String token = AuthCookies.getToken(response);
+        if (target != null && token != null)
+        {
+            tokenCaches.getTokenCache().putToken(URI.create(target.toURI()), new AuthenticatedURL.Token(token));
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The TokenKeyStrategy implementations supported by SpnegoTokenCache.
+ */
+public final class TokenKeyStrategies
+{
+    private static final Logger logger = LoggerFactory.getLogger(TokenKeyStrategies.class);
+
+    public static final long DNS_CACHE_TTL_MS_DEFAULT = 5 * 60 * 1000;
+
+    // bounds the keys and names remembered per host, for clients which talk
+    // to an ever changing set of hosts
+    static final int MAX_HOSTS = 10000;
+
+    /**
+     * One token per host name, as sent in the request. The default.
+     */
+    public static final TokenKeyStrategy HOST = new TokenKeyStrategy()
+    {
+        @Override
+        public String getKey(String scheme, String host, int port)
+        {
+            return host;
+        }
+    };
+
+    /**
+     * One token per scheme, host and port, for servers which run separately
+     * authenticated Solr instances on different ports of the same host. Keys
+     * are built once per scheme, host and port, and reused for every request.
+     */
+    public static final TokenKeyStrategy SCHEME_HOST_PORT = new SchemeHostPortStrategy();
+
+    /**
+     * A strategy which remembers something per host, which SpnegoTokenCache
+     * lets it drop once the host's token has gone.
+     */
+    interface Prunable extends TokenKeyStrategy
+    {
+        void forget(String key);
+    }
+
+    private TokenKeyStrategies()
+    {
+    }
+
+    /**
+     * One token per host, identified by its canonical name, so that a node
+     * addressed by both IP and FQDN, or by aliases, shares a single token.
+     * Lookups are cached for DNS_CACHE_TTL_MS_DEFAULT.
+     */
+    public static TokenKeyStrategy canonicalHost()
+    {
+        return canonicalHost(DNS_CACHE_TTL_MS_DEFAULT);
+    }
+
+    /**
+     * One token per host, identified by its canonical name. A host's name is
+     * looked up by the first request to it, which would have to negotiate a
+     * token in any case. After dnsCacheTtl, it's looked up again in the
+     * background while requests carry on using the name already known.
+     *
+     * @param dnsCacheTtl how long to cache each host's canonical name, in ms
+     */
+    public static TokenKeyStrategy canonicalHost(long dnsCacheTtl)
+    {
+        return new CanonicalHostStrategy(dnsCacheTtl);
+    }
+
+    /**
+     * A single token shared by every host. Suitable for clusters whose nodes
+     * all sign tokens with the same secret, as a DSE cluster usually does, when
+     * one negotiation with any node yields a token accepted by all of them.
+     *
+     * @param clusterName identifies the cluster in logs
+     */
+    public static TokenKeyStrategy cluster(final String clusterName)
+    {
+        return new TokenKeyStrategy()
+        {
+            @Override
+            public String getKey(String scheme, String host, int port)
+            {
+                return clusterName;
+            }
+        };
+    }
+
+    private static class SchemeHostPortStrategy implements Prunable
+    {
+        private final ConcurrentMap<String, HostKeys> hosts = new ConcurrentHashMap<String, HostKeys>();
+
+        @Override
+        public String getKey(String scheme, String host, int port)
+        {
+            if (port == -1)
+            {
+                port = "https".equalsIgnoreCase(scheme) ? 443 : 80;
+            }
+            HostKeys keys = hosts.get(host);
+            if (keys == null)
+            {
+                if (hosts.size() >= MAX_HOSTS)
+                {
+                    // keys are cheap to rebuild, so start over rather than track use
+                    hosts.clear();
+                }
+                HostKeys created = new HostKeys(host);
+                keys = hosts.putIfAbsent(host, created);
+                if (keys == null)
+                {
+                    keys = created;
+                }
+            }
+            return keys.getKey(scheme, port);
+        }
+
+        @Override
+        public void forget(String key)
+        {
+            for (Map.Entry<String, HostKeys> entry : hosts.entrySet())
+            {
+                if (entry.getValue().contains(key))
+                {
+                    hosts.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * The keys built for one host, usually a single scheme and port, so they're
+     * just scanned.
+     */
+    private static class HostKeys
+    {
+        private final String host;
+        private volatile Key[] keys = new Key[0];
+
+        private HostKeys(String host)
+        {
+            this.host = host;
+        }
+
+        String getKey(String scheme, int port)
+        {
+            for (Key key : keys)
+            {
+                if (key.port == port && key.scheme.equals(scheme))
+                {
+                    return key.key;
+                }
+            }
+            return addKey(scheme, port);
+        }
+
+        boolean contains(String key)
+        {
+            for (Key candidate : keys)
+            {
+                if (candidate.key.equals(key))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized String addKey(String scheme, int port)
+        {
+            Key[] current = keys;
+            for (Key key : current)
+            {
+                if (key.port == port && key.scheme.equals(scheme))
+                {
+                    return key.key;
+                }
+            }
+            Key[] added = new Key[current.length + 1];
+            System.arraycopy(current, 0, added, 0, current.length);
+            added[current.length] = new Key(scheme, port, scheme + "://" + host + ":" + port);
+            keys = added;
+            return added[current.length].key;
+        }
+    }
+
+    private static class Key
+    {
+        private final String scheme;
+        private final int port;
+        private final String key;
+
+        private Key(String scheme, int port, String key)
+        {
+            this.scheme = scheme;
+            this.port = port;
+            this.key = key;
+        }
+    }
+
+    private static class CanonicalHostStrategy implements Prunable
+    {
+        private final LoadingCache<String, String> names;
+
+        private CanonicalHostStrategy(long dnsCacheTtl)
+        {
+            CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(MAX_HOSTS);
+            if (dnsCacheTtl > 0)
+            {
+                builder.refreshAfterWrite(dnsCacheTtl, TimeUnit.MILLISECONDS);
+            }
+            else
+            {
+                // no caching asked for, so every request looks the name up
+                builder.expireAfterWrite(0, TimeUnit.MILLISECONDS);
+            }
+            this.names = builder.build(new NameLoader());
+        }
+
+        @Override
+        public String getKey(String scheme, String host, int port)
+        {
+            return names.getUnchecked(host);
+        }
+
+        @Override
+        public void forget(String key)
+        {
+            names.asMap().values().removeAll(Collections.singleton(key));
+        }
+    }
+
+    /**
+     * Looks up a host's canonical name when it's first seen, and again in the
+     * background on the resolver thread once the name is due a refresh.
+     */
+    private static class NameLoader extends CacheLoader<String, String>
+    {
+        @Override
+        public String load(String host)
+        {
+            return resolve(host);
+        }
+
+        @Override
+        public ListenableFuture<String> reload(final String host, String oldName)
+        {
+            return Resolver.EXECUTOR.submit(new Callable<String>()
+            {
+                @Override
+                public String call()
+                {
+                    return resolve(host);
+                }
+            });
+        }
+
+        private static String resolve(String host)
+        {
+            try
+            {
+                return InetAddress.getByName(host).getCanonicalHostName().toLowerCase(Locale.ENGLISH);
+            }
+            catch (UnknownHostException e)
+            {
+                logger.debug("Unable to resolve canonical name of host " + host, e);
+                return host.toLowerCase(Locale.ENGLISH);
+            }
+        }
+    }
+
+    /**
+     * Holds the resolver thread, only started once a name needs refreshing.
+     */
+    private static class Resolver
+    {
+        static final ListeningExecutorService EXECUTOR = MoreExecutors.listeningDecorator(
+                Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                                                      .setDaemon(true)
+                                                      .setNameFormat("spnego-token-key-dns-%d")
+                                                      .build()));
+    }
+}
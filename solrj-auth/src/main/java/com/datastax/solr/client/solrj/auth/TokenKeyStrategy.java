@@ -0,0 +1,20 @@
+package com.datastax.solr.client.solrj.auth;
+
+/**
+ * Decides which requests share a cached SPNEGO token. SpnegoTokenCache holds
+ * one token per key, and negotiates a new one whenever a request's key has no
+ * valid token. See TokenKeyStrategies for the available implementations.
+ *
+ * Implementations are called for every request, so should avoid doing any
+ * real work once a key has been worked out for a host.
+ */
+public interface TokenKeyStrategy
+{
+    /**
+     * @param scheme the request scheme, http or https
+     * @param host the host name or address the request is sent to
+     * @param port the request port, or -1 if the default for the scheme is used
+     * @return the key to cache the token for the request under
+     */
+    String getKey(String scheme, String host, int port);
+}
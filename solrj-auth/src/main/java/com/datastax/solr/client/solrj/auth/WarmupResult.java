@@ -0,0 +1,53 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.net.URL;
+
+/**
+ * The outcome of pre-authenticating against a single Solr URL, as reported by
+ * SpnegoTokenCache.warmUp.
+ */
+public class WarmupResult
+{
+    private final URL url;
+    private final long latencyMillis;
+    private final Throwable error;
+
+    WarmupResult(URL url, long latencyMillis, Throwable error)
+    {
+        this.url = url;
+        this.latencyMillis = latencyMillis;
+        this.error = error;
+    }
+
+    public URL getUrl()
+    {
+        return url;
+    }
+
+    public boolean isSuccess()
+    {
+        return error == null;
+    }
+
+    /**
+     * Time taken to obtain a token for the URL, or to fail to.
+     */
+    public long getLatencyMillis()
+    {
+        return latencyMillis;
+    }
+
+    /**
+     * The reason authentication failed, or null if it succeeded.
+     */
+    public Throwable getError()
+    {
+        return error;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s %s in %s ms", url, isSuccess() ? "authenticated" : "failed", latencyMillis);
+    }
+}
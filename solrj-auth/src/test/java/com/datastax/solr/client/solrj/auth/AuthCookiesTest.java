@@ -0,0 +1,40 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.junit.Assert.*;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import com.cloudera.alfredo.client.AuthenticatedURL;
+
+public class AuthCookiesTest
+{
+    @Test
+    public void tokenIsReadFromAuthCookie()
+    {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("Set-Cookie", "JSESSIONID=abc; Path=/");
+        response.addHeader("Set-Cookie", AuthenticatedURL.AUTH_COOKIE + "=u=client&e=-1; Path=/; HttpOnly");
+        assertEquals("u=client&e=-1", AuthCookies.getToken(response));
+        
+        response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("Set-Cookie", AuthenticatedURL.AUTH_COOKIE + "=u=client&e=-1");
+        assertEquals("u=client&e=-1", AuthCookies.getToken(response));
+    }
+    
+    @Test
+    public void missingOrEmptyAuthCookieHasNoToken()
+    {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        assertNull(AuthCookies.getToken(response));
+        
+        response.addHeader("Set-Cookie", "JSESSIONID=abc");
+        assertNull(AuthCookies.getToken(response));
+        
+        // sent by the server to clear the cookie
+        response.addHeader("Set-Cookie", AuthenticatedURL.AUTH_COOKIE + "=; Path=/");
+        assertNull(AuthCookies.getToken(response));
+    }
+}
@@ -0,0 +1,77 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.kerberos.KerberosPrincipal;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.junit.Test;
+
+public class AuthenticatedURLProviderTest
+{
+    @Test
+    public void closeShutsDownClientCreatedForNegotiation() throws Exception
+    {
+        AuthenticatedURLProvider provider = new AuthenticatedURLProvider.Builder().httpClientNegotiation(true).build();
+        ClientConnectionManager connections = provider.getHttpClient().getConnectionManager();
+        provider.close();
+        try
+        {
+            lease(connections);
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected, the pool is shut down
+        }
+    }
+
+    @Test
+    public void closeLeavesSuppliedClientOpen() throws Exception
+    {
+        HttpClient client = AuthenticatedURLProvider.newNegotiationClient();
+        try
+        {
+            AuthenticatedURLProvider provider = new AuthenticatedURLProvider.Builder().httpClient(client).build();
+            assertSame(client, provider.getHttpClient());
+            provider.close();
+            lease(client.getConnectionManager());
+        }
+        finally
+        {
+            client.getConnectionManager().shutdown();
+        }
+    }
+
+    @Test
+    public void negotiationsWithoutSharedLoginHaveTimeouts() throws Exception
+    {
+        AuthenticatedURLProvider ticketCache = new AuthenticatedURLProvider.Builder().timeouts(1000, 2000).build();
+        AuthenticatedURLProvider keytab = new AuthenticatedURLProvider.Builder()
+                                              .keytab(new File("client.keytab"))
+                                              .principal(new KerberosPrincipal("client@EXAMPLE.COM"))
+                                              .timeouts(1000, 2000)
+                                              .build();
+        for (AuthenticatedURLProvider provider : Arrays.asList(ticketCache, keytab))
+        {
+            TimeoutAuthenticatedURL url = (TimeoutAuthenticatedURL) provider.get();
+            assertEquals(1000, url.getConnectTimeoutMs());
+            assertEquals(2000, url.getReadTimeoutMs());
+        }
+    }
+
+    private static void lease(ClientConnectionManager connections) throws Exception
+    {
+        ManagedClientConnection connection = connections.requestConnection(new HttpRoute(new HttpHost("localhost")), null)
+                                                        .getConnection(1, TimeUnit.SECONDS);
+        connections.releaseConnection(connection, 0, TimeUnit.MILLISECONDS);
+    }
+}
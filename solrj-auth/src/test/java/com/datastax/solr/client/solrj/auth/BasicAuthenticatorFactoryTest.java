@@ -0,0 +1,117 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static com.datastax.solr.client.solrj.auth.TestAuthenticators.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.Header;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.solr.common.SolrException;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+
+public class BasicAuthenticatorFactoryTest
+{
+    private static final String URL = "http://test.example.com/solr";
+    
+    @Test
+    public void headerFollowsSuppliedCredentials() throws Exception
+    {
+        final AtomicReference<UsernamePasswordCredentials> credentials = 
+                new AtomicReference<UsernamePasswordCredentials>(new UsernamePasswordCredentials("Aladdin", "open sesame"));
+        BasicAuthenticatorFactory factory = new BasicAuthenticatorFactory(supplierOf(credentials));
+        
+        HttpRequestBase method = authenticate(factory, URL);
+        Header header = method.getFirstHeader("Authorization");
+        assertEquals("Basic QWxhZGRpbjpvcGVuIHNlc2FtZQ==", header.getValue());
+        // the same header is reused while the credentials are unchanged
+        method = authenticate(factory, URL);
+        assertSame(header, method.getFirstHeader("Authorization"));
+        
+        credentials.set(new UsernamePasswordCredentials("user", "pass"));
+        method = authenticate(factory, URL);
+        assertEquals("Basic dXNlcjpwYXNz", method.getFirstHeader("Authorization").getValue());
+    }
+    
+    @Test
+    public void concurrentRequestsSeeWholeCredentialsWhileTheyAreReloaded() throws Exception
+    {
+        final AtomicReference<UsernamePasswordCredentials> credentials = 
+                new AtomicReference<UsernamePasswordCredentials>(new UsernamePasswordCredentials("user", "pass"));
+        final BasicAuthenticatorFactory factory = new BasicAuthenticatorFactory(supplierOf(credentials));
+        final Set<String> valid = new HashSet<String>(Arrays.asList("Basic dXNlcjpwYXNz", "Basic dXNlcjI6cGFzczI="));
+        final AtomicReference<String> invalid = new AtomicReference<String>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] requests = new Thread[4];
+        for (int i = 0; i < requests.length; i++)
+        {
+            requests[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int request = 0; request < 10000; request++)
+                        {
+                            HttpRequestBase method = authenticate(factory, URL);
+                            Header[] headers = method.getHeaders("Authorization");
+                            if (headers.length != 1 || !valid.contains(headers[0].getValue()))
+                            {
+                                invalid.compareAndSet(null, Arrays.toString(headers));
+                            }
+                        }
+                    }
+                    catch (Throwable t)
+                    {
+                        invalid.compareAndSet(null, t.toString());
+                    }
+                }
+            };
+            requests[i].start();
+        }
+        start.countDown();
+        // reload back and forth while the requests are made
+        for (int reload = 0; reload < 1000; reload++)
+        {
+            credentials.set(reload % 2 == 0 ? new UsernamePasswordCredentials("user2", "pass2")
+                                            : new UsernamePasswordCredentials("user", "pass"));
+        }
+        credentials.set(new UsernamePasswordCredentials("user2", "pass2"));
+        for (Thread request : requests)
+        {
+            request.join(30000);
+        }
+        assertNull(invalid.get());
+        // once reloading stops, every request uses the latest credentials
+        assertEquals("Basic dXNlcjI6cGFzczI=", authenticate(factory, URL).getFirstHeader("Authorization").getValue());
+    }
+    
+    @Test(expected=SolrException.class)
+    public void missingCredentialsFailRequests() throws Exception
+    {
+        BasicAuthenticatorFactory factory =
+                new BasicAuthenticatorFactory(supplierOf(new AtomicReference<UsernamePasswordCredentials>()));
+        authenticate(factory, URL);
+    }
+    
+    private static Supplier<UsernamePasswordCredentials> supplierOf(final AtomicReference<UsernamePasswordCredentials> credentials)
+    {
+        return new Supplier<UsernamePasswordCredentials>()
+        {
+            @Override
+            public UsernamePasswordCredentials get()
+            {
+                return credentials.get();
+            }
+        };
+    }
+}
@@ -0,0 +1,87 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static com.datastax.solr.client.solrj.auth.TestAuthenticators.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClientCertificateAuthenticatorFactoryTest
+{
+    private static final String TOKEN = token("client");
+    
+    private StubHttpServer server;
+    private DefaultHttpClient client;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new StubHttpServer().accept(cookie(TOKEN));
+        client = new DefaultHttpClient(new PoolingClientConnectionManager());
+    }
+    
+    @After
+    public void tearDown()
+    {
+        client.getConnectionManager().shutdown();
+        server.stop();
+    }
+    
+    @Test
+    public void requestsCarryNothingWithoutFallback() throws Exception
+    {
+        ClientCertificateAuthenticatorFactory factory = new ClientCertificateAuthenticatorFactory();
+        assertFalse(factory.hasNegotiateFallback());
+        assertNull(factory.getTokenCache());
+        new SSLHttpClientConfigurer(null, ConnectionPoolSettings.DEFAULTS).configure(client, new ModifiableSolrParams());
+        
+        HttpRequestBase request = authenticate(factory, server.getUrl());
+        assertEquals(0, request.getAllHeaders().length);
+        // a Negotiate challenge isn't answered
+        assertEquals(401, execute(request));
+        assertEquals(Arrays.asList("null"), server.getCookies());
+    }
+    
+    @Test
+    public void negotiateChallengeIsAnsweredAndRequestRetried() throws Exception
+    {
+        TokenIssuer issuer = new TokenIssuer(TOKEN);
+        ClientCertificateAuthenticatorFactory factory = new ClientCertificateAuthenticatorFactory(
+                new SpnegoAuthenticatorFactory.Builder().urlProvider(issuer).build());
+        new SpnegoHttpClientConfigurer(null, ConnectionPoolSettings.DEFAULTS, factory).configure(client, new ModifiableSolrParams());
+        
+        // never negotiates up front
+        HttpRequestBase request = authenticate(factory, server.getUrl());
+        assertNull(getCookie(request));
+        assertEquals(0, factory.getTokenCache().getStats().getMisses());
+        assertEquals(0, issuer.negotiations.get());
+        
+        assertEquals(200, execute(request));
+        assertEquals(Arrays.asList("null", cookie(TOKEN)), server.getCookies());
+        assertEquals(1, issuer.negotiations.get());
+        
+        // the host asked for SPNEGO, so its token is now sent up front
+        request = authenticate(factory, server.getUrl());
+        assertEquals(cookie(TOKEN), getCookie(request));
+        assertEquals(200, execute(request));
+        assertEquals(Arrays.asList("null", cookie(TOKEN), cookie(TOKEN)), server.getCookies());
+        assertEquals(1, issuer.negotiations.get());
+        factory.getTokenCache().close();
+    }
+    
+    private int execute(HttpRequestBase request) throws Exception
+    {
+        HttpResponse response = client.execute(request);
+        EntityUtils.consume(response.getEntity());
+        return response.getStatusLine().getStatusCode();
+    }
+}
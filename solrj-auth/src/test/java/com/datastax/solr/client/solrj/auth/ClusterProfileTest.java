@@ -0,0 +1,69 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.junit.Assert.*;
+
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.junit.Test;
+
+public class ClusterProfileTest
+{
+    @Test
+    public void profileClientHasSolrjPoolLimits() throws Exception
+    {
+        ClusterProfile profile = new ClusterProfile.Builder("dc1").hosts("node1.example.com").build();
+        try
+        {
+            PoolingClientConnectionManager pool =
+                    (PoolingClientConnectionManager) profile.getHttpClient().getConnectionManager();
+            assertEquals(ConnectionPoolSettings.SOLRJ_MAX_CONNECTIONS_DEFAULT, pool.getMaxTotal());
+            assertEquals(ConnectionPoolSettings.SOLRJ_MAX_CONNECTIONS_PER_HOST_DEFAULT, pool.getDefaultMaxPerRoute());
+        }
+        finally
+        {
+            profile.close();
+        }
+    }
+
+    @Test
+    public void hostsMatchByNameOrDomain() throws Exception
+    {
+        ClusterProfile dc1 = new ClusterProfile.Builder("dc1")
+                                 .hosts("gateway.example.com")
+                                 .domains(".dc1.example.com")
+                                 .build();
+        ClusterProfile dc2 = new ClusterProfile.Builder("dc2")
+                                 .domains("example.com")
+                                 .build();
+        ClusterProfiles profiles = new ClusterProfiles();
+        profiles.register(dc1);
+        profiles.register(dc2);
+        try
+        {
+            assertTrue(dc1.matches("node7.DC1.example.com"));
+            assertFalse(dc1.matches("dc1.example.com"));
+            assertFalse(dc1.matches("node7.xdc1.example.com"));
+
+            assertSame(dc1, profiles.getProfileForHost("gateway.example.com"));
+            // the most specific domain wins
+            assertSame(dc1, profiles.getProfileForHost("node7.dc1.example.com"));
+            assertSame(dc2, profiles.getProfileForHost("node7.dc2.example.com"));
+            assertNull(profiles.getProfileForHost("node7.example.org"));
+            assertNull(profiles.getProfileForHost("localhost"));
+
+            try
+            {
+                dc1.newSolrServer("http://node9.dc2.example.com:8983/solr");
+                fail("Expected IllegalArgumentException");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+        }
+        finally
+        {
+            dc1.close();
+            dc2.close();
+        }
+    }
+}
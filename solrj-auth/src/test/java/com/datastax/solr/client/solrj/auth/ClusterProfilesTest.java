@@ -0,0 +1,94 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static com.datastax.solr.client.solrj.auth.TestAuthenticators.*;
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClusterProfilesTest
+{
+    private ClusterProfiles profiles;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        profiles = new ClusterProfiles();
+        for (String dc : new String[] { "dc1", "dc2" })
+        {
+            ClusterProfile profile = new ClusterProfile.Builder(dc)
+                                         .baseUrls("http://" + dc + "-node1.example.com:8983/solr")
+                                         .domains(dc + ".example.com")
+                                         .authentication(new SpnegoAuthenticatorFactory.Builder())
+                                         .build();
+            SpnegoTokenCache cache = profile.getAuthenticatorFactory().getTokenCache();
+            importToken(cache, dc + "-node1.example.com", token(dc));
+            importToken(cache, "node2." + dc + ".example.com", token(dc));
+            profiles.register(profile);
+        }
+    }
+    
+    @After
+    public void tearDown()
+    {
+        for (ClusterProfile profile : profiles.getProfiles())
+        {
+            profile.close();
+        }
+    }
+    
+    @Test
+    public void requestsAreAuthenticatedByProfileOfTheirHost() throws Exception
+    {
+        assertEquals(cookie(token("dc2")), getCookie(authenticate(profiles, "http://dc2-node1.example.com:8983/solr/select")));
+        assertEquals(cookie(token("dc1")), getCookie(authenticate(profiles, "http://dc1-node1.example.com:8983/solr/select")));
+        // hosts added to a cluster later are found by domain
+        assertEquals(cookie(token("dc1")), getCookie(authenticate(profiles, "http://node2.dc1.example.com:8983/solr/select")));
+        assertEquals(cookie(token("dc2")), getCookie(authenticate(profiles, "http://node2.dc2.example.com:8983/solr/select")));
+        // no default factory, so other hosts' requests are left alone
+        assertNull(getCookie(authenticate(profiles, "http://elsewhere.example.com/solr")));
+    }
+    
+    @Test
+    public void requestsToOtherHostsUseDefaultFactory() throws Exception
+    {
+        SpnegoAuthenticatorFactory defaultFactory = new SpnegoAuthenticatorFactory.Builder().build();
+        importToken(defaultFactory.getTokenCache(), "elsewhere.example.com", token("default"));
+        profiles.setDefaultFactory(defaultFactory);
+        try
+        {
+            assertEquals(cookie(token("default")), getCookie(authenticate(profiles, "http://elsewhere.example.com/solr")));
+            // profiles still come first
+            assertEquals(cookie(token("dc1")), getCookie(authenticate(profiles, "http://dc1-node1.example.com:8983/solr")));
+            assertEquals(0, defaultFactory.getTokenCache().getStats().getMisses());
+        }
+        finally
+        {
+            defaultFactory.getTokenCache().close();
+        }
+    }
+    
+    @Test
+    public void overlappingDomainsAreRejected() throws Exception
+    {
+        ClusterProfiles profiles = new ClusterProfiles();
+        ClusterProfile first = new ClusterProfile.Builder("first").domains("dc1.example.com").build();
+        ClusterProfile second = new ClusterProfile.Builder("second").domains("DC1.example.com").build();
+        profiles.register(first);
+        try
+        {
+            profiles.register(second);
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertTrue(e.getMessage().contains("dc1.example.com"));
+        }
+        finally
+        {
+            first.close();
+            second.close();
+        }
+    }
+}
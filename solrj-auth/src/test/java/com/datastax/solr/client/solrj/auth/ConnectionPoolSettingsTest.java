@@ -0,0 +1,51 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ConnectionPoolSettingsTest
+{
+    @Test
+    public void unsetSettingsKeepSolrjDefaults() throws Exception
+    {
+        ConnectionPoolSettings settings = ConnectionPoolSettings.DEFAULTS;
+        assertEquals(ConnectionPoolSettings.UNSET, settings.getMaxConnections());
+        assertEquals(ConnectionPoolSettings.UNSET, settings.getMaxConnectionsPerHost());
+        assertEquals(ConnectionPoolSettings.UNSET, settings.getKeepAliveMs());
+        assertEquals(ConnectionPoolSettings.UNSET, settings.getIdleTimeoutMs());
+        assertNull(settings.getStaleConnectionCheck());
+        assertEquals(ConnectionPoolSettings.HTTPS_PORT_DEFAULT, settings.getHttpsPort());
+    }
+    
+    @Test
+    public void perHostLimitMayBeSetAlone() throws Exception
+    {
+        ConnectionPoolSettings settings = new ConnectionPoolSettings.Builder().maxConnectionsPerHost(500).build();
+        assertEquals(500, settings.getMaxConnectionsPerHost());
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void perHostLimitCannotExceedTotal() throws Exception
+    {
+        new ConnectionPoolSettings.Builder().maxConnections(10).maxConnectionsPerHost(11).build();
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void maxConnectionsMustBePositive() throws Exception
+    {
+        new ConnectionPoolSettings.Builder().maxConnections(0).build();
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void maxConnectionsPerHostMustBePositive() throws Exception
+    {
+        new ConnectionPoolSettings.Builder().maxConnectionsPerHost(0).build();
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void reaperIntervalMustBePositive() throws Exception
+    {
+        new ConnectionPoolSettings.Builder().idleTimeoutMs(1000).reaperIntervalMs(0).build();
+    }
+}
@@ -0,0 +1,204 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.net.URL;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.ietf.jgss.GSSContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudera.alfredo.client.AuthenticatedURL;
+import com.cloudera.alfredo.client.AuthenticationException;
+
+public class HttpClientAuthenticatedURLTest
+{
+    private static final String TOKEN_COOKIE = AuthenticatedURL.AUTH_COOKIE + "=u=client&e=-1; Path=/";
+    
+    private StubKerberosLogin login;
+    private GSSContext gss;
+    private HttpClient client;
+    private PoolingClientConnectionManager connectionManager;
+    private Capture<HttpHost> targets;
+    private Capture<HttpRequest> requests;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        login = new StubKerberosLogin().thenReturn(StubKerberosLogin.subjectWithTGT(60000));
+        gss = createMock(GSSContext.class);
+        client = createMock(HttpClient.class);
+        connectionManager = new PoolingClientConnectionManager();
+        targets = new Capture<HttpHost>(CaptureType.ALL);
+        requests = new Capture<HttpRequest>(CaptureType.ALL);
+    }
+    
+    @After
+    public void tearDown()
+    {
+        login.close();
+        connectionManager.shutdown();
+    }
+    
+    @Test
+    public void tokenIsReturnedOnceServerAccepts() throws Exception
+    {
+        expect(gss.initSecContext(aryEq(new byte[0]), eq(0), eq(0))).andReturn("test".getBytes("US-ASCII"));
+        expect(gss.isEstablished()).andReturn(false);
+        expect(gss.initSecContext(aryEq("reply".getBytes("US-ASCII")), eq(0), eq(5))).andReturn(null);
+        gss.dispose();
+        expectResponse(200, "Negotiate cmVwbHk=", TOKEN_COOKIE);
+        replay(gss, client);
+        
+        AuthenticatedURL.Token token = newURL(null).authenticateWithToken(
+                new URL("http://test.example.com:8983/solr"), new AuthenticatedURL.Token());
+        assertEquals("u=client&e=-1", token.toString());
+        assertEquals(new HttpHost("test.example.com", 8983, "http"), targets.getValue());
+        assertEquals("Negotiate dGVzdA==", requests.getValue().getFirstHeader("Authorization").getValue());
+        verify(gss, client);
+    }
+    
+    @Test
+    public void challengeIsAnsweredOnNextLeg() throws Exception
+    {
+        expect(gss.initSecContext(aryEq(new byte[0]), eq(0), eq(0))).andReturn("test".getBytes("US-ASCII"));
+        expect(gss.isEstablished()).andReturn(false);
+        expect(gss.initSecContext(aryEq("more".getBytes("US-ASCII")), eq(0), eq(4))).andReturn("again".getBytes("US-ASCII"));
+        gss.dispose();
+        expectResponse(401, "Negotiate bW9yZQ==", null);
+        expectResponse(200, null, TOKEN_COOKIE);
+        replay(gss, client);
+        
+        AuthenticatedURL.Token token = newURL(null).authenticateWithToken(
+                new URL("http://test.example.com:8983/solr"), new AuthenticatedURL.Token());
+        assertEquals("u=client&e=-1", token.toString());
+        assertEquals(2, requests.getValues().size());
+        assertEquals("Negotiate YWdhaW4=", requests.getValues().get(1).getFirstHeader("Authorization").getValue());
+        verify(gss, client);
+    }
+    
+    @Test (expected=AuthenticationException.class)
+    public void refusalWithoutNegotiateFails() throws Exception
+    {
+        expect(gss.initSecContext(aryEq(new byte[0]), eq(0), eq(0))).andReturn("test".getBytes("US-ASCII"));
+        gss.dispose();
+        expectResponse(403, null, null);
+        replay(gss, client);
+        
+        newURL(null).authenticateWithToken(new URL("http://test.example.com:8983/solr"), new AuthenticatedURL.Token());
+    }
+    
+    @Test (expected=AuthenticationException.class)
+    public void successWithoutTokenFails() throws Exception
+    {
+        expect(gss.initSecContext(aryEq(new byte[0]), eq(0), eq(0))).andReturn("test".getBytes("US-ASCII"));
+        gss.dispose();
+        expectResponse(200, null, null);
+        replay(gss, client);
+        
+        newURL(null).authenticateWithToken(new URL("http://test.example.com:8983/solr"), new AuthenticatedURL.Token());
+    }
+    
+    @Test
+    public void httpsIsRegisteredOnPortOfURL() throws Exception
+    {
+        expect(client.getConnectionManager()).andReturn(connectionManager).anyTimes();
+        expect(gss.initSecContext(aryEq(new byte[0]), eq(0), eq(0))).andReturn("test".getBytes("US-ASCII"));
+        gss.dispose();
+        expectResponse(200, null, TOKEN_COOKIE);
+        replay(gss, client);
+        
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, null, null);
+        SSLSocketFactory socketFactory = new SSLSocketFactory(sslContext);
+        newURL(socketFactory).authenticateWithToken(new URL("https://test.example.com:8984/solr"), new AuthenticatedURL.Token());
+        
+        Scheme https = connectionManager.getSchemeRegistry().get("https");
+        assertSame(socketFactory, https.getSchemeSocketFactory());
+        assertEquals(8984, https.getDefaultPort());
+        assertEquals(new HttpHost("test.example.com", 8984, "https"), targets.getValue());
+        verify(gss, client);
+    }
+    
+    @Test (timeout=10000)
+    public void challengeDuringNegotiationIsNotAnsweredByClient() throws Exception
+    {
+        // as if negotiating over the client SolrJ's requests use, which answers
+        // Negotiate challenges with tokens from the same cache
+        StubHttpServer server = new StubHttpServer();
+        DefaultHttpClient solrClient = new DefaultHttpClient(new PoolingClientConnectionManager());
+        try
+        {
+            expect(gss.initSecContext(aryEq(new byte[0]), eq(0), eq(0))).andReturn("test".getBytes("US-ASCII"));
+            gss.dispose();
+            replay(gss);
+            client = solrClient;
+            AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+            expect(provider.get()).andReturn(newURL(null));
+            replay(provider);
+            SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+            new SpnegoHttpClientConfigurer(null, ConnectionPoolSettings.DEFAULTS, cache).configure(solrClient, new ModifiableSolrParams());
+            
+            try
+            {
+                cache.getToken(new URL(server.getUrl()));
+                fail("Expected SolrException");
+            }
+            catch (SolrException e)
+            {
+                assertTrue(e.getMessage(), e.getCause() instanceof AuthenticationException);
+            }
+            // the challenge was refused by the negotiation, without a retry
+            assertEquals(1, server.getCookies().size());
+            verify(gss);
+        }
+        finally
+        {
+            solrClient.getConnectionManager().shutdown();
+            server.stop();
+        }
+    }
+    
+    private HttpClientAuthenticatedURL newURL(SSLSocketFactory socketFactory)
+    {
+        return new HttpClientAuthenticatedURL(login, client, socketFactory, 1000, 1000) {
+            @Override
+            NegotiateContext createContext(String host)
+            {
+                return new NegotiateContext(gss);
+            }
+        };
+    }
+    
+    private void expectResponse(int status, String challenge, String cookie) throws Exception
+    {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "TEST");
+        if (challenge != null)
+        {
+            response.addHeader("WWW-Authenticate", challenge);
+        }
+        if (cookie != null)
+        {
+            response.addHeader("Set-Cookie", cookie);
+        }
+        expect(client.execute(capture(targets), capture(requests))).andReturn(response);
+    }
+}
@@ -0,0 +1,57 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.easymock.IAnswer;
+import org.junit.Test;
+
+public class IdleConnectionReaperTest
+{
+    @Test
+    public void expiredAndIdleConnectionsAreClosedRepeatedly() throws Exception
+    {
+        final CountDownLatch reaped = new CountDownLatch(2);
+        ClientConnectionManager connectionManager = createNiceMock(ClientConnectionManager.class);
+        connectionManager.closeIdleConnections(1000, TimeUnit.MILLISECONDS);
+        expectLastCall().andAnswer(new IAnswer<Object>()
+        {
+            @Override
+            public Object answer()
+            {
+                reaped.countDown();
+                return null;
+            }
+        }).anyTimes();
+        replay(connectionManager);
+        
+        IdleConnectionReaper.register(connectionManager, 1000, 10);
+        assertTrue(reaped.await(10, TimeUnit.SECONDS));
+    }
+    
+    @Test
+    public void failingPoolDoesNotStopTheReaper() throws Exception
+    {
+        final CountDownLatch reaped = new CountDownLatch(2);
+        ClientConnectionManager connectionManager = createNiceMock(ClientConnectionManager.class);
+        connectionManager.closeExpiredConnections();
+        expectLastCall().andAnswer(new IAnswer<Object>()
+        {
+            @Override
+            public Object answer()
+            {
+                reaped.countDown();
+                throw new IllegalStateException("TEST EXCEPTION");
+            }
+        }).anyTimes();
+        replay(connectionManager);
+        
+        IdleConnectionReaper.register(connectionManager, 1000, 10);
+        // still running after the first attempt failed
+        assertTrue(reaped.await(10, TimeUnit.SECONDS));
+    }
+}
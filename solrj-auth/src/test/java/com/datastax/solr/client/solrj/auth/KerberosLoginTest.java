@@ -0,0 +1,116 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import org.junit.Test;
+
+public class KerberosLoginTest
+{
+    private static final long TGT_LIFETIME_MS = 10 * 60 * 60 * 1000L;
+    
+    @Test
+    public void renewalIsScheduledAheadOfTGTExpiry() throws Exception
+    {
+        Subject subject = StubKerberosLogin.subjectWithTGT(TGT_LIFETIME_MS);
+        StubKerberosLogin login = new StubKerberosLogin().thenReturn(subject);
+        try
+        {
+            assertSame(subject, login.getSubject());
+            assertSame(subject, login.getSubject());
+            assertEquals(1, login.getLogins());
+            
+            long delay = login.getRenewal().getDelay(TimeUnit.MILLISECONDS);
+            long expected = (long) (TGT_LIFETIME_MS * KerberosLogin.RENEW_RATIO);
+            assertTrue("Renewal due in " + delay + "ms", delay <= expected && delay > expected - 60000);
+        }
+        finally
+        {
+            login.close();
+        }
+    }
+    
+    @Test
+    public void eachLoginReplacesThePendingRenewal() throws Exception
+    {
+        StubKerberosLogin login = new StubKerberosLogin();
+        for (int i = 0; i < 4; i++)
+        {
+            login.thenReturn(StubKerberosLogin.subjectWithTGT(TGT_LIFETIME_MS));
+        }
+        try
+        {
+            login.getSubject();
+            ScheduledFuture<?> previous = login.getRenewal();
+            for (int i = 0; i < 3; i++)
+            {
+                // as if the ticket cache had changed
+                login.relogin();
+                assertTrue(previous.isCancelled());
+                assertNotSame(previous, login.getRenewal());
+                assertFalse(login.getRenewal().isDone());
+                previous = login.getRenewal();
+            }
+        }
+        finally
+        {
+            login.close();
+        }
+    }
+    
+    @Test
+    public void failedReloginKeepsSubjectAndRetries() throws Exception
+    {
+        Subject first = StubKerberosLogin.subjectWithTGT(TGT_LIFETIME_MS);
+        Subject second = StubKerberosLogin.subjectWithTGT(TGT_LIFETIME_MS);
+        StubKerberosLogin login = new StubKerberosLogin().thenReturn(first).thenFail().thenReturn(second);
+        try
+        {
+            login.getSubject();
+            ScheduledFuture<?> renewal = login.getRenewal();
+            
+            login.relogin();
+            // the old tickets are still good, so keep using them until a retry succeeds
+            assertSame(first, login.getSubject());
+            assertTrue(renewal.isCancelled());
+            long delay = login.getRenewal().getDelay(TimeUnit.MILLISECONDS);
+            assertTrue("Retry due in " + delay + "ms", delay <= KerberosLogin.MIN_RENEW_DELAY_MS && delay > 0);
+            
+            login.relogin();
+            assertSame(second, login.getSubject());
+            delay = login.getRenewal().getDelay(TimeUnit.MILLISECONDS);
+            assertTrue("Renewal due in " + delay + "ms", delay > KerberosLogin.MIN_RENEW_DELAY_MS);
+            assertEquals(3, login.getLogins());
+        }
+        finally
+        {
+            login.close();
+        }
+    }
+    
+    @Test
+    public void nothingIsScheduledAfterClose() throws Exception
+    {
+        StubKerberosLogin login = new StubKerberosLogin()
+                                      .thenReturn(StubKerberosLogin.subjectWithTGT(TGT_LIFETIME_MS))
+                                      .thenReturn(StubKerberosLogin.subjectWithTGT(TGT_LIFETIME_MS));
+        login.getSubject();
+        login.close();
+        login.relogin();
+        assertNull(login.getRenewal());
+    }
+    
+    @Test
+    public void loginAfterCloseIsNotRenewed() throws Exception
+    {
+        StubKerberosLogin login = new StubKerberosLogin()
+                                      .thenReturn(StubKerberosLogin.subjectWithTGT(TGT_LIFETIME_MS));
+        login.close();
+        assertNotNull(login.getSubject());
+        assertNull(login.getRenewal());
+    }
+}
@@ -0,0 +1,22 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Clock which only moves when a test moves it.
+ */
+class ManualClock implements Clock
+{
+    private final AtomicLong now = new AtomicLong(System.currentTimeMillis());
+
+    @Override
+    public long currentTimeMillis()
+    {
+        return now.get();
+    }
+
+    void advance(long millis)
+    {
+        now.addAndGet(millis);
+    }
+}
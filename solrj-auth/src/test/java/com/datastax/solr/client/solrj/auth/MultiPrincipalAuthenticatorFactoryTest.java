@@ -0,0 +1,218 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static com.datastax.solr.client.solrj.auth.TestAuthenticators.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.security.auth.kerberos.KerberosPrincipal;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.solr.common.SolrException;
+import org.junit.Test;
+
+public class MultiPrincipalAuthenticatorFactoryTest
+{
+    private static final String URL = "http://test.example.com/solr/select";
+    
+    @Test
+    public void requestsUseTokensOfSelectedIdentity() throws Exception
+    {
+        MultiPrincipalAuthenticatorFactory factory = newFactory("tenant1", "tenant2");
+        try
+        {
+            KerberosIdentityContext.setPrincipal("tenant1@EXAMPLE.COM");
+            assertEquals(cookie(token("tenant1")), getCookie(authenticate(factory, URL)));
+            KerberosIdentityContext.setPrincipal("tenant2@EXAMPLE.COM");
+            assertEquals(cookie(token("tenant2")), getCookie(authenticate(factory, URL)));
+            
+            KerberosIdentityContext.setPrincipal("unknown@EXAMPLE.COM");
+            try
+            {
+                authenticate(factory, URL);
+                fail("Expected SolrException");
+            }
+            catch (SolrException e)
+            {
+                // expected
+            }
+        }
+        finally
+        {
+            KerberosIdentityContext.clear();
+        }
+    }
+    
+    @Test
+    public void concurrentRequestsKeepTheirOwnIdentities() throws Exception
+    {
+        final String[] tenants = { "tenant1", "tenant2", "tenant3", "tenant4" };
+        final MultiPrincipalAuthenticatorFactory factory = newFactory(tenants);
+        final AtomicReference<String> mismatch = new AtomicReference<String>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[tenants.length * 2];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final String tenant = tenants[i % tenants.length];
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int request = 0; request < 1000; request++)
+                        {
+                            // switching identity between requests, as a gateway's pooled threads do
+                            KerberosIdentityContext.setPrincipal(tenant + "@EXAMPLE.COM");
+                            String cookie = getCookie(authenticate(factory, URL));
+                            KerberosIdentityContext.clear();
+                            if (!cookie(token(tenant)).equals(cookie))
+                            {
+                                mismatch.compareAndSet(null, tenant + " sent " + cookie);
+                            }
+                            cookie = getCookie(authenticate(factory, URL));
+                            if (!cookie(token("default")).equals(cookie))
+                            {
+                                mismatch.compareAndSet(null, tenant + " without identity sent " + cookie);
+                            }
+                        }
+                    }
+                    catch (Throwable t)
+                    {
+                        mismatch.compareAndSet(null, tenant + " failed: " + t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join(30000);
+        }
+        assertNull(mismatch.get());
+    }
+    
+    @Test
+    public void identitiesShareOneNegotiationPool() throws Exception
+    {
+        MultiPrincipalAuthenticatorFactory factory =
+                new MultiPrincipalAuthenticatorFactory(new SpnegoAuthenticatorFactory.Builder(), null);
+        factory.addIdentity(new KerberosPrincipal("tenant1@EXAMPLE.COM"), new File("tenant1.keytab"));
+        factory.addIdentity(new KerberosPrincipal("tenant2@EXAMPLE.COM"), new File("tenant2.keytab"));
+
+        NegotiationPool pool = factory.getTokenCache().getNegotiationPool();
+        try
+        {
+            KerberosIdentityContext.setPrincipal("tenant1@EXAMPLE.COM");
+            SpnegoTokenCache tenant1 = factory.getTokenCache();
+            KerberosIdentityContext.setPrincipal("tenant2@EXAMPLE.COM");
+            SpnegoTokenCache tenant2 = factory.getTokenCache();
+            assertNotSame(tenant1, tenant2);
+            assertSame(pool, tenant1.getNegotiationPool());
+            assertSame(pool, tenant2.getNegotiationPool());
+        }
+        finally
+        {
+            KerberosIdentityContext.clear();
+        }
+    }
+
+    @Test
+    public void reregisteringPrincipalNeedsSameKeytab() throws Exception
+    {
+        MultiPrincipalAuthenticatorFactory factory =
+                new MultiPrincipalAuthenticatorFactory(new SpnegoAuthenticatorFactory.Builder(), null);
+        KerberosPrincipal principal = new KerberosPrincipal("tenant1@EXAMPLE.COM");
+        factory.addIdentity(principal, new File("tenant1.keytab"));
+        factory.addIdentity(principal, new File("tenant1.keytab").getAbsoluteFile());
+        try
+        {
+            factory.addIdentity(principal, new File("other.keytab"));
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertTrue(e.getMessage().contains("other.keytab"));
+        }
+        assertEquals(1, factory.getPrincipals().size());
+    }
+
+    @Test
+    public void requestsWithoutIdentityFailWhenOneIsRequired() throws Exception
+    {
+        MultiPrincipalAuthenticatorFactory factory =
+                new MultiPrincipalAuthenticatorFactory(new SpnegoAuthenticatorFactory.Builder(), null, true);
+        factory.addIdentity(new KerberosPrincipal("tenant1@EXAMPLE.COM"), new File("tenant1.keytab"));
+        try
+        {
+            factory.getAuthenticator().setAuthenticationOptions(new HttpGet("http://test.example.com/solr"));
+            fail("Expected SolrException");
+        }
+        catch (SolrException e)
+        {
+            assertEquals(SolrException.ErrorCode.UNAUTHORIZED.code, e.code());
+        }
+    }
+
+    @Test
+    public void wrappedTasksRunAsSubmittingIdentity() throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Callable<String> principal = new Callable<String>()
+        {
+            @Override
+            public String call()
+            {
+                return KerberosIdentityContext.getPrincipal();
+            }
+        };
+        try
+        {
+            KerberosIdentityContext.setPrincipal("tenant1@EXAMPLE.COM");
+            assertNull(executor.submit(principal).get(10, TimeUnit.SECONDS));
+            assertEquals("tenant1@EXAMPLE.COM",
+                         executor.submit(KerberosIdentityContext.wrap(principal)).get(10, TimeUnit.SECONDS));
+            // the pool thread goes back to having no identity
+            assertNull(executor.submit(principal).get(10, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            KerberosIdentityContext.clear();
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * A factory with the identities, each holding its own token for the test
+     * host, as does the default identity.
+     */
+    private static MultiPrincipalAuthenticatorFactory newFactory(String... tenants)
+    {
+        MultiPrincipalAuthenticatorFactory factory =
+                new MultiPrincipalAuthenticatorFactory(new SpnegoAuthenticatorFactory.Builder(), null);
+        importToken(factory.getTokenCache(), "test.example.com", token("default"));
+        try
+        {
+            for (String tenant : tenants)
+            {
+                factory.addIdentity(new KerberosPrincipal(tenant + "@EXAMPLE.COM"), new File(tenant + ".keytab"));
+                KerberosIdentityContext.setPrincipal(tenant + "@EXAMPLE.COM");
+                importToken(factory.getTokenCache(), "test.example.com", token(tenant));
+            }
+        }
+        finally
+        {
+            KerberosIdentityContext.clear();
+        }
+        return factory;
+    }
+}
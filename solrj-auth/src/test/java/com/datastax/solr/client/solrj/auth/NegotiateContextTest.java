@@ -0,0 +1,53 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.ietf.jgss.GSSContext;
+import org.junit.Test;
+
+public class NegotiateContextTest
+{
+    @Test
+    public void challengeIsReadFromNegotiateHeader()
+    {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 401, "Unauthorized");
+        response.addHeader("WWW-Authenticate", "Basic realm=\"solr\"");
+        response.addHeader("WWW-Authenticate", " negotiate  dGVzdA== ");
+        assertEquals("dGVzdA==", NegotiateContext.getChallenge(response));
+    }
+    
+    @Test
+    public void challengeWithoutTokenIsEmpty()
+    {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 401, "Unauthorized");
+        response.addHeader("WWW-Authenticate", "Negotiate");
+        assertEquals("", NegotiateContext.getChallenge(response));
+    }
+    
+    @Test
+    public void noChallengeWithoutNegotiateHeader()
+    {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 401, "Unauthorized");
+        assertNull(NegotiateContext.getChallenge(response));
+        response.addHeader("WWW-Authenticate", "Basic realm=\"solr\"");
+        assertNull(NegotiateContext.getChallenge(response));
+    }
+    
+    @Test
+    public void stepEncodesTokensAsNegotiateHeader() throws Exception
+    {
+        GSSContext gss = createMock(GSSContext.class);
+        expect(gss.initSecContext(aryEq(new byte[0]), eq(0), eq(0))).andReturn("test".getBytes("US-ASCII"));
+        expect(gss.initSecContext(aryEq("reply".getBytes("US-ASCII")), eq(0), eq(5))).andReturn(null);
+        replay(gss);
+        
+        NegotiateContext context = new NegotiateContext(gss);
+        assertEquals("Negotiate dGVzdA==", context.step(null));
+        assertNull(context.step("cmVwbHk="));
+        verify(gss);
+    }
+}
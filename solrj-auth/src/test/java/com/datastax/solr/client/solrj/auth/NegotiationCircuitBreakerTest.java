@@ -0,0 +1,55 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.apache.solr.common.SolrException;
+import org.junit.Test;
+
+public class NegotiationCircuitBreakerTest
+{
+    @Test
+    public void circuitOpensAfterThresholdAndClosesOnSuccess() throws Exception
+    {
+        ManualClock clock = new ManualClock();
+        NegotiationCircuitBreaker breaker = new NegotiationCircuitBreaker(2, 1000, 1000, clock);
+        breaker.recordFailure("host", new IOException("refused"));
+        breaker.checkClosed("host");
+        breaker.recordFailure("host", new IOException("refused"));
+        try
+        {
+            breaker.checkClosed("host");
+            fail("Circuit should be open");
+        }
+        catch (SolrException e)
+        {
+            assertTrue(e.getMessage().contains("refused"));
+        }
+        breaker.recordSuccess("host");
+        breaker.checkClosed("host");
+        assertEquals(0, breaker.getCircuitCount());
+    }
+    
+    @Test
+    public void forgottenAndStaleCircuitsArePruned() throws Exception
+    {
+        ManualClock clock = new ManualClock();
+        NegotiationCircuitBreaker breaker = new NegotiationCircuitBreaker(1, 1000, 5000, clock);
+        breaker.recordFailure("forgotten", new IOException("refused"));
+        breaker.recordFailure("stale", new IOException("refused"));
+        assertEquals(2, breaker.getCircuitCount());
+        
+        breaker.forget("forgotten");
+        assertEquals(1, breaker.getCircuitCount());
+        breaker.checkClosed("forgotten");
+        
+        // still within the maximum backoff of the circuit closing
+        clock.advance(5000);
+        breaker.prune();
+        assertEquals(1, breaker.getCircuitCount());
+        clock.advance(1000);
+        breaker.prune();
+        assertEquals(0, breaker.getCircuitCount());
+    }
+}
@@ -0,0 +1,126 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class NegotiationLimiterTest
+{
+    @Test
+    public void waitingNegotiationsForRequestsGoBeforeRefreshes() throws Exception
+    {
+        final NegotiationLimiter limiter = new NegotiationLimiter(1, 0, 1);
+        final List<NegotiationLimiter.Priority> order = 
+                Collections.synchronizedList(new ArrayList<NegotiationLimiter.Priority>());
+        assertTrue(limiter.acquire(NegotiationLimiter.Priority.DEMAND, 1, TimeUnit.SECONDS));
+        
+        Thread[] waiters = new Thread[2];
+        NegotiationLimiter.Priority[] priorities = { NegotiationLimiter.Priority.REFRESH, NegotiationLimiter.Priority.DEMAND };
+        for (int i = 0; i < waiters.length; i++)
+        {
+            final NegotiationLimiter.Priority priority = priorities[i];
+            waiters[i] = new Thread() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        if (limiter.acquire(priority, 5, TimeUnit.SECONDS))
+                        {
+                            order.add(priority);
+                            limiter.release();
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // test fails on the missing entry
+                    }
+                }
+            };
+            waiters[i].start();
+            while (limiter.getQueueLength() < i + 1)
+            {
+                Thread.sleep(10);
+            }
+        }
+        // a timed out waiter gives up its place
+        assertFalse(limiter.acquire(NegotiationLimiter.Priority.DEMAND, 50, TimeUnit.MILLISECONDS));
+        assertEquals(2, limiter.getQueueLength());
+        
+        limiter.release();
+        for (Thread waiter : waiters)
+        {
+            waiter.join();
+        }
+        assertEquals(Arrays.asList(NegotiationLimiter.Priority.DEMAND, NegotiationLimiter.Priority.REFRESH), order);
+    }
+    
+    @Test
+    public void concurrentNegotiationsAreLimited() throws Exception
+    {
+        NegotiationLimiter limiter = new NegotiationLimiter(2, 0, 1);
+        assertTrue(limiter.acquire(NegotiationLimiter.Priority.DEMAND, 1, TimeUnit.SECONDS));
+        assertTrue(limiter.acquire(NegotiationLimiter.Priority.DEMAND, 1, TimeUnit.SECONDS));
+        assertFalse(limiter.acquire(NegotiationLimiter.Priority.DEMAND, 50, TimeUnit.MILLISECONDS));
+        
+        limiter.release();
+        assertTrue(limiter.acquire(NegotiationLimiter.Priority.DEMAND, 1, TimeUnit.SECONDS));
+    }
+    
+    @Test
+    public void rateLimitAllowsBurstThenSpacesNegotiations() throws Exception
+    {
+        // 10 per second, so one every 100 ms once the burst of 3 is used
+        NegotiationLimiter limiter = new NegotiationLimiter(0, 10, 3);
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(limiter.acquire(NegotiationLimiter.Priority.DEMAND, 50, TimeUnit.MILLISECONDS));
+            limiter.release();
+        }
+        assertFalse(limiter.acquire(NegotiationLimiter.Priority.DEMAND, 20, TimeUnit.MILLISECONDS));
+        
+        long start = System.nanoTime();
+        assertTrue(limiter.acquire(NegotiationLimiter.Priority.DEMAND, 5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+        limiter.release();
+    }
+    
+    @Test
+    public void burstIsCappedAfterQuietPeriod() throws Exception
+    {
+        NegotiationLimiter limiter = new NegotiationLimiter(0, 10, 2);
+        // long enough to earn far more than the burst
+        Thread.sleep(500);
+        for (int i = 0; i < 2; i++)
+        {
+            assertTrue(limiter.acquire(NegotiationLimiter.Priority.DEMAND, 50, TimeUnit.MILLISECONDS));
+            limiter.release();
+        }
+        assertFalse(limiter.acquire(NegotiationLimiter.Priority.DEMAND, 20, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void zeroTimeoutTakesFreeTurnWithoutWaiting() throws Exception
+    {
+        NegotiationLimiter limiter = new NegotiationLimiter(1, 10, 1);
+        assertTrue(limiter.acquire(NegotiationLimiter.Priority.DEMAND, 0, TimeUnit.MILLISECONDS));
+        // no slot free
+        assertFalse(limiter.acquire(NegotiationLimiter.Priority.DEMAND, 0, TimeUnit.MILLISECONDS));
+        limiter.release();
+        // a slot, but no permit until 100 ms after the first
+        assertFalse(limiter.acquire(NegotiationLimiter.Priority.REFRESH, 0, TimeUnit.MILLISECONDS));
+        assertEquals(0, limiter.getQueueLength());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void rateLimitNeedsBurstOfAtLeastOne() throws Exception
+    {
+        new NegotiationLimiter(0, 10, 0.5);
+    }
+}
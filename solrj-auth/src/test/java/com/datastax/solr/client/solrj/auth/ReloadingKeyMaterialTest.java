@@ -0,0 +1,196 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReloadingKeyMaterialTest
+{
+    private File dir;
+    private File first;
+    private File second;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        dir = Files.createTempDirectory("reloading-key-material").toFile();
+        first = TestKeyStores.generate(new File(dir, "first.jks"), "first");
+        second = TestKeyStores.generate(new File(dir, "second.jks"), "second");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        for (File file : dir.listFiles())
+        {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void newHandshakesPresentReloadedKey() throws Exception
+    {
+        File keyStore = copy(first, "keystore.jks");
+        ReloadingKeyMaterial material = newBuilder().keyStore(keyStore, "JKS", password()).build();
+        StubTlsServer server = new StubTlsServer(material.getSSLContext());
+        try
+        {
+            assertEquals("CN=first", handshake(TestKeyStores.clientContext(first), server));
+            assertFalse(material.reloadIfChanged());
+
+            copy(second, keyStore.getName());
+            assertTrue(material.reloadIfChanged());
+            assertEquals("CN=second", handshake(TestKeyStores.clientContext(second), server));
+        }
+        finally
+        {
+            server.stop();
+            material.close();
+        }
+    }
+
+    @Test
+    public void newHandshakesTrustReloadedTrustStore() throws Exception
+    {
+        File trustStore = copy(first, "truststore.jks");
+        ReloadingKeyMaterial material = newBuilder().trustStore(trustStore, "JKS", password()).build();
+        StubTlsServer firstServer = new StubTlsServer(TestKeyStores.serverContext(first));
+        StubTlsServer secondServer = new StubTlsServer(TestKeyStores.serverContext(second));
+        try
+        {
+            assertEquals("CN=first", handshake(material.getSSLContext(), firstServer));
+            assertUntrusted(material.getSSLContext(), secondServer);
+
+            copy(second, trustStore.getName());
+            assertTrue(material.reloadIfChanged());
+            assertEquals("CN=second", handshake(material.getSSLContext(), secondServer));
+            // resuming the session set up with the old truststore would skip the check
+            assertUntrusted(material.getSSLContext(), firstServer);
+        }
+        finally
+        {
+            firstServer.stop();
+            secondServer.stop();
+            material.close();
+        }
+    }
+
+    @Test
+    public void brokenFileKeepsAllCurrentMaterial() throws Exception
+    {
+        File keyStore = copy(first, "keystore.jks");
+        File trustStore = copy(first, "truststore.jks");
+        ReloadingKeyMaterial material = newBuilder()
+                                            .keyStore(keyStore, "JKS", password())
+                                            .trustStore(trustStore, "JKS", password())
+                                            .build();
+        StubTlsServer server = new StubTlsServer(material.getSSLContext());
+        try
+        {
+            // e.g. a truststore caught halfway through being written
+            copy(second, keyStore.getName());
+            Files.write(trustStore.toPath(), new byte[] { 1, 2, 3 });
+            assertFalse(material.reloadIfChanged());
+            assertEquals("CN=first", handshake(TestKeyStores.clientContext(first), server));
+            assertEquals("CN=first", handshake(material.getSSLContext(), server));
+
+            // both are picked up once the truststore is complete
+            copy(second, trustStore.getName());
+            assertTrue(material.reloadIfChanged());
+            assertEquals("CN=second", handshake(TestKeyStores.clientContext(second), server));
+            assertEquals("CN=second", handshake(material.getSSLContext(), server));
+        }
+        finally
+        {
+            server.stop();
+            material.close();
+        }
+    }
+
+    @Test
+    public void touchedFileIsNotReloaded() throws Exception
+    {
+        File trustStore = copy(first, "truststore.jks");
+        ReloadingKeyMaterial material = newBuilder().trustStore(trustStore, "JKS", password()).build();
+        try
+        {
+            Files.write(trustStore.toPath(), Files.readAllBytes(first.toPath()));
+            assertTrue(trustStore.setLastModified(trustStore.lastModified() + TimeUnit.MINUTES.toMillis(1)));
+            assertFalse(material.reloadIfChanged());
+        }
+        finally
+        {
+            material.close();
+        }
+    }
+
+    /**
+     * The watcher is kept out of the way, the tests reload explicitly.
+     */
+    private static ReloadingKeyMaterial.Builder newBuilder()
+    {
+        return new ReloadingKeyMaterial.Builder().checkInterval(TimeUnit.HOURS.toMillis(1));
+    }
+
+    private static char[] password()
+    {
+        return TestKeyStores.PASSWORD.toCharArray();
+    }
+
+    /**
+     * Replaces the named file in the temp directory with the source's content.
+     */
+    private File copy(File source, String name) throws Exception
+    {
+        File target = new File(dir, name);
+        Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    /**
+     * @return the subject of the certificate the server presented
+     */
+    private static String handshake(SSLContext client, StubTlsServer server) throws Exception
+    {
+        SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket(InetAddress.getLoopbackAddress(), server.getPort());
+        try
+        {
+            socket.startHandshake();
+            socket.getOutputStream().write(1);
+            socket.getOutputStream().flush();
+            X509Certificate certificate = (X509Certificate) socket.getSession().getPeerCertificates()[0];
+            return certificate.getSubjectX500Principal().getName();
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    private static void assertUntrusted(SSLContext client, StubTlsServer server) throws Exception
+    {
+        try
+        {
+            handshake(client, server);
+            fail("Expected SSLException");
+        }
+        catch (SSLException e)
+        {
+            // expected
+        }
+    }
+}
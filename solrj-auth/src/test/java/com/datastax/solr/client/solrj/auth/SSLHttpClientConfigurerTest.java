@@ -0,0 +1,190 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.solr.client.solrj.impl.HttpClientConfigurer;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.After;
+import org.junit.Test;
+
+public class SSLHttpClientConfigurerTest
+{
+    @After
+    public void tearDown()
+    {
+        HttpClientUtil.setConfigurer(new HttpClientConfigurer());
+    }
+    
+    @Test
+    public void applicationConfigurerIsKeptWhenEncryptionIsInitialized() throws Exception
+    {
+        CountingConfigurer application = new CountingConfigurer();
+        HttpClientUtil.setConfigurer(application);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, null, null);
+        
+        SolrHttpClientInitializer.initEncryption(new SolrHttpClientInitializer.EncryptionOptions().withSSLContext(ctx));
+        DefaultHttpClient client = (DefaultHttpClient) HttpClientUtil.createClient(new ModifiableSolrParams());
+        assertEquals(1, application.calls.get());
+        // the application's settings are applied, and ours on top of them
+        assertEquals(1234, HttpConnectionParams.getSoTimeout(client.getParams()));
+        Scheme https = client.getConnectionManager().getSchemeRegistry().get("https");
+        assertTrue(https.getSchemeSocketFactory() instanceof org.apache.http.conn.ssl.SSLSocketFactory);
+        client.getConnectionManager().shutdown();
+        
+        // registering again wraps the application's configurer, not our previous one
+        SolrHttpClientInitializer.initEncryption(new SolrHttpClientInitializer.EncryptionOptions().withSSLContext(ctx));
+        client = (DefaultHttpClient) HttpClientUtil.createClient(new ModifiableSolrParams());
+        assertEquals(2, application.calls.get());
+        client.getConnectionManager().shutdown();
+    }
+    
+    @Test
+    public void basicAuthenticationRemovesSpnegoConfiguration() throws Exception
+    {
+        CountingConfigurer application = new CountingConfigurer();
+        HttpClientUtil.setConfigurer(application);
+        SolrHttpClientInitializer.initAuthentication(new SolrHttpClientInitializer.AuthenticationOptions());
+        DefaultHttpClient client = (DefaultHttpClient) HttpClientUtil.createClient(new ModifiableSolrParams());
+        assertTrue(harvestsTokens(client));
+        client.getConnectionManager().shutdown();
+        
+        SolrHttpClientInitializer.initBasicAuthentication("user", "pass");
+        client = (DefaultHttpClient) HttpClientUtil.createClient(new ModifiableSolrParams());
+        assertFalse(harvestsTokens(client));
+        // the application's configurer still runs
+        assertEquals(2, application.calls.get());
+        client.getConnectionManager().shutdown();
+    }
+    
+    @Test
+    public void reinitializingAuthenticationReplacesTokenCaches() throws Exception
+    {
+        ObjectName mbean = new ObjectName("com.datastax.solr.client.solrj.auth:type=SpnegoTokenCache,name=" + ObjectName.quote("reinit"));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            SolrHttpClientInitializer.initAuthentication(new SolrHttpClientInitializer.AuthenticationOptions().withJmx("reinit"));
+            SolrHttpClientInitializer.importTokens(new TokenBundle(Collections.singletonList(
+                    new TokenBundle.Entry("test.example.com", TestAuthenticators.token("foo"), CachedToken.NEVER_EXPIRES))));
+            assertEquals(1, server.getAttribute(mbean, "CachedTokens"));
+            
+            // the new cache takes over the name rather than the old one lingering under it
+            SolrHttpClientInitializer.initAuthentication(new SolrHttpClientInitializer.AuthenticationOptions().withJmx("reinit"));
+            assertEquals(0, server.getAttribute(mbean, "CachedTokens"));
+        }
+        finally
+        {
+            SolrHttpClientInitializer.initBasicAuthentication("user", "pass");
+        }
+        assertFalse(server.isRegistered(mbean));
+    }
+    
+    private static boolean harvestsTokens(DefaultHttpClient client)
+    {
+        for (int i = 0; i < client.getResponseInterceptorCount(); i++)
+        {
+            if (client.getResponseInterceptor(i) instanceof TokenHarvestingInterceptor)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    @Test
+    public void poolLimitsApplyUnlessRequestedForTheClient() throws Exception
+    {
+        ConnectionPoolSettings settings = new ConnectionPoolSettings.Builder().maxConnections(10).build();
+        HttpClientUtil.setConfigurer(new SSLHttpClientConfigurer(null, settings));
+        
+        DefaultHttpClient client = (DefaultHttpClient) HttpClientUtil.createClient(new ModifiableSolrParams());
+        assertEquals(10, getPool(client).getMaxTotal());
+        // HttpSolrServer always passes SolrJ's defaults, so they don't count as requested
+        client = (DefaultHttpClient) HttpClientUtil.createClient(maxConnections(ConnectionPoolSettings.SOLRJ_MAX_CONNECTIONS_DEFAULT));
+        assertEquals(10, getPool(client).getMaxTotal());
+        client = (DefaultHttpClient) HttpClientUtil.createClient(maxConnections(50));
+        assertEquals(50, getPool(client).getMaxTotal());
+        client.getConnectionManager().shutdown();
+    }
+    
+    @Test
+    public void unsetPoolLimitsAreLeftAlone() throws Exception
+    {
+        ConnectionPoolSettings settings = new ConnectionPoolSettings.Builder().maxConnectionsPerHost(5).build();
+        HttpClientUtil.setConfigurer(new SSLHttpClientConfigurer(null, settings));
+        
+        DefaultHttpClient client = (DefaultHttpClient) HttpClientUtil.createClient(maxConnections(50));
+        assertEquals(50, getPool(client).getMaxTotal());
+        assertEquals(5, getPool(client).getDefaultMaxPerRoute());
+        client.getConnectionManager().shutdown();
+    }
+    
+    @Test
+    public void shorterKeepAliveWins() throws Exception
+    {
+        ConnectionPoolSettings settings = new ConnectionPoolSettings.Builder().keepAliveMs(5000).build();
+        HttpClientUtil.setConfigurer(new SSLHttpClientConfigurer(null, settings));
+        DefaultHttpClient client = (DefaultHttpClient) HttpClientUtil.createClient(new ModifiableSolrParams());
+        ConnectionKeepAliveStrategy strategy = client.getConnectionKeepAliveStrategy();
+        
+        assertEquals(5000, strategy.getKeepAliveDuration(keepAlive(null), new BasicHttpContext()));
+        assertEquals(2000, strategy.getKeepAliveDuration(keepAlive("timeout=2"), new BasicHttpContext()));
+        assertEquals(5000, strategy.getKeepAliveDuration(keepAlive("timeout=10"), new BasicHttpContext()));
+        client.getConnectionManager().shutdown();
+    }
+    
+    private static ModifiableSolrParams maxConnections(int maxConnections)
+    {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS, maxConnections);
+        return params;
+    }
+    
+    private static PoolingClientConnectionManager getPool(DefaultHttpClient client)
+    {
+        return (PoolingClientConnectionManager) client.getConnectionManager();
+    }
+    
+    private static HttpResponse keepAlive(String value)
+    {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        if (value != null)
+        {
+            response.setHeader("Keep-Alive", value);
+        }
+        return response;
+    }
+    
+    private static class CountingConfigurer extends HttpClientConfigurer
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        
+        @Override
+        protected void configure(DefaultHttpClient httpClient, SolrParams config)
+        {
+            super.configure(httpClient, config);
+            calls.incrementAndGet();
+            HttpConnectionParams.setSoTimeout(httpClient.getParams(), 1234);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class SpnegoAuthenticatorFactoryTest
+{
+    @Test
+    public void negotiationTimeoutsDefaultToTokenTimeout() throws Exception
+    {
+        assertEquals(0, SpnegoAuthenticatorFactory.negotiationTimeout(0, 0));
+        assertEquals(5000, SpnegoAuthenticatorFactory.negotiationTimeout(0, 5000));
+        // timeouts given for negotiations are kept
+        assertEquals(1000, SpnegoAuthenticatorFactory.negotiationTimeout(1000, 5000));
+    }
+    
+    @Test(expected=IllegalStateException.class)
+    public void keytabNeedsPrincipal() throws Exception
+    {
+        new SpnegoAuthenticatorFactory.Builder().keytab(new File("client.keytab")).build();
+    }
+    
+    @Test
+    public void cachePolicySettingsApplySeparately() throws Exception
+    {
+        // the TTL is left to its default, the size limit still applies
+        SpnegoAuthenticatorFactory factory = new SpnegoAuthenticatorFactory.Builder()
+                                                 .urlProvider(new TestAuthenticators.TokenIssuer(TestAuthenticators.token("foo")))
+                                                 .cachePolicy(-1, 1, -1)
+                                                 .build();
+        try
+        {
+            TestAuthenticators.authenticate(factory, "http://node1.example.com/solr/select");
+            TestAuthenticators.authenticate(factory, "http://node2.example.com/solr/select");
+            assertEquals(Collections.singleton("node2.example.com"), factory.getTokenCache().getTokens().keySet());
+        }
+        finally
+        {
+            factory.getTokenCache().close();
+        }
+    }
+}
@@ -3,13 +3,24 @@ package com.datastax.solr.client.solrj.auth;
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
 
-import java.net.URL;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.ietf.jgss.GSSContext;
 import org.junit.Test;
 
 import com.cloudera.alfredo.client.AuthenticatedURL;
+import com.cloudera.alfredo.client.AuthenticationException;
 
 public class SpnegoAuthenticatorTest
 {
@@ -22,7 +33,7 @@ public class SpnegoAuthenticatorTest
         
         AuthenticatedURL.Token token = new AuthenticatedURL.Token(tokenString);
         SpnegoTokenCache mockCache = createMock(SpnegoTokenCache.class);
-        expect(mockCache.getToken(new URL(url))).andReturn(token);
+        expect(mockCache.getCachedToken(new URI(url))).andReturn(new CachedToken(token, CachedToken.NEVER_EXPIRES, System.currentTimeMillis()));
         replay(mockCache);
         
         SpnegoAuthenticator authenticator = new SpnegoAuthenticator(mockCache);
@@ -32,4 +43,130 @@ public class SpnegoAuthenticatorTest
         assertEquals(method.getFirstHeader("Cookie").getValue(), AuthenticatedURL.AUTH_COOKIE + "=" + tokenString);
         verify(mockCache);
     }
+    
+    @Test
+    public void negotiateOnRequestWhenNoTokenCached() throws Exception
+    {
+        final String url = "http://test.example.com/test/url";
+        NegotiatingProvider provider = new NegotiatingProvider();
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+        final SpnegoAuthenticator authenticator = new SpnegoAuthenticator(cache, true);
+        
+        HttpRequestBase method = authenticator.setAuthenticationOptions(new HttpGet(url));
+        assertEquals("Negotiate dGVzdA==", method.getFirstHeader("Authorization").getValue());
+        assertNull(method.getFirstHeader("Cookie"));
+        
+        // a concurrent request waits for the token rather than negotiating too
+        final AtomicReference<HttpRequestBase> waiting = new AtomicReference<HttpRequestBase>();
+        Thread waiter = new Thread() {
+            @Override
+            public void run()
+            {
+                waiting.set(authenticator.setAuthenticationOptions(new HttpGet(url)));
+            }
+        };
+        waiter.start();
+        
+        harvest(cache, method, 200, "Negotiate cmVwbHk=", "u=client&e=-1");
+        waiter.join(10000);
+        assertEquals(AuthenticatedURL.AUTH_COOKIE + "=u=client&e=-1", waiting.get().getFirstHeader("Cookie").getValue());
+        assertNull(waiting.get().getFirstHeader("Authorization"));
+        assertEquals(1, provider.contexts.get());
+        // the server's mutual authentication reply was checked
+        assertEquals("cmVwbHk=", provider.challenge.get());
+        assertEquals(0, cache.getStats().getNegotiationFailures());
+    }
+    
+    @Test
+    public void negotiationOnRequestFailsWithoutMutualAuthentication() throws Exception
+    {
+        String url = "http://test.example.com/test/url";
+        NegotiatingProvider provider = new NegotiatingProvider();
+        provider.rejectReply = true;
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+        SpnegoAuthenticator authenticator = new SpnegoAuthenticator(cache, true);
+        
+        HttpRequestBase method = authenticator.setAuthenticationOptions(new HttpGet(url));
+        harvest(cache, method, 200, "Negotiate Zm9yZ2Vk", "u=forged&e=-1");
+        assertNull(cache.getValidToken(new URI(url)));
+        assertEquals(1, cache.getStats().getNegotiationFailures());
+        
+        // the next request negotiates afresh
+        method = authenticator.setAuthenticationOptions(new HttpGet(url));
+        assertEquals("Negotiate dGVzdA==", method.getFirstHeader("Authorization").getValue());
+        assertEquals(2, provider.contexts.get());
+    }
+    
+    @Test
+    public void unansweredNegotiationOnRequestIsAbandoned() throws Exception
+    {
+        String url = "http://test.example.com/test/url";
+        NegotiatingProvider provider = new NegotiatingProvider();
+        SpnegoTokenCache cache = new SpnegoTokenCache.Builder(provider).requestNegotiationTimeout(0).build();
+        SpnegoAuthenticator authenticator = new SpnegoAuthenticator(cache, true);
+        
+        // as if the first request never got a response
+        authenticator.setAuthenticationOptions(new HttpGet(url));
+        HttpRequestBase method = authenticator.setAuthenticationOptions(new HttpGet(url));
+        assertEquals("Negotiate dGVzdA==", method.getFirstHeader("Authorization").getValue());
+        assertEquals(2, provider.contexts.get());
+        
+        harvest(cache, method, 200, null, "u=client&e=-1");
+        assertEquals("u=client&e=-1", cache.getValidToken(new URI(url)).getToken().toString());
+    }
+    
+    private static void harvest(SpnegoTokenCache cache, HttpRequestBase request, int status, String challenge, String token)
+        throws Exception
+    {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "TEST");
+        if (challenge != null)
+        {
+            response.addHeader("WWW-Authenticate", challenge);
+        }
+        response.addHeader("Set-Cookie", AuthenticatedURL.AUTH_COOKIE + "=" + token + "; Path=/");
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+        context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, new HttpHost(request.getURI().getHost()));
+        new TokenHarvestingInterceptor(cache).process(response, context);
+    }
+    
+    /**
+     * Hands out GSS-less NegotiateContexts, counting them, and records the
+     * server's reply they're stepped with.
+     */
+    private static class NegotiatingProvider extends AuthenticatedURLProvider
+    {
+        final AtomicInteger contexts = new AtomicInteger();
+        final AtomicReference<String> challenge = new AtomicReference<String>();
+        volatile boolean rejectReply;
+        
+        NegotiatingProvider()
+        {
+            super(new AuthenticatedURLProvider.Builder());
+        }
+        
+        @Override
+        NegotiateContext createNegotiateContext(String host)
+        {
+            contexts.incrementAndGet();
+            GSSContext gss = createNiceMock(GSSContext.class);
+            replay(gss);
+            return new NegotiateContext(gss);
+        }
+        
+        @Override
+        String step(NegotiateContext context, String challenge) throws AuthenticationException
+        {
+            if (challenge == null)
+            {
+                return "Negotiate dGVzdA==";
+            }
+            this.challenge.set(challenge);
+            if (rejectReply)
+            {
+                throw new AuthenticationException("TEST EXCEPTION");
+            }
+            return null;
+        }
+    }
 }
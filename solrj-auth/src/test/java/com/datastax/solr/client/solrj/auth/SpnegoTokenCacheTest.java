@@ -3,10 +3,21 @@ package com.datastax.solr.client.solrj.auth;
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.solr.common.SolrException;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -15,6 +26,7 @@ import com.cloudera.alfredo.client.AuthenticationException;
 import com.cloudera.alfredo.client.AuthenticationException.AuthenticationExceptionCode;
 import com.cloudera.alfredo.server.AuthenticationToken;
 import com.cloudera.alfredo.server.KerberosAuthenticationHandler;
+import com.google.common.collect.ConcurrentHashMultiset;
 
 public class SpnegoTokenCacheTest
 {
@@ -112,10 +124,12 @@ public class SpnegoTokenCacheTest
             expect(provider.get()).andReturn(mockURL).times(2);
             replay(provider);
 
-            SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+            ManualClock clock = new ManualClock();
+            SpnegoTokenCache cache = new SpnegoTokenCache.Builder(provider).clock(clock).build();
             assertSame(token, cache.getToken(url));
-            // sleep to ensure the token gets expired from the cache
-            TimeUnit.MILLISECONDS.sleep(100);
+            assertSame(token, cache.getToken(url));
+            // move past the TTL, though not the token's own expiry
+            clock.advance(100);
             // now we should get a different token instance
             assertSame(secondToken, cache.getToken(url));
             verify(mockURL);
@@ -127,6 +141,137 @@ public class SpnegoTokenCacheTest
         }
     }
     
+    @Test
+    public void tokensAreRefreshedAheadOfExpiry() throws Exception
+    {
+        SpnegoTokenCache cache = null;
+        try
+        {
+            AuthenticationToken serverToken = new AuthenticationToken("bar", "bar/host@REALM", "KERBEROS");
+            serverToken.setExpires(System.currentTimeMillis() + 60000);
+            AuthenticatedURL.Token refreshedToken = new AuthenticatedURL.Token(serverToken.toString());
+
+            AuthenticatedURL mockURL = createMock(AuthenticatedURL.class);
+            // the initial token is loaded on demand, then replaced in the background
+            // once half of the 1000ms TTL has elapsed
+            expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andReturn(token);
+            expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andReturn(refreshedToken);
+            replay(mockURL);
+
+            AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+            expect(provider.get()).andReturn(mockURL).times(2);
+            replay(provider);
+
+            // the clock hardly moves, so however late the refresh runs, the
+            // initial token never expires and only the refresh can replace it,
+            // which it does as its TTL runs from a little later
+            ManualClock clock = new ManualClock();
+            cache = new SpnegoTokenCache.Builder(provider).ttl(1000).refreshRatio(0.5).clock(clock).build();
+            assertSame(token, cache.getToken(url));
+            clock.advance(100);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (cache.getTokens().get("test.example.com").getToken() != refreshedToken
+                   && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            // stop further refreshes before using the new token
+            cache.close();
+            assertSame(refreshedToken, cache.getToken(url));
+            verify(mockURL);
+            verify(provider);
+        }
+        finally
+        {
+            if (cache != null)
+            {
+                cache.close();
+            }
+        }
+    }
+    
+    @Test
+    public void refreshKeepsCachedTokenIfItOutlivesTheNewOne() throws Exception
+    {
+        ManualClock clock = new ManualClock();
+        AuthenticationToken serverToken = new AuthenticationToken("bar", "bar/host@REALM", "KERBEROS");
+        serverToken.setExpires(clock.currentTimeMillis() + 600);
+        AuthenticatedURL.Token shortLivedToken = new AuthenticatedURL.Token(serverToken.toString());
+
+        AuthenticatedURL mockURL = createMock(AuthenticatedURL.class);
+        expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andReturn(token);
+        expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andReturn(shortLivedToken);
+        replay(mockURL);
+        AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+        expect(provider.get()).andReturn(mockURL).times(2);
+        replay(provider);
+
+        SpnegoTokenCache cache = new SpnegoTokenCache.Builder(provider).ttl(1000).refreshRatio(0.5).clock(clock).build();
+        try
+        {
+            assertSame(token, cache.getToken(url));
+            // the refresh is the only negotiation on the pool
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) cache.getNegotiationPool().getExecutor();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (pool.getCompletedTaskCount() < 1 && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            verify(mockURL);
+            assertSame(token, cache.getTokens().get("test.example.com").getToken());
+            assertEquals(0, cache.getStats().getRefreshes());
+        }
+        finally
+        {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void slowRefreshDoesNotHoldUpOtherHosts() throws Exception
+    {
+        CountDownLatch release = new CountDownLatch(1);
+        SlowRefreshIssuer issuer = new SlowRefreshIssuer("slow.example.com", release);
+        SpnegoTokenCache cache = new SpnegoTokenCache.Builder(issuer).ttl(1000).refreshRatio(0.5).build();
+        try
+        {
+            // the slow host's refresh is due first
+            cache.getToken(new URL("http://slow.example.com/solr"));
+            cache.getToken(new URL("http://fast.example.com/solr"));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!cache.getTokens().get("fast.example.com").getToken().toString().startsWith("u=fast.example.com-2")
+                   && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            assertEquals("u=fast.example.com-2&e=-1", cache.getTokens().get("fast.example.com").getToken().toString());
+            assertEquals("u=slow.example.com-1&e=-1", cache.getTokens().get("slow.example.com").getToken().toString());
+        }
+        finally
+        {
+            release.countDown();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void closeOnlyClosesProviderBuiltForTheCache() throws Exception
+    {
+        final AtomicInteger closes = new AtomicInteger();
+        AuthenticatedURLProvider provider = new AuthenticatedURLProvider(new AuthenticatedURLProvider.Builder())
+        {
+            @Override
+            public void close()
+            {
+                closes.incrementAndGet();
+            }
+        };
+        new SpnegoTokenCache.Builder(provider).build().close();
+        assertEquals(0, closes.get());
+        new SpnegoTokenCache.Builder(provider).closeUrlProvider(true).build().close();
+        assertEquals(1, closes.get());
+    }
+
     @Test (expected=SolrException.class)
     public void authenticationExceptionIsWrappedAndRethrown() throws Exception
     {
@@ -142,6 +287,514 @@ public class SpnegoTokenCacheTest
         cache.getToken(url);
     }
     
+    @Test
+    public void failingHostFailsFastUntilBackoffPasses() throws Exception
+    {
+        AuthenticationException error = new AuthenticationException("TEST EXCEPTION", 
+                                                AuthenticationExceptionCode.INVALID_TOKEN);
+        AuthenticatedURL mockURL = createMock(AuthenticatedURL.class);
+        expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andThrow(error);
+        expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andReturn(token);
+        replay(mockURL);
+        AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+        expect(provider.get()).andReturn(mockURL).times(2);
+        replay(provider);
+        
+        SpnegoTokenCache cache = new SpnegoTokenCache.Builder(provider).negotiationBackoff(1, 200, 200).build();
+        for (int i = 0; i < 2; i++)
+        {
+            try
+            {
+                cache.getToken(url);
+                fail("Expected SolrException");
+            }
+            catch (SolrException e)
+            {
+                // the second attempt fails fast, with the original error
+                assertSame(error, e.getCause());
+            }
+        }
+        Thread.sleep(250);
+        assertSame(token, cache.getToken(url));
+        verify(mockURL);
+        verify(provider);
+    }
+    
+    @Test
+    public void failingHostIsRetriedByDefault() throws Exception
+    {
+        AuthenticatedURL mockURL = createMock(AuthenticatedURL.class);
+        expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject()))
+                .andThrow(new AuthenticationException("TEST EXCEPTION", AuthenticationExceptionCode.INVALID_TOKEN));
+        expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andReturn(token);
+        replay(mockURL);
+        AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+        expect(provider.get()).andReturn(mockURL).times(2);
+        replay(provider);
+        
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+        try
+        {
+            cache.getToken(url);
+            fail("Expected SolrException");
+        }
+        catch (SolrException e)
+        {
+            // expected
+        }
+        // no backoff unless asked for, so the next request negotiates again
+        assertSame(token, cache.getToken(url));
+        verify(mockURL);
+        verify(provider);
+    }
+    
+    @Test
+    public void callerGivesUpOnSlowNegotiationWhichStillCompletes() throws Exception
+    {
+        final CountDownLatch released = new CountDownLatch(1);
+        AuthenticatedURL mockURL = createMock(AuthenticatedURL.class);
+        expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andAnswer(
+                new IAnswer<AuthenticatedURL.Token>() {
+                    @Override
+                    public AuthenticatedURL.Token answer() throws Throwable
+                    {
+                        released.await();
+                        return token;
+                    }
+                });
+        replay(mockURL);
+        AuthenticatedURLProvider provider = getMockProvider(mockURL);
+        
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+        try
+        {
+            cache.getToken(url, 50, TimeUnit.MILLISECONDS);
+            fail("Expected SolrException");
+        }
+        catch (SolrException e)
+        {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        released.countDown();
+        // the abandoned negotiation still caches its token
+        long deadline = System.currentTimeMillis() + 10000;
+        while (cache.getStats().getNegotiations() == 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertSame(token, cache.getToken(url, 1, TimeUnit.SECONDS));
+        verify(mockURL);
+        verify(provider);
+    }
+    
+    @Test
+    public void requestsAfterTimeoutNegotiateAgainUpToPerHostLimit() throws Exception
+    {
+        final CountDownLatch released = new CountDownLatch(1);
+        final AtomicInteger negotiations = new AtomicInteger();
+        // not a mock, EasyMock only lets one call in at a time
+        AuthenticatedURL hangingURL = new AuthenticatedURL()
+        {
+            @Override
+            public Token authenticateWithToken(URL url, Token ignored)
+            {
+                negotiations.incrementAndGet();
+                try
+                {
+                    released.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                return token;
+            }
+        };
+        AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+        expect(provider.get()).andReturn(hangingURL).anyTimes();
+        replay(provider);
+        
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+        try
+        {
+            for (int i = 0; i < SpnegoTokenCache.MAX_POOLED_NEGOTIATIONS_PER_HOST + 2; i++)
+            {
+                try
+                {
+                    cache.getToken(url, 50, TimeUnit.MILLISECONDS);
+                    fail("Expected SolrException");
+                }
+                catch (SolrException e)
+                {
+                    assertTrue(e.getCause() instanceof TimeoutException);
+                }
+            }
+            // each timed out request let the next negotiate, until the host's limit
+            assertEquals(SpnegoTokenCache.MAX_POOLED_NEGOTIATIONS_PER_HOST, negotiations.get());
+            released.countDown();
+            assertSame(token, cache.getToken(url, 1, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            released.countDown();
+            cache.close();
+        }
+    }
+    
+    @Test
+    public void parseExpiryFromTokenString() throws Exception
+    {
+        assertEquals(12345L, CachedToken.parseExpiry("u=foo&p=foo/host@REALM&t=kerberos&e=12345&s=abc"));
+        assertEquals(CachedToken.NEVER_EXPIRES, CachedToken.parseExpiry("u=foo&e=-1&s=abc"));
+        assertEquals(CachedToken.INVALID_EXPIRY, CachedToken.parseExpiry("u=foo&s=abc"));
+        assertEquals(CachedToken.INVALID_EXPIRY, CachedToken.parseExpiry("this is a test token"));
+        assertEquals(CachedToken.INVALID_EXPIRY, CachedToken.parseExpiry("u=foo&e=soon"));
+    }
+    
+    @Test
+    public void cachedTokenHeaderIsPrebuilt() throws Exception
+    {
+        AuthenticatedURL mockURL = createMock(AuthenticatedURL.class);
+        expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andReturn(token);
+        replay(mockURL);
+        AuthenticatedURLProvider provider = getMockProvider(mockURL);
+        
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+        CachedToken cached = cache.getCachedToken(url.toURI());
+        assertSame(token, cached.getToken());
+        assertEquals(AuthenticatedURL.AUTH_COOKIE + "=" + token, cached.getHeader().getValue());
+        assertSame(cached, cache.getCachedToken(url.toURI()));
+        verify(mockURL);
+        verify(provider);
+    }
+    
+    @Test
+    public void harvestedTokensOnlyReplaceOlderOnes() throws Exception
+    {
+        AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+        replay(provider);
+        
+        AuthenticationToken laterServerToken = new AuthenticationToken("foo", "foo/host@REALM", KerberosAuthenticationHandler.TYPE);
+        laterServerToken.setExpires(System.currentTimeMillis() + 120000);
+        AuthenticatedURL.Token laterToken = new AuthenticatedURL.Token(laterServerToken.toString());
+        
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+        cache.putToken(url.toURI(), token);
+        assertSame(token, cache.getToken(url));
+        cache.putToken(url.toURI(), laterToken);
+        assertSame(laterToken, cache.getToken(url));
+        // an older token doesn't replace the one already cached
+        cache.putToken(url.toURI(), token);
+        assertSame(laterToken, cache.getToken(url));
+        verify(provider);
+    }
+    
+    @Test
+    public void boundedCacheEvictsLeastRecentlyUsedAndIdleTokens() throws Exception
+    {
+        AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+        replay(provider);
+        URI first = new URI("http://first.example.com/solr");
+        URI second = new URI("http://second.example.com/solr");
+        URI third = new URI("http://third.example.com/solr");
+        
+        ManualClock clock = new ManualClock();
+        // sweeps are run by the test
+        SpnegoTokenCache cache = new SpnegoTokenCache.Builder(provider)
+                                     .maxEntries(2)
+                                     .expireAfterAccess(5000)
+                                     .sweepInterval(TimeUnit.HOURS.toMillis(1))
+                                     .clock(clock)
+                                     .build();
+        cache.putToken(first, token);
+        cache.putToken(second, token);
+        clock.advance(SpnegoTokenCache.ACCESS_RESOLUTION_MS);
+        assertNotNull(cache.getValidToken(first));
+        
+        cache.putToken(third, token);
+        assertEquals(2, cache.getTokens().size());
+        assertFalse(cache.getTokens().containsKey("second.example.com"));
+        // the evicted host's stats went with its token
+        assertFalse(cache.getStats().getHitsByHost().containsKey("second.example.com"));
+        assertNotNull(cache.getValidToken(first));
+        
+        cache.sweep();
+        assertEquals(2, cache.getTokens().size());
+        // neither has been used for longer than expireAfterAccess
+        clock.advance(5001);
+        cache.sweep();
+        assertTrue(cache.getTokens().isEmpty());
+        assertTrue(cache.getStats().getHitsByHost().isEmpty());
+        // hits on forgotten hosts still count
+        assertEquals(2, cache.getStats().getHits());
+        cache.close();
+        verify(provider);
+    }
+    
+    @Test
+    public void evictionFollowsAccessOrder() throws Exception
+    {
+        AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+        replay(provider);
+        ManualClock clock = new ManualClock();
+        SpnegoTokenCache cache = new SpnegoTokenCache.Builder(provider)
+                                     .maxEntries(3)
+                                     .sweepInterval(TimeUnit.HOURS.toMillis(1))
+                                     .clock(clock)
+                                     .build();
+        for (int i = 0; i < 3; i++)
+        {
+            cache.putToken(new URI("http://host" + i + ".example.com/solr"), token);
+        }
+        clock.advance(SpnegoTokenCache.ACCESS_RESOLUTION_MS);
+        // use the oldest two, leaving host2 least recently used
+        assertNotNull(cache.getValidToken(new URI("http://host0.example.com/solr")));
+        assertNotNull(cache.getValidToken(new URI("http://host1.example.com/solr")));
+        
+        cache.putToken(new URI("http://host3.example.com/solr"), token);
+        assertFalse(cache.getTokens().containsKey("host2.example.com"));
+        cache.putToken(new URI("http://host4.example.com/solr"), token);
+        assertFalse(cache.getTokens().containsKey("host0.example.com"));
+        assertEquals(3, cache.getTokens().size());
+        cache.close();
+    }
+    
+    @Test
+    public void rejectedTokenIsInvalidatedOnlyOnce() throws Exception
+    {
+        AuthenticatedURL mockURL = createMock(AuthenticatedURL.class);
+        expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andReturn(token);
+        replay(mockURL);
+        AuthenticatedURLProvider provider = getMockProvider(mockURL);
+        
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+        String rejected = cache.getCachedToken(url.toURI()).getHeader().getValue();
+        assertFalse(cache.invalidate(url.toURI(), AuthenticatedURL.AUTH_COOKIE + "=some-other-token"));
+        assertTrue(cache.invalidate(url.toURI(), rejected));
+        // later rejections of the same token find it already gone
+        assertFalse(cache.invalidate(url.toURI(), rejected));
+        verify(mockURL);
+        verify(provider);
+    }
+    
+    @Test
+    public void clusterKeyStrategySharesTokenBetweenHosts() throws Exception
+    {
+        URL otherUrl = new URL("http://other.example.com/test/url");
+        AuthenticatedURL mockURL = createMock(AuthenticatedURL.class);
+        expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andReturn(token);
+        replay(mockURL);
+        AuthenticatedURLProvider provider = getMockProvider(mockURL);
+        
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider, 0, TokenKeyStrategies.cluster("test"));
+        assertSame(token, cache.getToken(url));
+        // one negotiation serves every host
+        assertSame(token, cache.getToken(otherUrl));
+        verify(mockURL);
+        verify(provider);
+    }
+    
+    @Test
+    public void schemeHostPortKeyStrategyNormalizesDefaultPorts() throws Exception
+    {
+        assertEquals("https://host:443", TokenKeyStrategies.SCHEME_HOST_PORT.getKey("https", "host", -1));
+        assertEquals("http://host:80", TokenKeyStrategies.SCHEME_HOST_PORT.getKey("http", "host", -1));
+        assertEquals("https://host:8983", TokenKeyStrategies.SCHEME_HOST_PORT.getKey("https", "host", 8983));
+    }
+    
+    @Test
+    public void schemeHostPortKeyStrategyReusesKeys() throws Exception
+    {
+        String key = TokenKeyStrategies.SCHEME_HOST_PORT.getKey("https", "reused", 8983);
+        assertSame(key, TokenKeyStrategies.SCHEME_HOST_PORT.getKey("https", "reused", 8983));
+        assertSame(key, TokenKeyStrategies.SCHEME_HOST_PORT.getKey("https", "reused", 8983));
+        assertNotSame(key, TokenKeyStrategies.SCHEME_HOST_PORT.getKey("http", "reused", 8983));
+        
+        ((TokenKeyStrategies.Prunable) TokenKeyStrategies.SCHEME_HOST_PORT).forget(key);
+        String rebuilt = TokenKeyStrategies.SCHEME_HOST_PORT.getKey("https", "reused", 8983);
+        assertEquals(key, rebuilt);
+        assertNotSame(key, rebuilt);
+    }
+    
+    @Test
+    public void asyncRequestsShareCachedToken() throws Exception
+    {
+        AuthenticatedURL mockURL = createMock(AuthenticatedURL.class);
+        expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andReturn(token);
+        replay(mockURL);
+        AuthenticatedURLProvider provider = getMockProvider(mockURL);
+        
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+        try
+        {
+            assertSame(token, cache.getTokenAsync(url).get(10, TimeUnit.SECONDS));
+            // now cached, so available without a negotiation
+            assertTrue(cache.getTokenAsync(url).isDone());
+            assertSame(token, cache.getToken(url));
+            verify(mockURL);
+            verify(provider);
+        }
+        finally
+        {
+            cache.close();
+        }
+    }
+    
+    @Test
+    public void warmUpReportsPerHostResults() throws Exception
+    {
+        URL failingUrl = new URL("http://failing.example.com/test/url");
+        AuthenticatedURL mockURL = createMock(AuthenticatedURL.class);
+        expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andReturn(token);
+        expect(mockURL.authenticateWithToken(eq(failingUrl), (AuthenticatedURL.Token)anyObject()))
+                .andThrow(new AuthenticationException("TEST EXCEPTION", 
+                            AuthenticationExceptionCode.INVALID_TOKEN));
+        replay(mockURL);
+        
+        AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+        expect(provider.get()).andReturn(mockURL).times(2);
+        replay(provider);
+        
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+        List<WarmupResult> results = cache.warmUp(Arrays.asList(url, failingUrl), 2).get(10, TimeUnit.SECONDS);
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertTrue(results.get(1).getError() instanceof AuthenticationException);
+        // the successful warm up should have left a token in the cache
+        assertSame(token, cache.getToken(url));
+        verify(mockURL);
+        verify(provider);
+    }
+    
+    @Test
+    public void exportedTokensCanBeImportedElsewhere() throws Exception
+    {
+        AuthenticatedURL mockURL = createMock(AuthenticatedURL.class);
+        expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andReturn(token);
+        replay(mockURL);
+        AuthenticatedURLProvider provider = getMockProvider(mockURL);
+        
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+        cache.getToken(url);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.exportTokens().writeTo(out);
+        TokenBundle bundle = TokenBundle.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(1, bundle.size());
+        
+        // the importing cache should never need to negotiate
+        AuthenticatedURLProvider otherProvider = createMock(AuthenticatedURLProvider.class);
+        replay(otherProvider);
+        SpnegoTokenCache otherCache = new SpnegoTokenCache(otherProvider);
+        assertEquals(1, otherCache.importTokens(bundle));
+        assertEquals(token.toString(), otherCache.getToken(url).toString());
+        // the same token again is not newer, so isn't imported
+        assertEquals(0, otherCache.importTokens(bundle));
+        verify(otherProvider);
+    }
+    
+    @Test
+    public void importedTokensAreCappedByLocalTtl() throws Exception
+    {
+        ManualClock clock = new ManualClock();
+        AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+        replay(provider);
+        SpnegoTokenCache cache = new SpnegoTokenCache.Builder(provider).ttl(1000).clock(clock).build();
+        TestAuthenticators.importToken(cache, "test.example.com", TestAuthenticators.token("foo"));
+        assertEquals(clock.currentTimeMillis() + 1000, cache.getTokens().get("test.example.com").getExpires());
+        cache.close();
+    }
+    
+    @Test
+    public void statsCountHitsMissesAndFailures() throws Exception
+    {
+        URL failingUrl = new URL("http://failing.example.com/test/url");
+        AuthenticatedURL mockURL = createMock(AuthenticatedURL.class);
+        expect(mockURL.authenticateWithToken(eq(url), (AuthenticatedURL.Token)anyObject())).andReturn(token);
+        expect(mockURL.authenticateWithToken(eq(failingUrl), (AuthenticatedURL.Token)anyObject()))
+                .andThrow(new AuthenticationException("TEST EXCEPTION", 
+                            AuthenticationExceptionCode.INVALID_TOKEN));
+        replay(mockURL);
+        
+        AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+        expect(provider.get()).andReturn(mockURL).times(2);
+        replay(provider);
+        
+        TokenCacheMetrics metrics = createMock(TokenCacheMetrics.class);
+        metrics.recordMiss("test.example.com");
+        metrics.recordNegotiation(eq("test.example.com"), anyLong());
+        metrics.recordHit("test.example.com");
+        metrics.recordMiss("failing.example.com");
+        metrics.recordNegotiationFailure(eq("failing.example.com"), anyLong(), (Throwable)anyObject());
+        replay(metrics);
+        
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider, 0, TokenKeyStrategies.HOST, metrics);
+        cache.getToken(url);
+        cache.getToken(url);
+        try
+        {
+            cache.getToken(failingUrl);
+            fail("Expected SolrException");
+        }
+        catch (SolrException e)
+        {
+            // expected
+        }
+        
+        TokenCacheStats stats = cache.getStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(2, stats.getMisses());
+        assertEquals(1, stats.getNegotiations());
+        assertEquals(1, stats.getNegotiationFailures());
+        assertEquals(Long.valueOf(1), stats.getNegotiationFailuresByHost().get("failing.example.com"));
+        assertEquals(1, stats.getNegotiationLatency().getCount());
+        verify(metrics);
+    }
+    
+    /**
+     * Issues numbered tokens for each host, blocking every negotiation with the
+     * slow host after its first until released. Not a mock, as EasyMock only
+     * lets one call in at a time.
+     */
+    private static class SlowRefreshIssuer extends AuthenticatedURLProvider
+    {
+        private final String slowHost;
+        private final CountDownLatch release;
+        private final ConcurrentHashMultiset<String> negotiations = ConcurrentHashMultiset.create();
+
+        SlowRefreshIssuer(String slowHost, CountDownLatch release)
+        {
+            super(new AuthenticatedURLProvider.Builder());
+            this.slowHost = slowHost;
+            this.release = release;
+        }
+
+        @Override
+        public AuthenticatedURL get()
+        {
+            return new AuthenticatedURL()
+            {
+                @Override
+                public Token authenticateWithToken(URL url, Token ignored) throws IOException
+                {
+                    int count = negotiations.add(url.getHost(), 1) + 1;
+                    if (count > 1 && url.getHost().equals(slowHost))
+                    {
+                        try
+                        {
+                            release.await();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            throw new IOException(e);
+                        }
+                    }
+                    return new Token("u=" + url.getHost() + "-" + count + "&e=-1");
+                }
+            };
+        }
+    }
+
     private AuthenticatedURLProvider getMockProvider(AuthenticatedURL mockURL)
     {
         AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
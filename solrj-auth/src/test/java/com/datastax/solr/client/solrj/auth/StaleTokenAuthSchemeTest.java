@@ -0,0 +1,100 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudera.alfredo.client.AuthenticatedURL;
+
+public class StaleTokenAuthSchemeTest
+{
+    private static final String STALE = "u=stale&e=-1";
+    private static final String FRESH = "u=fresh&e=-1";
+    
+    private StubHttpServer server;
+    private DefaultHttpClient client;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new StubHttpServer().accept(AuthenticatedURL.AUTH_COOKIE + "=" + FRESH);
+        client = new DefaultHttpClient(new PoolingClientConnectionManager());
+    }
+    
+    @After
+    public void tearDown()
+    {
+        client.getConnectionManager().shutdown();
+        server.stop();
+    }
+    
+    @Test
+    public void rejectedTokenIsReplacedAndRequestRetried() throws Exception
+    {
+        URL url = new URL(server.getUrl());
+        AuthenticatedURL negotiation = createMock(AuthenticatedURL.class);
+        expect(negotiation.authenticateWithToken(eq(url), (AuthenticatedURL.Token) anyObject()))
+                .andReturn(new AuthenticatedURL.Token(FRESH));
+        AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+        expect(provider.get()).andReturn(negotiation);
+        replay(negotiation, provider);
+        
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+        cache.importTokens(new TokenBundle(Collections.singletonList(
+                new TokenBundle.Entry(url.getHost(), STALE, CachedToken.NEVER_EXPIRES))));
+        new SpnegoHttpClientConfigurer(null, ConnectionPoolSettings.DEFAULTS, cache).configure(client, new ModifiableSolrParams());
+        
+        HttpRequestBase request = new SpnegoAuthenticator(cache).setAuthenticationOptions(new HttpGet(server.getUrl()));
+        HttpResponse response = client.execute(request);
+        EntityUtils.consume(response.getEntity());
+        
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals(Arrays.asList(AuthenticatedURL.AUTH_COOKIE + "=" + STALE, AuthenticatedURL.AUTH_COOKIE + "=" + FRESH),
+                     server.getCookies());
+        assertEquals(FRESH, cache.getValidToken(URI.create(server.getUrl())).getToken().toString());
+        assertEquals(1, cache.getStats().getInvalidations());
+        verify(negotiation, provider);
+    }
+    
+    @Test
+    public void requestIsOnlyRetriedOnce() throws Exception
+    {
+        URL url = new URL(server.getUrl());
+        // the replacement is rejected as well
+        server.accept(null);
+        AuthenticatedURL negotiation = createMock(AuthenticatedURL.class);
+        expect(negotiation.authenticateWithToken(eq(url), (AuthenticatedURL.Token) anyObject()))
+                .andReturn(new AuthenticatedURL.Token(FRESH));
+        AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+        expect(provider.get()).andReturn(negotiation);
+        replay(negotiation, provider);
+        
+        SpnegoTokenCache cache = new SpnegoTokenCache(provider);
+        cache.importTokens(new TokenBundle(Collections.singletonList(
+                new TokenBundle.Entry(url.getHost(), STALE, CachedToken.NEVER_EXPIRES))));
+        new SpnegoHttpClientConfigurer(null, ConnectionPoolSettings.DEFAULTS, cache).configure(client, new ModifiableSolrParams());
+        
+        HttpRequestBase request = new SpnegoAuthenticator(cache).setAuthenticationOptions(new HttpGet(server.getUrl()));
+        HttpResponse response = client.execute(request);
+        EntityUtils.consume(response.getEntity());
+        
+        assertEquals(401, response.getStatusLine().getStatusCode());
+        assertEquals(2, server.getCookies().size());
+        verify(negotiation, provider);
+    }
+}
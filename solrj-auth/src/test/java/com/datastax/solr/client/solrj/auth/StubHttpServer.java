@@ -0,0 +1,73 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server standing in for a Solr node, which answers requests
+ * with a Negotiate challenge unless they carry the accepted token.
+ */
+class StubHttpServer
+{
+    private final HttpServer server;
+    private final List<String> cookies = new CopyOnWriteArrayList<String>();
+    private volatile String acceptedCookie;
+
+    StubHttpServer() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+                cookies.add(String.valueOf(cookie));
+                int status = 200;
+                if (cookie == null || !cookie.equals(acceptedCookie))
+                {
+                    exchange.getResponseHeaders().add("WWW-Authenticate", "Negotiate");
+                    status = 401;
+                }
+                // a fresh connection per request keeps retries on stale connections out of the counts
+                exchange.getResponseHeaders().add("Connection", "close");
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @param acceptedCookie the Cookie header value of the only token accepted,
+     * or null to challenge every request
+     */
+    StubHttpServer accept(String acceptedCookie)
+    {
+        this.acceptedCookie = acceptedCookie;
+        return this;
+    }
+
+    String getUrl()
+    {
+        return "http://localhost:" + server.getAddress().getPort() + "/solr";
+    }
+
+    /**
+     * @return the Cookie header of each request received, "null" for none
+     */
+    List<String> getCookies()
+    {
+        return cookies;
+    }
+
+    void stop()
+    {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,72 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.File;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.LoginException;
+
+/**
+ * A KerberosLogin which hands out queued Subjects, or fails, instead of
+ * talking to a KDC.
+ */
+class StubKerberosLogin extends KerberosLogin
+{
+    static final KerberosPrincipal CLIENT = new KerberosPrincipal("client@EXAMPLE.COM");
+
+    private final Queue<Object> results = new LinkedList<Object>();
+    private int logins;
+
+    StubKerberosLogin()
+    {
+        super(new File("test.keytab"), CLIENT);
+    }
+
+    /**
+     * Returns a Subject holding a TGT valid from now for the given time.
+     */
+    static Subject subjectWithTGT(long lifetimeMs)
+    {
+        long now = System.currentTimeMillis();
+        KerberosTicket tgt = new KerberosTicket(new byte[] { 0 }, CLIENT,
+                                                new KerberosPrincipal("krbtgt/EXAMPLE.COM@EXAMPLE.COM"),
+                                                new byte[] { 0 }, 1, new boolean[32],
+                                                new Date(now), new Date(now), new Date(now + lifetimeMs), null, null);
+        Subject subject = new Subject();
+        subject.getPrivateCredentials().add(tgt);
+        return subject;
+    }
+
+    synchronized StubKerberosLogin thenReturn(Subject subject)
+    {
+        results.add(subject);
+        return this;
+    }
+
+    synchronized StubKerberosLogin thenFail()
+    {
+        results.add(new LoginException("TEST EXCEPTION"));
+        return this;
+    }
+
+    synchronized int getLogins()
+    {
+        return logins;
+    }
+
+    @Override
+    synchronized Subject login() throws LoginException
+    {
+        logins++;
+        Object result = results.remove();
+        if (result instanceof LoginException)
+        {
+            throw (LoginException) result;
+        }
+        return (Subject) result;
+    }
+}
@@ -0,0 +1,89 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A TLS server on a local port which completes each client's handshake, reads
+ * a single byte and closes the connection.
+ */
+class StubTlsServer
+{
+    private final SSLServerSocket serverSocket;
+    private final Thread acceptor;
+
+    StubTlsServer(SSLContext context) throws IOException
+    {
+        serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread("stub-tls-server")
+        {
+            @Override
+            public void run()
+            {
+                accept(serverSocket);
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    void stop() throws IOException
+    {
+        serverSocket.close();
+    }
+
+    private static void accept(ServerSocket serverSocket)
+    {
+        while (!serverSocket.isClosed())
+        {
+            final SSLSocket socket;
+            try
+            {
+                socket = (SSLSocket) serverSocket.accept();
+            }
+            catch (IOException e)
+            {
+                return;
+            }
+            Thread handler = new Thread("stub-tls-connection")
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        socket.startHandshake();
+                        socket.getInputStream().read();
+                    }
+                    catch (IOException e)
+                    {
+                        // the client went away, or failed the handshake
+                    }
+                    finally
+                    {
+                        try
+                        {
+                            socket.close();
+                        }
+                        catch (IOException e)
+                        {
+                            // already closed
+                        }
+                    }
+                }
+            };
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.AccessController;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.security.auth.Subject;
+
+import org.junit.Test;
+
+import com.cloudera.alfredo.client.AuthenticatedURL;
+import com.cloudera.alfredo.client.AuthenticationException;
+import com.cloudera.alfredo.client.Authenticator;
+
+public class SubjectAuthenticatedURLTest
+{
+    private final URL url = new URL("http://test.example.com:8983/solr");
+    
+    public SubjectAuthenticatedURLTest() throws Exception
+    {
+    }
+    
+    @Test
+    public void negotiatesAsLoggedInSubjectWithTimeouts() throws Exception
+    {
+        Subject subject = StubKerberosLogin.subjectWithTGT(60000);
+        StubKerberosLogin login = new StubKerberosLogin().thenReturn(subject);
+        RecordingAuthenticator authenticator = new RecordingAuthenticator();
+        try
+        {
+            AuthenticatedURL.Token token = new AuthenticatedURL.Token();
+            assertSame(token, new SubjectAuthenticatedURL(login, authenticator, 1000, 2000)
+                                  .authenticateWithToken(url, token));
+            assertSame(subject, authenticator.subject.get());
+            
+            URLConnection connection = authenticator.url.get().openConnection();
+            assertEquals(url.toExternalForm(), authenticator.url.get().toExternalForm());
+            assertEquals(1000, connection.getConnectTimeout());
+            assertEquals(2000, connection.getReadTimeout());
+        }
+        finally
+        {
+            login.close();
+        }
+    }
+    
+    @Test
+    public void loginFailureIsAnAuthenticationException() throws Exception
+    {
+        StubKerberosLogin login = new StubKerberosLogin().thenFail();
+        RecordingAuthenticator authenticator = new RecordingAuthenticator();
+        try
+        {
+            new SubjectAuthenticatedURL(login, authenticator, 0, 0).authenticateWithToken(url, new AuthenticatedURL.Token());
+            fail("Expected AuthenticationException");
+        }
+        catch (AuthenticationException e)
+        {
+            assertNull(authenticator.url.get());
+        }
+    }
+    
+    /**
+     * Records the URL and Subject the negotiation ran with.
+     */
+    private static class RecordingAuthenticator implements Authenticator
+    {
+        final AtomicReference<URL> url = new AtomicReference<URL>();
+        final AtomicReference<Subject> subject = new AtomicReference<Subject>();
+        
+        @Override
+        public void authenticate(URL url, AuthenticatedURL.Token token) throws IOException, AuthenticationException
+        {
+            this.url.set(url);
+            this.subject.set(Subject.getSubject(AccessController.getContext()));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.solr.client.solrj.impl.auth.HttpRequestAuthenticatorFactory;
+
+import com.cloudera.alfredo.client.AuthenticatedURL;
+
+/**
+ * Helpers shared by the authenticator factory tests, for making requests the
+ * way SolrJ does and for handing out tokens without a KDC.
+ */
+final class TestAuthenticators
+{
+    private TestAuthenticators()
+    {
+    }
+
+    /**
+     * @return a token string for the user which never expires
+     */
+    static String token(String user)
+    {
+        return "u=" + user + "&e=-1";
+    }
+
+    /**
+     * @return the Cookie header value carrying the token
+     */
+    static String cookie(String token)
+    {
+        return AuthenticatedURL.AUTH_COOKIE + "=" + token;
+    }
+
+    /**
+     * Caches a never expiring token for the host, as if it had been negotiated.
+     */
+    static void importToken(SpnegoTokenCache cache, String host, String token)
+    {
+        cache.importTokens(new TokenBundle(Collections.singletonList(
+                new TokenBundle.Entry(host, token, CachedToken.NEVER_EXPIRES))));
+    }
+
+    /**
+     * Authenticates a GET of the URL with the factory's current authenticator,
+     * as HttpSolrServer does before sending a request.
+     */
+    static HttpRequestBase authenticate(HttpRequestAuthenticatorFactory factory, String url)
+    {
+        return factory.getAuthenticator().setAuthenticationOptions(new HttpGet(url));
+    }
+
+    /**
+     * @return the value of the request's Cookie header, or null if it has none
+     */
+    static String getCookie(HttpRequestBase request)
+    {
+        Header cookie = request.getFirstHeader("Cookie");
+        return (cookie == null) ? null : cookie.getValue();
+    }
+
+    /**
+     * Negotiates the same token with every host, counting negotiations. Not a
+     * mock, as EasyMock only lets one call in at a time.
+     */
+    static class TokenIssuer extends AuthenticatedURLProvider
+    {
+        final AtomicInteger negotiations = new AtomicInteger();
+        private final String token;
+
+        TokenIssuer(String token)
+        {
+            super(new AuthenticatedURLProvider.Builder());
+            this.token = token;
+        }
+
+        @Override
+        public AuthenticatedURL get()
+        {
+            return new AuthenticatedURL()
+            {
+                @Override
+                public Token authenticateWithToken(URL url, Token ignored)
+                {
+                    negotiations.incrementAndGet();
+                    return new Token(token);
+                }
+            };
+        }
+    }
+}
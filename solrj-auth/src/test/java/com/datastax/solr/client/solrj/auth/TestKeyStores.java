@@ -0,0 +1,89 @@
+package com.datastax.solr.client.solrj.auth;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Generates self-signed keystores with the JDK's keytool, for tests which need
+ * real TLS handshakes.
+ */
+class TestKeyStores
+{
+    static final String PASSWORD = "password";
+
+    /**
+     * Writes a JKS keystore holding a new key pair and self-signed certificate
+     * for the given common name, replacing the file if it exists.
+     */
+    static File generate(File file, String commonName) throws Exception
+    {
+        if (file.exists() && !file.delete())
+        {
+            throw new IOException("Unable to replace " + file);
+        }
+        String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", commonName,
+                                             "-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+                                             "-dname", "CN=" + commonName,
+                                             "-keystore", file.getPath(), "-storetype", "JKS",
+                                             "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true)
+                .start();
+        InputStream out = process.getInputStream();
+        while (out.read() != -1)
+        {
+            // drain keytool's output so it can't block
+        }
+        if (process.waitFor() != 0)
+        {
+            throw new IOException("keytool failed to generate " + file);
+        }
+        return file;
+    }
+
+    static KeyStore load(File file) throws Exception
+    {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            keyStore.load(in, PASSWORD.toCharArray());
+        }
+        finally
+        {
+            in.close();
+        }
+        return keyStore;
+    }
+
+    /**
+     * An SSLContext presenting the keystore's key, for a test server.
+     */
+    static SSLContext serverContext(File keyStore) throws Exception
+    {
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(load(keyStore), PASSWORD.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * An SSLContext trusting only the keystore's certificate, for a test client.
+     */
+    static SSLContext clientContext(File trustStore) throws Exception
+    {
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(load(trustStore));
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+}
@@ -0,0 +1,60 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+import org.junit.Test;
+
+import com.cloudera.alfredo.client.AuthenticatedURL;
+import com.cloudera.alfredo.client.Authenticator;
+
+public class TimeoutAuthenticatedURLTest
+{
+    @Test(timeout=10000)
+    public void negotiationWithSilentNodeFailsWithinReadTimeout() throws Exception
+    {
+        // connections are accepted into the backlog, but never answered
+        ServerSocket silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        try
+        {
+            URL url = new URL("http://127.0.0.1:" + silent.getLocalPort() + "/solr");
+            long start = System.nanoTime();
+            try
+            {
+                new TimeoutAuthenticatedURL(new ProbingAuthenticator(), 1000, 200)
+                    .authenticateWithToken(url, new AuthenticatedURL.Token());
+                fail("Expected SocketTimeoutException");
+            }
+            catch (SocketTimeoutException e)
+            {
+                // expected
+            }
+            assertTrue((System.nanoTime() - start) / 1000000 < 5000);
+        }
+        finally
+        {
+            silent.close();
+        }
+    }
+
+    /**
+     * Starts a negotiation as Alfredo's Kerberos authenticator does, by asking
+     * the server whether it requires authentication at all.
+     */
+    private static class ProbingAuthenticator implements Authenticator
+    {
+        @Override
+        public void authenticate(URL url, AuthenticatedURL.Token token) throws IOException
+        {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("OPTIONS");
+            connection.getResponseCode();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TlsSessionStatsTest
+{
+    private static File keyStore;
+    private static StubTlsServer server;
+
+    @BeforeClass
+    public static void setUp() throws Exception
+    {
+        keyStore = TestKeyStores.generate(Files.createTempFile("tls-session-stats", ".jks").toFile(), "localhost");
+        server = new StubTlsServer(TestKeyStores.serverContext(keyStore));
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception
+    {
+        server.stop();
+        keyStore.delete();
+    }
+
+    @Test
+    public void cachedTls12SessionsCountAsResumed() throws Exception
+    {
+        TlsSessionStats stats = new TlsSessionStats();
+        SSLSocketFactory socketFactory = stats.wrap(TestKeyStores.clientContext(keyStore).getSocketFactory());
+
+        handshake(socketFactory, "TLSv1.2");
+        handshake(socketFactory, "TLSv1.2");
+        handshake(socketFactory, "TLSv1.2");
+        awaitHandshakes(stats, 3);
+        assertEquals(1, stats.getFullHandshakes());
+        assertEquals(2, stats.getResumedHandshakes());
+        assertEquals(2.0 / 3, stats.getResumptionRatio(), 0.001);
+    }
+
+    @Test
+    public void separateContextsDoNotShareSessions() throws Exception
+    {
+        TlsSessionStats stats = new TlsSessionStats();
+
+        handshake(stats.wrap(TestKeyStores.clientContext(keyStore).getSocketFactory()), "TLSv1.2");
+        handshake(stats.wrap(TestKeyStores.clientContext(keyStore).getSocketFactory()), "TLSv1.2");
+        awaitHandshakes(stats, 2);
+        assertEquals(2, stats.getFullHandshakes());
+        assertEquals(0, stats.getResumedHandshakes());
+    }
+
+    @Test
+    public void repeatedSessionIdsAreNotMistakenForResumption() throws Exception
+    {
+        // e.g. a server using session tickets, which may send an empty session ID
+        TlsSessionStats stats = new TlsSessionStats();
+        long socketCreated = System.currentTimeMillis();
+        stats.newListener(socketCreated).handshakeCompleted(event(new byte[0], socketCreated));
+        stats.newListener(socketCreated + 1).handshakeCompleted(event(new byte[0], socketCreated + 2));
+        assertEquals(2, stats.getFullHandshakes());
+
+        stats.newListener(socketCreated + 3).handshakeCompleted(event(new byte[0], socketCreated + 2));
+        assertEquals(1, stats.getResumedHandshakes());
+    }
+
+    private static void handshake(SSLSocketFactory socketFactory, String protocol) throws Exception
+    {
+        SSLSocket socket = (SSLSocket) socketFactory.createSocket(InetAddress.getLoopbackAddress(), server.getPort());
+        try
+        {
+            socket.setEnabledProtocols(new String[] { protocol });
+            socket.startHandshake();
+            socket.getOutputStream().write(1);
+            socket.getOutputStream().flush();
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    private static void awaitHandshakes(TlsSessionStats stats, long count) throws Exception
+    {
+        // handshake listeners are called on a separate thread
+        long deadline = System.currentTimeMillis() + 10000;
+        while (stats.getFullHandshakes() + stats.getResumedHandshakes() < count && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+    }
+
+    private static HandshakeCompletedEvent event(byte[] id, long created)
+    {
+        SSLSession session = createMock(SSLSession.class);
+        expect(session.getId()).andReturn(id).anyTimes();
+        expect(session.getCreationTime()).andReturn(created).anyTimes();
+        replay(session);
+        return new HandshakeCompletedEvent(createNiceMock(SSLSocket.class), session);
+    }
+}
@@ -0,0 +1,99 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TokenBundleTest
+{
+    private File dir;
+
+    @Before
+    public void createDir() throws Exception
+    {
+        dir = Files.createTempDirectory("token-bundle-test").toFile();
+    }
+
+    @After
+    public void deleteDir() throws Exception
+    {
+        for (File file : dir.listFiles())
+        {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void saveReplacesExistingBundle() throws Exception
+    {
+        File file = new File(dir, "tokens");
+        new TokenBundle(Collections.singletonList(new TokenBundle.Entry("host1", "u=1&e=-1", 1L))).save(file);
+        new TokenBundle(Arrays.asList(new TokenBundle.Entry("host1", "u=1&e=-1", 2L),
+                                      new TokenBundle.Entry("host2", "u=2&e=-1", 3L))).save(file);
+
+        TokenBundle bundle = TokenBundle.load(file);
+        assertEquals(2, bundle.size());
+        assertEquals(2L, bundle.getEntries().get(0).getExpires());
+        assertEquals("u=2&e=-1", bundle.getEntries().get(1).getToken());
+        // the temp file was moved into place, not left behind
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test
+    public void savedBundleIsOnlyAccessibleByOwner() throws Exception
+    {
+        if (!Files.getFileStore(dir.toPath()).supportsFileAttributeView("posix"))
+        {
+            return;
+        }
+        File file = new File(dir, "tokens");
+        new TokenBundle(Collections.singletonList(new TokenBundle.Entry("host1", "u=1&e=-1", 1L))).save(file);
+
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file.toPath()));
+    }
+
+    @Test
+    public void implausibleTokenCountIsRejected() throws Exception
+    {
+        for (int count : new int[] { -1, TokenBundle.MAX_ENTRIES + 1, Integer.MAX_VALUE })
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new TokenBundle(Collections.<TokenBundle.Entry>emptyList()).writeTo(out);
+            byte[] bytes = out.toByteArray();
+            // the count follows the magic number and version
+            ByteBuffer.wrap(bytes).putInt(5, count);
+            try
+            {
+                TokenBundle.readFrom(new ByteArrayInputStream(bytes));
+                fail("Expected IOException for count " + count);
+            }
+            catch (IOException e)
+            {
+                assertTrue(e.getMessage().contains(String.valueOf(count)));
+            }
+        }
+    }
+
+    @Test(expected=EOFException.class)
+    public void truncatedBundleIsRejected() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TokenBundle(Arrays.asList(new TokenBundle.Entry("node1.example.com", "u=foo&e=-1", 1000))).writeTo(out);
+        byte[] bytes = out.toByteArray();
+        TokenBundle.readFrom(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 4)));
+    }
+}
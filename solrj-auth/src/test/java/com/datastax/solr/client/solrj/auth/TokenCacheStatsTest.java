@@ -0,0 +1,75 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class TokenCacheStatsTest
+{
+    @Test
+    public void concurrentHitsAreAllCounted() throws Exception
+    {
+        final TokenCacheStats stats = new TokenCacheStats();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (int j = 0; j < 10000; j++)
+                    {
+                        stats.recordHit("host");
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertEquals(80000, stats.getHits());
+        assertEquals(Long.valueOf(80000), stats.getHitsByHost().get("host"));
+    }
+
+    @Test
+    public void forgottenHostsStillCountInTotals() throws Exception
+    {
+        TokenCacheStats stats = new TokenCacheStats();
+        stats.recordMiss("host1");
+        stats.recordHit("host1");
+        stats.recordHit("host2");
+        stats.forget("host1");
+
+        assertEquals(2, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertNull(stats.getHitsByHost().get("host1"));
+        assertEquals(Long.valueOf(1), stats.getHitsByHost().get("host2"));
+    }
+
+    @Test
+    public void trackedHostsAreBounded() throws Exception
+    {
+        TokenCacheStats stats = new TokenCacheStats();
+        for (int i = 0; i < TokenCacheStats.MAX_HOSTS + 10; i++)
+        {
+            stats.recordHit("host" + i);
+        }
+        assertEquals(TokenCacheStats.MAX_HOSTS, stats.getHostCount());
+        assertEquals(TokenCacheStats.MAX_HOSTS + 10, stats.getHits());
+    }
+}
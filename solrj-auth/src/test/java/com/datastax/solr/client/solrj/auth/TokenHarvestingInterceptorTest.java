@@ -0,0 +1,83 @@
+package com.datastax.solr.client.solrj.auth;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.net.URI;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudera.alfredo.client.AuthenticatedURL;
+
+public class TokenHarvestingInterceptorTest
+{
+    private final URI uri = URI.create("http://test.example.com:8983/solr/select");
+    
+    private SpnegoTokenCache cache;
+    private TokenHarvestingInterceptor interceptor;
+    
+    @Before
+    public void setUp()
+    {
+        // tokens only ever come from responses
+        AuthenticatedURLProvider provider = createMock(AuthenticatedURLProvider.class);
+        replay(provider);
+        cache = new SpnegoTokenCache.Builder(provider).ttl(0).build();
+        interceptor = new TokenHarvestingInterceptor(cache);
+    }
+    
+    @Test
+    public void tokenSetOnResponseIsCached() throws Exception
+    {
+        long expires = System.currentTimeMillis() + 60000;
+        interceptor.process(response(AuthenticatedURL.AUTH_COOKIE + "=u=client&e=" + expires + "; Path=/"), context());
+        assertEquals("u=client&e=" + expires, cache.getValidToken(uri).getToken().toString());
+    }
+    
+    @Test
+    public void laterExpiringTokenReplacesCachedOne() throws Exception
+    {
+        long expires = System.currentTimeMillis() + 60000;
+        interceptor.process(response(AuthenticatedURL.AUTH_COOKIE + "=u=client&e=" + expires), context());
+        interceptor.process(response(AuthenticatedURL.AUTH_COOKIE + "=u=client&e=" + (expires - 1000)), context());
+        assertEquals(expires, cache.getValidToken(uri).getExpires());
+        
+        interceptor.process(response(AuthenticatedURL.AUTH_COOKIE + "=u=client&e=" + (expires + 1000)), context());
+        assertEquals(expires + 1000, cache.getValidToken(uri).getExpires());
+    }
+    
+    @Test
+    public void responsesWithoutTokenAreIgnored() throws Exception
+    {
+        interceptor.process(new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"), context());
+        interceptor.process(response("JSESSIONID=abc; Path=/"), context());
+        // already expired
+        interceptor.process(response(AuthenticatedURL.AUTH_COOKIE + "=u=client&e=1"), context());
+        // no target host to store it for
+        interceptor.process(response(AuthenticatedURL.AUTH_COOKIE + "=u=client&e=-1"), new BasicHttpContext());
+        assertNull(cache.getValidToken(uri));
+        assertTrue(cache.getTokens().isEmpty());
+    }
+    
+    private static HttpResponse response(String cookie)
+    {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("Set-Cookie", cookie);
+        return response;
+    }
+    
+    private HttpContext context()
+    {
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme()));
+        return context;
+    }
+}